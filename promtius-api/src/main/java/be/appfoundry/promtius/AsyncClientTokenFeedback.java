@@ -0,0 +1,210 @@
+package be.appfoundry.promtius;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ClientTokenFeedback} collecting unregistered and changed client tokens, and writing them to the {@link ClientTokenService} on a background thread, so the sending
+ * threads never wait on the service. Pending updates are written every flush interval, or as soon as the number of pending tokens reaches the configured maximum. Updates are
+ * written in bulk if the service is a {@link BulkClientTokenService}.
+ * <p/>
+ * The maximum triggers a flush, it is not a hard cap: updates reported while a flush is writing to the service are collected for the next flush. A service that is slower
+ * than the rate at which tokens are reported therefore lets the pending updates grow, {@link #getPendingTokens()} shows how many there are.
+ * <p/>
+ * Updates of the same client token are coalesced: a token is unregistered or changed only once per flush, and a pending change is dropped when the token is unregistered.
+ * This relies on the client tokens implementing {@link Object#equals(Object)} and {@link Object#hashCode()}. Updates failing to be written are logged, and not retried.
+ * <p/>
+ * Call {@link #close()} when the feedback is no longer needed, to write the pending updates and stop the background thread. Updates reported after closing are written
+ * right away, on the calling thread.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the token send by a client.
+ * @param <P> The platform identifier type.
+ * @author Mike Seghers
+ */
+public class AsyncClientTokenFeedback<CT extends ClientToken<T, P>, T, P> implements ClientTokenFeedback<CT, T>, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncClientTokenFeedback.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_MAX_PENDING_TOKENS = 1000;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final ClientTokenService<CT, T, P, ?> clientTokenService;
+    private final int maxPendingTokens;
+    private final long shutdownTimeoutSeconds;
+    private final ScheduledExecutorService writer;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private Set<CT> pendingUnregistrations = new LinkedHashSet<>();
+    private Map<CT, T> pendingChanges = new LinkedHashMap<>();
+    private boolean flushRequested;
+    private boolean closed;
+
+    private AsyncClientTokenFeedback(final Builder<CT, T, P> builder) {
+        this.clientTokenService = builder.clientTokenService;
+        this.maxPendingTokens = builder.maxPendingTokens;
+        this.shutdownTimeoutSeconds = builder.shutdownTimeoutSeconds;
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("promtius-token-feedback-%d").setDaemon(true).build());
+        writer.scheduleWithFixedDelay(flushTask, builder.flushIntervalMillis, builder.flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void unregisterClientTokens(final Collection<CT> clientTokens) {
+        synchronized (this) {
+            for (CT clientToken : clientTokens) {
+                pendingChanges.remove(clientToken);
+                pendingUnregistrations.add(clientToken);
+            }
+        }
+        flushIfClosedOrFull();
+    }
+
+    @Override
+    public void changeClientTokens(final Map<CT, T> newTokenValues) {
+        synchronized (this) {
+            for (Map.Entry<CT, T> entry : newTokenValues.entrySet()) {
+                if (!pendingUnregistrations.contains(entry.getKey())) {
+                    pendingChanges.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        flushIfClosedOrFull();
+    }
+
+    /**
+     * Gets the number of client tokens waiting to be unregistered or changed.
+     */
+    public synchronized int getPendingTokens() {
+        return pendingUnregistrations.size() + pendingChanges.size();
+    }
+
+    /**
+     * Writes the pending updates to the client token service right away, on the calling thread.
+     */
+    public void flush() {
+        Set<CT> unregistrations;
+        Map<CT, T> changes;
+        synchronized (this) {
+            unregistrations = pendingUnregistrations;
+            changes = pendingChanges;
+            pendingUnregistrations = new LinkedHashSet<>();
+            pendingChanges = new LinkedHashMap<>();
+            flushRequested = false;
+        }
+        if (!unregistrations.isEmpty()) {
+            try {
+                ClientTokenServices.unregisterClientTokens(clientTokenService, unregistrations);
+            } catch (RuntimeException e) {
+                LOGGER.error("Unregistering {} client tokens failed", unregistrations.size(), e);
+            }
+        }
+        if (!changes.isEmpty()) {
+            try {
+                ClientTokenServices.changeClientTokens(clientTokenService, changes);
+            } catch (RuntimeException e) {
+                LOGGER.error("Changing {} client tokens failed", changes.size(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread, waiting at most the configured shutdown timeout for a running flush, and writes the updates that are still pending on the calling thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                LOGGER.warn("Client token feedback was not written within {} seconds", shutdownTimeoutSeconds);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flushIfClosedOrFull() {
+        synchronized (this) {
+            if (!closed) {
+                if (flushRequested || pendingUnregistrations.size() + pendingChanges.size() < maxPendingTokens) {
+                    return;
+                }
+                flushRequested = true;
+                // close marks the feedback closed under this lock before shutting the writer down, so this is never rejected
+                writer.execute(flushTask);
+                return;
+            }
+        }
+        // the background thread is gone, nothing else would write these updates
+        flush();
+    }
+
+    /**
+     * Builds an {@link AsyncClientTokenFeedback} writing to the given client token service.
+     *
+     * @param <CT> The type of the ClientToken
+     * @param <T> The type of the token send by a client.
+     * @param <P> The platform identifier type.
+     */
+    public static class Builder<CT extends ClientToken<T, P>, T, P> {
+        private final ClientTokenService<CT, T, P, ?> clientTokenService;
+        private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+        private int maxPendingTokens = DEFAULT_MAX_PENDING_TOKENS;
+        private long shutdownTimeoutSeconds = DEFAULT_SHUTDOWN_TIMEOUT_SECONDS;
+
+        public Builder(final ClientTokenService<CT, T, P, ?> clientTokenService) {
+            this.clientTokenService = clientTokenService;
+        }
+
+        /**
+         * How long updates may stay pending before they are written. Defaults to {@value #DEFAULT_FLUSH_INTERVAL_MILLIS} milliseconds.
+         */
+        public Builder<CT, T, P> withFlushIntervalMillis(final long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+            return this;
+        }
+
+        /**
+         * The number of pending client tokens at which the updates are written without waiting for the flush interval. Defaults to {@value #DEFAULT_MAX_PENDING_TOKENS}.
+         */
+        public Builder<CT, T, P> withMaxPendingTokens(final int maxPendingTokens) {
+            this.maxPendingTokens = maxPendingTokens;
+            return this;
+        }
+
+        /**
+         * How long {@link AsyncClientTokenFeedback#close()} waits for a running flush. Defaults to {@value #DEFAULT_SHUTDOWN_TIMEOUT_SECONDS} seconds.
+         */
+        public Builder<CT, T, P> withShutdownTimeoutSeconds(final long shutdownTimeoutSeconds) {
+            this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+            return this;
+        }
+
+        public AsyncClientTokenFeedback<CT, T, P> build() {
+            Preconditions.checkState(clientTokenService != null, "A client token service is needed");
+            Preconditions.checkState(flushIntervalMillis > 0, "Flush interval should be positive");
+            Preconditions.checkState(maxPendingTokens > 0, "Maximum number of pending tokens should be positive");
+            Preconditions.checkState(shutdownTimeoutSeconds >= 0, "Shutdown timeout should not be negative");
+            return new AsyncClientTokenFeedback<>(this);
+        }
+    }
+}
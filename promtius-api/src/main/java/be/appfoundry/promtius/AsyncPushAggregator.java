@@ -0,0 +1,36 @@
+package be.appfoundry.promtius;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Collection;
+
+/**
+ * A {@link PushAggregator} that also reports the outcome of a push through a future, instead of only through a {@link PusherAggregatorTracker}.
+ *
+ * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+ * @param <G> The type of the group identifier. A group identifier is used to put client tokens in a collection of groups, so that a push can be done to specific groups.
+ * @author Mike Seghers
+ */
+public interface AsyncPushAggregator<P, G> extends PushAggregator<P, G> {
+    /**
+     * Send the payload to the registered clients. The returned future completes when all pushers have finished, and reports the outcome of each of them.
+     */
+    ListenableFuture<PushAggregatorResult<P>> sendPushAsync(PushPayload payload);
+
+    /**
+     * Send the payload to the registered clients within the specified group. The returned future completes when all pushers have finished, and reports the outcome of each of
+     * them.
+     */
+    ListenableFuture<PushAggregatorResult<P>> sendPushAsync(PushPayload payload, Collection<G> groups);
+
+    /**
+     * Send the payload to the registered clients for the given platforms. The returned future completes when all pushers have finished, and reports the outcome of each of them.
+     */
+    ListenableFuture<PushAggregatorResult<P>> sendPushToPlatformsAsync(PushPayload payload, Collection<P> platforms);
+
+    /**
+     * Send the payload to the registered clients within the specified group for the given platforms. The returned future completes when all pushers have finished, and reports
+     * the outcome of each of them.
+     */
+    ListenableFuture<PushAggregatorResult<P>> sendPushToPlatformsAsync(PushPayload payload, Collection<P> platforms, Collection<G> groups);
+}
@@ -0,0 +1,27 @@
+package be.appfoundry.promtius;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link ClientTokenService} that can unregister and change many client tokens at once, e.g. in a single database round trip. Pushers report the feedback of a complete batch
+ * through these methods when available, instead of calling the service once per token.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the token send by a client.
+ * @param <P> The platform identifier type.
+ * @param <G> The type of the group identifier.
+ * @author Mike Seghers
+ * @see ClientTokenServices
+ */
+public interface BulkClientTokenService<CT extends ClientToken<T, P>, T, P, G> extends ClientTokenService<CT, T, P, G> {
+    /**
+     * Unregister all given client tokens.
+     */
+    void unregisterClientTokens(Collection<CT> clientTokens);
+
+    /**
+     * Replace the token value of every client token in the map's keys with the value it maps to.
+     */
+    void changeClientTokens(Map<CT, T> newTokenValues);
+}
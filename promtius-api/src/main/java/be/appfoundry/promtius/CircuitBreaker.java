@@ -0,0 +1,182 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.exception.CircuitOpenException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling a push service that keeps failing, so pushes fail right away during an outage instead of tying up threads in retries.
+ * <p/>
+ * The circuit starts closed, and opens after a number of consecutive failed calls. While open, every call fails with a {@link CircuitOpenException}. Once the open duration
+ * passed, the circuit is half-open: a single call goes through as a probe, while the others keep failing. A successful probe closes the circuit, a failing one opens it
+ * again for twice as long, up to the max open duration. Callers ask for permission with {@link #acquirePermission()} and report the outcome of every permitted call with
+ * {@link #recordSuccess(long)} or {@link #recordFailure(long)}, passing the permission they got. Every change of state starts a new generation of permissions, outcomes of
+ * calls permitted in an earlier generation are ignored, so a slow call that started before the circuit opened can't close or reopen it.
+ * <p/>
+ * Share one instance between everything calling the same service with the same credential. Decorators are available for the {@code GoogleSenderWrapper} and {@code
+ * ApnsService}.
+ *
+ * @author Mike Seghers
+ */
+public final class CircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_SECONDS = 30;
+    public static final long DEFAULT_MAX_OPEN_DURATION_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+
+    /**
+     * The states of a circuit.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long initialOpenNanos;
+    private final long maxOpenNanos;
+    private final Ticker ticker;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openNanos;
+    private long openedAtNanos;
+    private long generation;
+
+    private CircuitBreaker(final Builder builder) {
+        this.name = builder.name;
+        this.failureThreshold = builder.failureThreshold;
+        this.initialOpenNanos = builder.openNanos;
+        this.maxOpenNanos = builder.maxOpenNanos;
+        this.ticker = builder.ticker;
+        this.openNanos = builder.openNanos;
+    }
+
+    /**
+     * Checks whether a call may go through. Once the open duration passed, the first caller is let through as the probe.
+     *
+     * @return the permission, to pass along with the outcome of the call.
+     * @throws CircuitOpenException when the circuit is open, or half-open with the probe still in flight.
+     */
+    public synchronized long acquirePermission() {
+        if (state == State.CLOSED) {
+            return generation;
+        }
+        if (state == State.OPEN && ticker.read() - openedAtNanos >= openNanos) {
+            LOGGER.info("Probing {} after {} seconds", name, TimeUnit.NANOSECONDS.toSeconds(openNanos));
+            transitionTo(State.HALF_OPEN);
+            return generation;
+        }
+        throw new CircuitOpenException("The circuit of " + name + " is open, not calling it");
+    }
+
+    /**
+     * Records a permitted call that succeeded, closing the circuit if it was the probe. Ignored if the call was permitted before the last change of state.
+     */
+    public synchronized void recordSuccess(final long permission) {
+        if (permission != generation) {
+            return;
+        }
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            LOGGER.info("Closing the circuit of {}, the probe succeeded", name);
+            transitionTo(State.CLOSED);
+            openNanos = initialOpenNanos;
+        }
+    }
+
+    /**
+     * Records a permitted call that failed, opening the circuit once the failure threshold is reached, or again if it was the probe. Ignored if the call was permitted
+     * before the last change of state.
+     */
+    public synchronized void recordFailure(final long permission) {
+        if (permission != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            openNanos = Math.min(maxOpenNanos, openNanos * 2);
+            open("the probe failed");
+        } else if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+            open(consecutiveFailures + " calls failed in a row");
+        }
+    }
+
+    private void open(final String reason) {
+        LOGGER.warn("Opening the circuit of {} for {} seconds, {}", name, TimeUnit.NANOSECONDS.toSeconds(openNanos), reason);
+        transitionTo(State.OPEN);
+        openedAtNanos = ticker.read();
+        consecutiveFailures = 0;
+    }
+
+    private void transitionTo(final State newState) {
+        state = newState;
+        generation++;
+    }
+
+    /**
+     * Gets the current state. An open circuit whose open duration passed only becomes half-open when the next call asks for permission.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Builds a {@link CircuitBreaker}.
+     */
+    public static class Builder {
+        private String name = "the push service";
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long openNanos = TimeUnit.SECONDS.toNanos(DEFAULT_OPEN_DURATION_SECONDS);
+        private long maxOpenNanos = TimeUnit.SECONDS.toNanos(DEFAULT_MAX_OPEN_DURATION_SECONDS);
+        private Ticker ticker = Ticker.systemTicker();
+
+        /**
+         * The name of the service, used in logs and exception messages.
+         */
+        public Builder withName(final String name) {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * The number of consecutive failed calls after which the circuit opens. Defaults to {@value #DEFAULT_FAILURE_THRESHOLD}.
+         */
+        public Builder withFailureThreshold(final int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * The time the circuit stays open before the first probe. Defaults to {@value #DEFAULT_OPEN_DURATION_SECONDS} seconds.
+         */
+        public Builder withOpenDuration(final long openDuration, final TimeUnit unit) {
+            this.openNanos = unit.toNanos(openDuration);
+            return this;
+        }
+
+        /**
+         * The longest time the circuit stays open after failed probes. Defaults to {@value #DEFAULT_MAX_OPEN_DURATION_SECONDS} seconds.
+         */
+        public Builder withMaxOpenDuration(final long maxOpenDuration, final TimeUnit unit) {
+            this.maxOpenNanos = unit.toNanos(maxOpenDuration);
+            return this;
+        }
+
+        Builder withTicker(final Ticker ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            Preconditions.checkState(name != null, "A name is needed");
+            Preconditions.checkState(failureThreshold > 0, "The failure threshold should be positive");
+            Preconditions.checkState(openNanos > 0, "The open duration should be positive");
+            Preconditions.checkState(maxOpenNanos >= openNanos, "The max open duration should not be shorter than the open duration");
+            return new CircuitBreaker(this);
+        }
+    }
+}
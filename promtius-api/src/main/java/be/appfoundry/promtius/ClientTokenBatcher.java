@@ -0,0 +1,20 @@
+package be.appfoundry.promtius;
+
+/**
+ * A {@link ClientTokenVisitor} that collects the token values of the visited client tokens into batches. Each time a batch is full, it is handed to {@link
+ * #processBatch(java.util.List)}. Call {@link #flush()} once all tokens have been visited to process the last, partial batch.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the token send by a client.
+ * @author Mike Seghers
+ */
+public abstract class ClientTokenBatcher<CT extends ClientToken<T, ?>, T> extends MappingClientTokenBatcher<CT, T> {
+    protected ClientTokenBatcher(final int batchSize) {
+        super(batchSize);
+    }
+
+    @Override
+    protected T valueOf(final CT clientToken) {
+        return clientToken.getToken();
+    }
+}
@@ -0,0 +1,26 @@
+package be.appfoundry.promtius;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Receives the client tokens that a push service reported as unregistered or changed, so they can be updated in the {@link ClientTokenService}. Pushers report the feedback of
+ * a batch at once, from the thread sending the batch.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the token send by a client.
+ * @author Mike Seghers
+ * @see DirectClientTokenFeedback
+ * @see AsyncClientTokenFeedback
+ */
+public interface ClientTokenFeedback<CT extends ClientToken<T, ?>, T> {
+    /**
+     * Unregister all given client tokens.
+     */
+    void unregisterClientTokens(Collection<CT> clientTokens);
+
+    /**
+     * Replace the token value of every client token in the map's keys with the value it maps to.
+     */
+    void changeClientTokens(Map<CT, T> newTokenValues);
+}
@@ -0,0 +1,75 @@
+package be.appfoundry.promtius;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Helpers for looking up client tokens, streaming them when the {@link ClientTokenService} supports it, and for updating many client tokens at once, in bulk when the service
+ * supports it.
+ *
+ * @author Mike Seghers
+ */
+public final class ClientTokenServices {
+    private ClientTokenServices() {
+        throw new UnsupportedOperationException("You should not call the constructor of this class!");
+    }
+
+    /**
+     * Passes every client token for the given platform to the visitor. Tokens are streamed if the service is a {@link StreamingClientTokenService}, otherwise the complete list is
+     * looked up first.
+     */
+    public static <CT extends ClientToken<T, P>, T, P, G> void visitClientTokensForOperatingSystem(final ClientTokenService<CT, T, P, G> service, final P platform,
+                                                                                                   final ClientTokenVisitor<? super CT> visitor) {
+        if (service instanceof StreamingClientTokenService) {
+            ((StreamingClientTokenService<CT, T, P, G>) service).visitClientTokensForOperatingSystem(platform, visitor);
+        } else {
+            visitAll(service.findClientTokensForOperatingSystem(platform), visitor);
+        }
+    }
+
+    /**
+     * Passes every client token for the given platform within the given groups to the visitor. Tokens are streamed if the service is a {@link StreamingClientTokenService},
+     * otherwise the complete list is looked up first.
+     */
+    public static <CT extends ClientToken<T, P>, T, P, G> void visitClientTokensForOperatingSystem(final ClientTokenService<CT, T, P, G> service, final P platform,
+                                                                                                   final Collection<G> groups, final ClientTokenVisitor<? super CT> visitor) {
+        if (service instanceof StreamingClientTokenService) {
+            ((StreamingClientTokenService<CT, T, P, G>) service).visitClientTokensForOperatingSystem(platform, groups, visitor);
+        } else {
+            visitAll(service.findClientTokensForOperatingSystem(platform, groups), visitor);
+        }
+    }
+
+    /**
+     * Unregisters all given client tokens, in one call if the service is a {@link BulkClientTokenService}, otherwise one by one.
+     */
+    public static <CT extends ClientToken<T, P>, T, P> void unregisterClientTokens(final ClientTokenService<CT, T, P, ?> service, final Collection<CT> clientTokens) {
+        if (service instanceof BulkClientTokenService) {
+            ((BulkClientTokenService<CT, T, P, ?>) service).unregisterClientTokens(clientTokens);
+        } else {
+            for (CT clientToken : clientTokens) {
+                service.unregisterClientToken(clientToken);
+            }
+        }
+    }
+
+    /**
+     * Replaces the token value of every client token in the map's keys with the value it maps to, in one call if the service is a {@link BulkClientTokenService}, otherwise one
+     * by one.
+     */
+    public static <CT extends ClientToken<T, P>, T, P> void changeClientTokens(final ClientTokenService<CT, T, P, ?> service, final Map<CT, T> newTokenValues) {
+        if (service instanceof BulkClientTokenService) {
+            ((BulkClientTokenService<CT, T, P, ?>) service).changeClientTokens(newTokenValues);
+        } else {
+            for (Map.Entry<CT, T> entry : newTokenValues.entrySet()) {
+                service.changeClientToken(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static <CT> void visitAll(final Collection<CT> clientTokens, final ClientTokenVisitor<? super CT> visitor) {
+        for (CT clientToken : clientTokens) {
+            visitor.visit(clientToken);
+        }
+    }
+}
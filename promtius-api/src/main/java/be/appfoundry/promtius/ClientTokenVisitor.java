@@ -0,0 +1,14 @@
+package be.appfoundry.promtius;
+
+/**
+ * Receives client tokens one by one while a {@link StreamingClientTokenService} reads them from its store.
+ *
+ * @param <CT> The type of the ClientToken
+ * @author Mike Seghers
+ */
+public interface ClientTokenVisitor<CT> {
+    /**
+     * Called for every client token found.
+     */
+    void visit(CT clientToken);
+}
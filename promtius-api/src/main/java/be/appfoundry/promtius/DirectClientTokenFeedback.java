@@ -0,0 +1,34 @@
+package be.appfoundry.promtius;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * {@link ClientTokenFeedback} updating the {@link ClientTokenService} right away, on the calling thread. This is what pushers do by default.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the token send by a client.
+ * @param <P> The platform identifier type.
+ * @author Mike Seghers
+ */
+public final class DirectClientTokenFeedback<CT extends ClientToken<T, P>, T, P> implements ClientTokenFeedback<CT, T> {
+    private final ClientTokenService<CT, T, P, ?> clientTokenService;
+
+    public DirectClientTokenFeedback(final ClientTokenService<CT, T, P, ?> clientTokenService) {
+        this.clientTokenService = clientTokenService;
+    }
+
+    @Override
+    public void unregisterClientTokens(final Collection<CT> clientTokens) {
+        if (!clientTokens.isEmpty()) {
+            ClientTokenServices.unregisterClientTokens(clientTokenService, clientTokens);
+        }
+    }
+
+    @Override
+    public void changeClientTokens(final Map<CT, T> newTokenValues) {
+        if (!newTokenValues.isEmpty()) {
+            ClientTokenServices.changeClientTokens(clientTokenService, newTokenValues);
+        }
+    }
+}
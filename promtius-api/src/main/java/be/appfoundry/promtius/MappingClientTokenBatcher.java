@@ -0,0 +1,78 @@
+package be.appfoundry.promtius;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link ClientTokenVisitor} that collects a value mapped from each visited client token into batches. Each time a batch is full, it is handed to {@link
+ * #processBatch(List)}. Call {@link #flush()} once all tokens have been visited to process the last, partial batch.
+ * <p/>
+ * Use a {@link ClientTokenBatcher} to batch the token values themselves. Override {@link #getBatchSize()} to vary the size of the batches.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the batched values.
+ * @author Mike Seghers
+ */
+public abstract class MappingClientTokenBatcher<CT extends ClientToken<?, ?>, T> implements ClientTokenVisitor<CT> {
+    private final int batchSize;
+    private final List<T> batch;
+    private long batchProcessingNanos;
+
+    protected MappingClientTokenBatcher(final int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "Batch size should be positive");
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void visit(final CT clientToken) {
+        batch.add(valueOf(clientToken));
+        if (batch.size() >= getBatchSize()) {
+            flush();
+        }
+    }
+
+    /**
+     * Gets the number of tokens at which the collected batch is processed. Returns the batch size given at construction by default, which is checked again after every
+     * token, so an override can change it between batches.
+     */
+    protected int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Gets the value to batch for the given client token.
+     */
+    protected abstract T valueOf(CT clientToken);
+
+    /**
+     * Processes the tokens collected so far, if any.
+     */
+    public void flush() {
+        if (!batch.isEmpty()) {
+            List<T> fullBatch = Collections.unmodifiableList(new ArrayList<>(batch));
+            batch.clear();
+            long start = System.nanoTime();
+            try {
+                processBatch(fullBatch);
+            } finally {
+                batchProcessingNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Gets the total time spent in {@link #processBatch(List)} so far. Subtracting it from the time spent visiting all tokens gives the time spent looking them up.
+     */
+    public long getBatchProcessingNanos() {
+        return batchProcessingNanos;
+    }
+
+    /**
+     * Called with an unmodifiable batch of token values.
+     */
+    protected abstract void processBatch(List<T> batch);
+}
@@ -1,64 +1,157 @@
 package be.appfoundry.promtius;
 
 import be.appfoundry.promtius.exception.PushFailedException;
+import be.appfoundry.promtius.exception.PushTimeoutException;
+import be.appfoundry.promtius.metrics.NoOpPushMetrics;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * {@link PushAggregator} using {@link java.util.concurrent.FutureTask}s to push messages concurrently via injected {@link Pusher}s. Each given Pusher will get his own task. In
- * this way each pusher is run concurrently.
+ * {@link AsyncPushAggregator} using {@link java.util.concurrent.FutureTask}s to push messages concurrently via injected {@link Pusher}s. Each given Pusher will get his own task. In
+ * this way each pusher is run concurrently. The outcome of every pusher is reported through the {@link PushAggregatorResult} returned by the async methods.
+ * <p/>
+ * All tasks are executed on one long-lived executor, so the number of threads used by the aggregator stays constant no matter how many pushes are sent. Either inject your own
+ * executor through the {@link Builder}, or let the aggregator create a bounded thread pool. In both cases, call {@link #close()} when the aggregator is no longer needed.
+ * <p/>
+ * A pusher that hangs, on a connection that never answers for instance, would keep the push from ever finishing. Configure a pusher timeout, limiting how long each pusher
+ * may run, and/or a push timeout, limiting how long the whole push may take including the time pushers wait for a thread. A pusher exceeding either deadline is cancelled:
+ * it is interrupted when running, and it fails with a {@link PushTimeoutException}. The push then finishes right away, and trackers implementing {@link
+ * PusherAggregatorTimeoutTracker} are told about the timeout. Pushers blocked in I/O that ignores interrupts keep their thread until their own I/O timeouts kick in.
  *
  * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
  * @param <G> The type of the group identifier. A group identifier is used to put client tokens in a collection of groups, so that a push can be done to specific groups.
  * @author Mike Seghers
  */
-public class ParallelPushAggregator<P, G> implements PushAggregator<P, G> {
+public class ParallelPushAggregator<P, G> implements AsyncPushAggregator<P, G>, Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(ParallelPushAggregator.class);
 
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 30;
+    /**
+     * No deadline, the default for both the pusher and the push timeout.
+     */
+    public static final long NO_TIMEOUT = 0;
+
     private Set<Pusher<P, G>> pusherRegistry;
+    private final ListeningExecutorService service;
+    private final boolean ownsExecutor;
+    private final long shutdownTimeoutSeconds;
+    private final PushMetrics metrics;
+    private final long pusherTimeoutMillis;
+    private final long pushTimeoutMillis;
+    private final ScheduledExecutorService timeoutScheduler;
 
+    /**
+     * Creates an aggregator backed by a bounded thread pool with one thread per given pusher and an unbounded task queue.
+     */
     public ParallelPushAggregator(final Set<Pusher<P, G>> pusherRegistry) {
-        this.pusherRegistry = new HashSet<>(pusherRegistry);
+        this(new Builder<P, G>(pusherRegistry));
+    }
+
+    private ParallelPushAggregator(final Builder<P, G> builder) {
+        this.pusherRegistry = new HashSet<>(builder.pusherRegistry);
+        this.shutdownTimeoutSeconds = builder.shutdownTimeoutSeconds;
+        this.metrics = builder.metrics;
+        this.pusherTimeoutMillis = builder.pusherTimeoutMillis;
+        this.pushTimeoutMillis = builder.pushTimeoutMillis;
+        if (pusherTimeoutMillis > NO_TIMEOUT || pushTimeoutMillis > NO_TIMEOUT) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactoryBuilder().setNameFormat("promtius-aggregator-timeout-%d").setDaemon(true).build());
+            // most deadlines are cancelled because the pusher finished in time, don't keep them around until they expire
+            scheduler.setRemoveOnCancelPolicy(true);
+            this.timeoutScheduler = scheduler;
+        } else {
+            this.timeoutScheduler = null;
+        }
+        if (builder.executorService != null) {
+            this.service = MoreExecutors.listeningDecorator(builder.executorService);
+            this.ownsExecutor = false;
+        } else {
+            this.service = MoreExecutors.listeningDecorator(builder.createThreadPool());
+            this.ownsExecutor = true;
+        }
     }
 
     @Override
     public void sendPush(final PushPayload payload, final PusherAggregatorTracker tracker) {
-        LOGGER.debug("Sending payload via parallel aggregator");
-        sendPushUsingStrategy(tracker, new AllPushStrategy<P, G>(payload), pusherRegistry);
+        markTrackerWhenFinished(sendPushAsync(payload), tracker);
     }
 
     @Override
     public void sendPush(final PushPayload payload, final Collection<G> groups, final PusherAggregatorTracker tracker) {
-        LOGGER.debug("Sending payload via parallel aggregator for groups");
-        sendPushUsingStrategy(tracker, new GroupPushStrategy<P, G>(payload, groups), pusherRegistry);
+        markTrackerWhenFinished(sendPushAsync(payload, groups), tracker);
     }
 
     @Override
     public void sendPushToPlatforms(final PushPayload payload, final Collection<P> platforms, final PusherAggregatorTracker tracker) {
+        markTrackerWhenFinished(sendPushToPlatformsAsync(payload, platforms), tracker);
+    }
+
+    @Override
+    public void sendPushToPlatforms(final PushPayload payload, final Collection<P> platforms, final Collection<G> groups, final PusherAggregatorTracker tracker) {
+        markTrackerWhenFinished(sendPushToPlatformsAsync(payload, platforms, groups), tracker);
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushAsync(final PushPayload payload) {
+        LOGGER.debug("Sending payload via parallel aggregator");
+        return sendPushUsingStrategy(new AllPushStrategy<P, G>(payload), pusherRegistry);
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushAsync(final PushPayload payload, final Collection<G> groups) {
+        LOGGER.debug("Sending payload via parallel aggregator for groups");
+        return sendPushUsingStrategy(new GroupPushStrategy<P, G>(payload, groups), pusherRegistry);
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushToPlatformsAsync(final PushPayload payload, final Collection<P> platforms) {
         LOGGER.debug("Sending payload via parallel aggregator to specific platforms");
         Set<Pusher<P, G>> pushers = getPushersForPlatformsOrFailTrying(platforms);
-        sendPushUsingStrategy(tracker, new AllPushStrategy<P, G>(payload), pushers);
+        return sendPushUsingStrategy(new AllPushStrategy<P, G>(payload), pushers);
     }
 
     @Override
-    public void sendPushToPlatforms(final PushPayload payload, final Collection<P> platforms, final Collection<G> groups, final PusherAggregatorTracker tracker) {
+    public ListenableFuture<PushAggregatorResult<P>> sendPushToPlatformsAsync(final PushPayload payload, final Collection<P> platforms, final Collection<G> groups) {
         LOGGER.debug("Sending payload via parallel aggregator to specific platforms for groups");
         Set<Pusher<P, G>> pushers = getPushersForPlatformsOrFailTrying(platforms);
-        sendPushUsingStrategy(tracker, new GroupPushStrategy<P, G>(payload, groups), pushers);
+        return sendPushUsingStrategy(new GroupPushStrategy<P, G>(payload, groups), pushers);
     }
 
     private Set<Pusher<P, G>> getPushersForPlatformsOrFailTrying(final Collection<P> platforms) {
@@ -69,52 +162,231 @@ public class ParallelPushAggregator<P, G> implements PushAggregator<P, G> {
         return pushers;
     }
 
-    private void sendPushUsingStrategy(final PusherAggregatorTracker tracker, final PushStrategy<P, G> pushStrategy, final Set<Pusher<P, G>> pusherRegistry) {
-        ListeningExecutorService service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(pusherRegistry.size()));
-        PusherAggregatorTaskCallback callback = new PusherAggregatorTaskCallback(tracker, pusherRegistry.size());
+    /**
+     * Gracefully shuts down the executor this aggregator created itself: pushes that were already accepted are allowed to finish within the configured shutdown timeout, after
+     * which the remaining tasks are interrupted. An executor injected via {@link Builder#withExecutorService(ExecutorService)} is left untouched, its lifecycle belongs to the
+     * caller. Deadlines are no longer enforced once closed.
+     */
+    @Override
+    public void close() {
+        if (timeoutScheduler != null) {
+            timeoutScheduler.shutdownNow();
+        }
+        if (!ownsExecutor) {
+            return;
+        }
+        LOGGER.debug("Shutting down parallel aggregator executor");
+        service.shutdown();
+        try {
+            if (!service.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                LOGGER.warn("Pushes did not finish within {} seconds, interrupting them", shutdownTimeoutSeconds);
+                service.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            service.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ListenableFuture<PushAggregatorResult<P>> sendPushUsingStrategy(final PushStrategy<P, G> pushStrategy, final Set<Pusher<P, G>> pusherRegistry) {
+        PusherAggregatorTaskCallback<P> callback = new PusherAggregatorTaskCallback<>(pusherRegistry.size());
+        final List<PusherTask<P, G>> tasks = new ArrayList<>(pusherRegistry.size());
         for (final Pusher<P, G> p : pusherRegistry) {
             LOGGER.debug("Setting up task for pusher {}", p);
-            createListenableTaskAndExecuteForPusher(service, callback, pushStrategy.newRunnableForPusher(p));
+            PusherTask<P, G> task = new PusherTask<>(p, pushStrategy.newRunnableForPusher(p), callback, metrics, this);
+            tasks.add(task);
+            createListenableTaskAndExecuteForPusher(task);
+        }
+        ListenableFuture<PushAggregatorResult<P>> result = callback.getResult();
+        if (pushTimeoutMillis > NO_TIMEOUT && !result.isDone()) {
+            final ScheduledFuture<?> deadline = scheduleTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    for (PusherTask<P, G> task : tasks) {
+                        task.timeOut("push did not finish within " + pushTimeoutMillis + " ms");
+                    }
+                }
+            }, pushTimeoutMillis);
+            if (deadline != null) {
+                result.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        deadline.cancel(false);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Schedules the given timeout, returning null when it can't be enforced because the aggregator was closed.
+     */
+    private ScheduledFuture<?> scheduleTimeout(final Runnable timeout, final long delayMillis) {
+        try {
+            return timeoutScheduler.schedule(timeout, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Aggregator closed, not enforcing the timeout of {} ms", delayMillis);
+            return null;
         }
-        service.shutdown();
     }
 
-    private void createListenableTaskAndExecuteForPusher(final ListeningExecutorService service, final PusherAggregatorTaskCallback callback, final Runnable runnable) {
-        ListenableFutureTask<Boolean> task = ListenableFutureTask.create(runnable, Boolean.TRUE);
-        Futures.addCallback(task, callback);
-        service.execute(task);
+    private void createListenableTaskAndExecuteForPusher(final PusherTask<P, G> pusherTask) {
+        ListenableFutureTask<Boolean> task = ListenableFutureTask.create(pusherTask, Boolean.TRUE);
+        pusherTask.future = task;
+        Futures.addCallback(task, pusherTask);
+        try {
+            service.execute(task);
+            metrics.increment(PushMetricNames.PUSHES_STARTED, 1, PushMetricNames.TAG_PLATFORM, pusherTask.platformTag);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Push task rejected by the aggregator executor", e);
+            // cancelling the task reports it as a failure to the callback, so the aggregated result still completes
+            task.cancel(false);
+        }
     }
 
-    private static final class PusherAggregatorTaskCallback implements FutureCallback<Boolean> {
+    private void markTrackerWhenFinished(final ListenableFuture<PushAggregatorResult<P>> result, final PusherAggregatorTracker tracker) {
+        Futures.addCallback(result, new FutureCallback<PushAggregatorResult<P>>() {
+            @Override
+            public void onSuccess(final PushAggregatorResult<P> result) {
+                LOGGER.debug("Asking delegate to mark push aggregators as being finished.");
+                if (result.isTimedOut() && tracker instanceof PusherAggregatorTimeoutTracker) {
+                    ((PusherAggregatorTimeoutTracker) tracker).markTimedOut(result);
+                }
+                tracker.markFinished();
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                LOGGER.error("Aggregated push failed", t);
+                tracker.markFinished();
+            }
+        });
+    }
+
+    /**
+     * Runs a single pusher, timing it, and reports its outcome to the {@link PusherAggregatorTaskCallback} shared by all pushers of one push, and to the metrics. The pusher is
+     * cancelled when it runs longer than the pusher timeout, or when {@link #timeOut(String)} is called for the push timeout.
+     */
+    private static final class PusherTask<P, G> implements Runnable, FutureCallback<Boolean> {
+        private final Pusher<P, G> pusher;
+        private final Runnable delegate;
+        private final PusherAggregatorTaskCallback<P> callback;
+        private final PushMetrics metrics;
+        private final ParallelPushAggregator<P, G> aggregator;
+        private final String platformTag;
+        private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+        private ListenableFutureTask<Boolean> future;
+        private volatile String timeoutMessage;
+
+        private PusherTask(final Pusher<P, G> pusher, final Runnable delegate, final PusherAggregatorTaskCallback<P> callback, final PushMetrics metrics,
+                           final ParallelPushAggregator<P, G> aggregator) {
+            this.pusher = pusher;
+            this.delegate = delegate;
+            this.callback = callback;
+            this.metrics = metrics;
+            this.aggregator = aggregator;
+            this.platformTag = Joiner.on(',').join(pusher.getPlatforms());
+        }
+
+        @Override
+        public void run() {
+            stopwatch.start();
+            ScheduledFuture<?> deadline = null;
+            if (aggregator.pusherTimeoutMillis > NO_TIMEOUT) {
+                deadline = aggregator.scheduleTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeOut("pusher did not finish within " + aggregator.pusherTimeoutMillis + " ms");
+                    }
+                }, aggregator.pusherTimeoutMillis);
+            }
+            try {
+                delegate.run();
+            } finally {
+                stopwatch.stop();
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Cancels the pusher unless it already finished, interrupting it when running, and reports it as timed out.
+         */
+        private void timeOut(final String message) {
+            if (!future.isDone()) {
+                LOGGER.warn("Cancelling pusher {}: {}", pusher, message);
+                timeoutMessage = message;
+                future.cancel(true);
+            }
+        }
+
+        @Override
+        public void onSuccess(final Boolean result) {
+            recordFinished(PushMetricNames.OUTCOME_SUCCESS);
+            callback.onSuccess(newResult(Optional.<Throwable>absent()));
+        }
+
+        @Override
+        public void onFailure(final Throwable t) {
+            String message = timeoutMessage;
+            if (t instanceof CancellationException && message != null) {
+                PushTimeoutException timeout = new PushTimeoutException(message);
+                recordFinished(PushMetricNames.OUTCOME_TIMEOUT);
+                callback.onFailure(newResult(Optional.<Throwable>of(timeout)), timeout);
+            } else {
+                recordFinished(PushMetricNames.OUTCOME_FAILURE);
+                callback.onFailure(newResult(Optional.of(t)), t);
+            }
+        }
+
+        private void recordFinished(final String outcome) {
+            metrics.increment(PushMetricNames.PUSHES_FINISHED, 1, PushMetricNames.TAG_PLATFORM, platformTag, PushMetricNames.TAG_OUTCOME, outcome);
+            metrics.recordTime(PushMetricNames.PUSH_DURATION, stopwatch.elapsed(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS, PushMetricNames.TAG_PLATFORM, platformTag,
+                    PushMetricNames.TAG_OUTCOME, outcome);
+        }
+
+        private PusherResult<P> newResult(final Optional<Throwable> failure) {
+            return new PusherResult<>(pusher.toString(), ImmutableSet.copyOf(pusher.getPlatforms()), failure, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static final class PusherAggregatorTaskCallback<P> {
         private static final Logger LOGGER = LoggerFactory.getLogger(PusherAggregatorTaskCallback.class);
         private int taskCount;
         private int successCount;
         private int failureCount;
-        private PusherAggregatorTracker delegate;
+        private final List<PusherResult<P>> results = new ArrayList<>();
+        private final Stopwatch stopwatch = Stopwatch.createStarted();
+        private final SettableFuture<PushAggregatorResult<P>> result = SettableFuture.create();
 
-        public PusherAggregatorTaskCallback(final PusherAggregatorTracker delegate, final int taskCount) {
-            this.delegate = delegate;
+        public PusherAggregatorTaskCallback(final int taskCount) {
             this.taskCount = taskCount;
+            completeWhenFinished();
         }
 
-        @Override
-        public synchronized void onSuccess(final Boolean result) {
+        public synchronized void onSuccess(final PusherResult<P> pusherResult) {
             LOGGER.debug("Push success detected");
             successCount++;
-            markDelegateWhenFinished();
+            results.add(pusherResult);
+            completeWhenFinished();
         }
 
-        @Override
-        public synchronized void onFailure(final Throwable t) {
+        public synchronized void onFailure(final PusherResult<P> pusherResult, final Throwable t) {
             LOGGER.error("Push failure received", t);
             failureCount++;
-            markDelegateWhenFinished();
+            results.add(pusherResult);
+            completeWhenFinished();
         }
 
-        private void markDelegateWhenFinished() {
+        public ListenableFuture<PushAggregatorResult<P>> getResult() {
+            return result;
+        }
+
+        private void completeWhenFinished() {
             if (isFinished()) {
-                LOGGER.debug("Asking delegate to mark push aggregators as being finished.");
-                delegate.markFinished();
+                result.set(new PushAggregatorResult<>(results, stopwatch.elapsed(TimeUnit.MILLISECONDS)));
             }
         }
 
@@ -183,4 +455,119 @@ public class ParallelPushAggregator<P, G> implements PushAggregator<P, G> {
             return false;
         }
     }
+
+    /**
+     * Builds a {@link ParallelPushAggregator}. Either inject an executor, or configure the bounded thread pool the aggregator will create and own.
+     *
+     * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+     * @param <G> The type of the group identifier.
+     */
+    public static class Builder<P, G> {
+        private final Set<Pusher<P, G>> pusherRegistry;
+        private ExecutorService executorService;
+        private Optional<Integer> threadPoolSize = Optional.absent();
+        private int queueCapacity = Integer.MAX_VALUE;
+        private RejectedExecutionHandler rejectedExecutionHandler = new ThreadPoolExecutor.AbortPolicy();
+        private long keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+        private long shutdownTimeoutSeconds = DEFAULT_SHUTDOWN_TIMEOUT_SECONDS;
+        private PushMetrics metrics = NoOpPushMetrics.INSTANCE;
+        private long pusherTimeoutMillis = NO_TIMEOUT;
+        private long pushTimeoutMillis = NO_TIMEOUT;
+
+        public Builder(final Set<Pusher<P, G>> pusherRegistry) {
+            this.pusherRegistry = pusherRegistry;
+        }
+
+        /**
+         * Use the given executor for all pusher tasks. The caller remains responsible for shutting it down, all thread pool settings of this builder are ignored.
+         */
+        public Builder<P, G> withExecutorService(final ExecutorService executorService) {
+            this.executorService = executorService;
+            return this;
+        }
+
+        /**
+         * The fixed number of threads of the created pool. Defaults to the number of pushers.
+         */
+        public Builder<P, G> withThreadPoolSize(final int threadPoolSize) {
+            this.threadPoolSize = Optional.of(threadPoolSize);
+            return this;
+        }
+
+        /**
+         * The maximum number of pusher tasks waiting for a thread. Defaults to an unbounded queue.
+         */
+        public Builder<P, G> withQueueCapacity(final int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * The policy applied when the queue is full. Defaults to {@link ThreadPoolExecutor.AbortPolicy}, which reports the rejected pusher as failed to the tracker. Use
+         * {@link ThreadPoolExecutor.CallerRunsPolicy} to push back on the calling thread instead. Policies that silently discard tasks will prevent the tracker from finishing.
+         */
+        public Builder<P, G> withRejectedExecutionHandler(final RejectedExecutionHandler rejectedExecutionHandler) {
+            this.rejectedExecutionHandler = rejectedExecutionHandler;
+            return this;
+        }
+
+        /**
+         * How long idle threads of the created pool are kept around.
+         */
+        public Builder<P, G> withKeepAliveSeconds(final long keepAliveSeconds) {
+            this.keepAliveSeconds = keepAliveSeconds;
+            return this;
+        }
+
+        /**
+         * How long {@link ParallelPushAggregator#close()} waits for running pushes before interrupting them.
+         */
+        public Builder<P, G> withShutdownTimeoutSeconds(final long shutdownTimeoutSeconds) {
+            this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+            return this;
+        }
+
+        /**
+         * The metrics to which started and finished pushes are reported. Defaults to {@link NoOpPushMetrics}.
+         */
+        public Builder<P, G> withMetrics(final PushMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * How long each pusher may run, from the moment it gets a thread. A pusher running longer is cancelled and reported as timed out. Defaults to {@link #NO_TIMEOUT}.
+         */
+        public Builder<P, G> withPusherTimeout(final long timeout, final TimeUnit unit) {
+            this.pusherTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * How long a whole push may take, from the moment it is handed to the aggregator, including the time pushers wait for a thread. Pushers that did not finish by then are
+         * cancelled and reported as timed out. Defaults to {@link #NO_TIMEOUT}.
+         */
+        public Builder<P, G> withPushTimeout(final long timeout, final TimeUnit unit) {
+            this.pushTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public ParallelPushAggregator<P, G> build() {
+            Preconditions.checkState(pusherRegistry != null && !pusherRegistry.isEmpty(), "At least one pusher is needed");
+            Preconditions.checkState(metrics != null, "Metrics are needed, use NoOpPushMetrics to report nothing");
+            Preconditions.checkState(threadPoolSize.or(1) > 0, "Thread pool size should be positive");
+            Preconditions.checkState(queueCapacity > 0, "Queue capacity should be positive");
+            Preconditions.checkState(pusherTimeoutMillis >= NO_TIMEOUT, "Pusher timeout should not be negative");
+            Preconditions.checkState(pushTimeoutMillis >= NO_TIMEOUT, "Push timeout should not be negative");
+            return new ParallelPushAggregator<>(this);
+        }
+
+        private ThreadPoolExecutor createThreadPool() {
+            int poolSize = threadPoolSize.or(Math.max(1, pusherRegistry.size()));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, keepAliveSeconds, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactoryBuilder().setNameFormat("promtius-aggregator-%d").setDaemon(true).build(), rejectedExecutionHandler);
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
 }
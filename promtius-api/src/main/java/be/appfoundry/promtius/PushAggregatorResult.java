@@ -0,0 +1,100 @@
+package be.appfoundry.promtius;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.util.List;
+
+/**
+ * The aggregated outcome of a push done by a {@link PushAggregator}, holding a {@link PusherResult} for every pusher that took part in it.
+ *
+ * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+ * @author Mike Seghers
+ */
+public final class PushAggregatorResult<P> {
+    private final List<PusherResult<P>> pusherResults;
+    private final long durationMillis;
+
+    PushAggregatorResult(final List<PusherResult<P>> pusherResults, final long durationMillis) {
+        this.pusherResults = ImmutableList.copyOf(pusherResults);
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * The results of all pushers, in the order in which they finished.
+     */
+    public List<PusherResult<P>> getPusherResults() {
+        return pusherResults;
+    }
+
+    /**
+     * The results of the pushers serving the given platform.
+     */
+    public List<PusherResult<P>> getPusherResultsForPlatform(final P platform) {
+        return ImmutableList.copyOf(Iterables.filter(pusherResults, new Predicate<PusherResult<P>>() {
+            @Override
+            public boolean apply(final PusherResult<P> input) {
+                return input.getPlatforms().contains(platform);
+            }
+        }));
+    }
+
+    /**
+     * The results of the pushers that failed.
+     */
+    public List<PusherResult<P>> getFailedPusherResults() {
+        return ImmutableList.copyOf(Iterables.filter(pusherResults, new Predicate<PusherResult<P>>() {
+            @Override
+            public boolean apply(final PusherResult<P> input) {
+                return !input.isSuccess();
+            }
+        }));
+    }
+
+    /**
+     * The results of the pushers that were cancelled because they did not finish in time.
+     */
+    public List<PusherResult<P>> getTimedOutPusherResults() {
+        return ImmutableList.copyOf(Iterables.filter(pusherResults, new Predicate<PusherResult<P>>() {
+            @Override
+            public boolean apply(final PusherResult<P> input) {
+                return input.isTimedOut();
+            }
+        }));
+    }
+
+    /**
+     * Whether any pusher timed out.
+     */
+    public boolean isTimedOut() {
+        return !getTimedOutPusherResults().isEmpty();
+    }
+
+    public int getSuccessCount() {
+        return pusherResults.size() - getFailureCount();
+    }
+
+    public int getFailureCount() {
+        return getFailedPusherResults().size();
+    }
+
+    /**
+     * Whether every pusher succeeded.
+     */
+    public boolean isSuccess() {
+        return getFailureCount() == 0;
+    }
+
+    /**
+     * The time between handing the push to the aggregator and the last pusher finishing, in milliseconds.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "PushAggregatorResult(success=" + getSuccessCount() + ", failure=" + getFailureCount() + ", durationMillis=" + durationMillis + ", results=" + pusherResults + ")";
+    }
+}
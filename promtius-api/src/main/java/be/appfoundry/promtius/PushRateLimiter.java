@@ -0,0 +1,110 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.exception.PushFailedException;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the rate of messages and the number of concurrent requests sent to a push service, so a sender can use its quota without being throttled by the service.
+ * <p/>
+ * Messages are paced by a token bucket: permits are added at the configured rate, and up to one second worth of unused permits is kept for a burst. A request sending more
+ * messages than are available goes through right away, the requests after it wait for the bucket to fill up again. The number of requests in flight is capped separately.
+ * <p/>
+ * Pushers call {@link #acquire(int)} before every request and {@link #release()} once it got its response. Limits apply to everything sharing an instance: share one instance
+ * between all pushers sending to the same platform with the same credential, such as one GCM API key or one APNs certificate. Retries done by the sender itself are not
+ * limited.
+ *
+ * @author Mike Seghers
+ */
+public final class PushRateLimiter {
+    /**
+     * A limiter that never waits.
+     */
+    public static final PushRateLimiter UNLIMITED = new Builder().build();
+
+    /**
+     * How long the message rate is waited for at once. Guava's {@link RateLimiter} sleeps uninterruptibly, so it is only asked to wait this long, the rest of the wait is an
+     * interruptible sleep.
+     */
+    private static final long RATE_POLL_MILLIS = 10;
+
+    private final RateLimiter messageRate;
+    private final Semaphore requestsInFlight;
+
+    private PushRateLimiter(final Builder builder) {
+        this.messageRate = builder.messagesPerSecond > 0 ? RateLimiter.create(builder.messagesPerSecond) : null;
+        this.requestsInFlight = builder.maxConcurrentRequests > 0 ? new Semaphore(builder.maxConcurrentRequests, true) : null;
+    }
+
+    /**
+     * Waits until a request sending the given number of messages may go out. Every call should be followed by a {@link #release()} once the request finished.
+     * <p/>
+     * The wait can be interrupted, an interrupt is noticed within {@value #RATE_POLL_MILLIS} milliseconds.
+     *
+     * @throws PushFailedException when interrupted while waiting, with the interrupt flag restored. Nothing was acquired then, so {@link #release()} should not be called.
+     */
+    public void acquire(final int messages) {
+        Preconditions.checkArgument(messages > 0, "At least one message should be acquired");
+        if (requestsInFlight != null) {
+            try {
+                requestsInFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PushFailedException("interrupted while waiting for the rate limiter", e);
+            }
+        }
+        if (messageRate != null) {
+            try {
+                while (!messageRate.tryAcquire(messages, RATE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    TimeUnit.MILLISECONDS.sleep(RATE_POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                release();
+                Thread.currentThread().interrupt();
+                throw new PushFailedException("interrupted while waiting for the rate limiter", e);
+            }
+        }
+    }
+
+    /**
+     * Marks a request that was allowed by {@link #acquire(int)} as finished.
+     */
+    public void release() {
+        if (requestsInFlight != null) {
+            requestsInFlight.release();
+        }
+    }
+
+    /**
+     * Builds a {@link PushRateLimiter}. Both limits are off unless configured.
+     */
+    public static class Builder {
+        private double messagesPerSecond;
+        private int maxConcurrentRequests;
+
+        /**
+         * The number of messages per second sent on average.
+         */
+        public Builder withMessagesPerSecond(final double messagesPerSecond) {
+            this.messagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        /**
+         * The maximum number of requests in flight at once.
+         */
+        public Builder withMaxConcurrentRequests(final int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        public PushRateLimiter build() {
+            Preconditions.checkState(messagesPerSecond >= 0, "Messages per second should not be negative");
+            Preconditions.checkState(maxConcurrentRequests >= 0, "Max concurrent requests should not be negative");
+            return new PushRateLimiter(this);
+        }
+    }
+}
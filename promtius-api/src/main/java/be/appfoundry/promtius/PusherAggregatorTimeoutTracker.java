@@ -0,0 +1,16 @@
+package be.appfoundry.promtius;
+
+/**
+ * A {@link PusherAggregatorTracker} that is told explicitly when pushers did not finish within their deadline. The aggregator calls {@link
+ * #markTimedOut(PushAggregatorResult)} right before {@link #markFinished()}, and only when at least one pusher timed out.
+ *
+ * @author Mike Seghers
+ */
+public interface PusherAggregatorTimeoutTracker extends PusherAggregatorTracker {
+    /**
+     * Called by an aggregator when some of its pushers were cancelled because they did not finish in time.
+     *
+     * @param result the outcome of the push, see {@link PushAggregatorResult#getTimedOutPusherResults()} for the pushers that timed out.
+     */
+    void markTimedOut(PushAggregatorResult<?> result);
+}
@@ -0,0 +1,74 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.exception.PushTimeoutException;
+import com.google.common.base.Optional;
+
+import java.util.Set;
+
+/**
+ * The outcome of a single {@link Pusher} taking part in an aggregated push.
+ *
+ * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+ * @author Mike Seghers
+ */
+public final class PusherResult<P> {
+    private final String pusherName;
+    private final Set<P> platforms;
+    private final Optional<Throwable> failure;
+    private final long durationMillis;
+
+    PusherResult(final String pusherName, final Set<P> platforms, final Optional<Throwable> failure, final long durationMillis) {
+        this.pusherName = pusherName;
+        this.platforms = platforms;
+        this.failure = failure;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * A description of the pusher that produced this result.
+     */
+    public String getPusherName() {
+        return pusherName;
+    }
+
+    /**
+     * The platforms served by the pusher.
+     */
+    public Set<P> getPlatforms() {
+        return platforms;
+    }
+
+    /**
+     * Whether the pusher finished without throwing.
+     */
+    public boolean isSuccess() {
+        return !failure.isPresent();
+    }
+
+    /**
+     * Whether the pusher was cancelled because it did not finish within its deadline.
+     */
+    public boolean isTimedOut() {
+        return failure.isPresent() && failure.get() instanceof PushTimeoutException;
+    }
+
+    /**
+     * The exception thrown by the pusher, absent when it succeeded. A pusher that never got to run, because its task was rejected or cancelled, fails with a {@link
+     * java.util.concurrent.CancellationException}. A pusher that timed out fails with a {@link PushTimeoutException}.
+     */
+    public Optional<Throwable> getFailure() {
+        return failure;
+    }
+
+    /**
+     * How long the pusher was running, in milliseconds.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "PusherResult(pusher=" + pusherName + ", platforms=" + platforms + ", success=" + isSuccess() + ", durationMillis=" + durationMillis + ")";
+    }
+}
@@ -0,0 +1,439 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.PushPayload.PushPriority;
+import be.appfoundry.promtius.exception.PushRejectedException;
+import be.appfoundry.promtius.metrics.NoOpPushMetrics;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link AsyncPushAggregator} queuing pushes in front of another aggregator, with one bounded lane per {@link PushPriority}. Dispatch workers hand the queued pushes to the delegate
+ * one at a time, waiting for each push to finish before taking the next one, always taking {@link PushPriority#HIGH} pushes first. Some workers can be reserved for high
+ * priority pushes, so these get through within milliseconds even while long broadcasts are draining.
+ * <p/>
+ * When a lane is full, a push is either rejected right away or blocks the caller until there is room, see {@link OverflowPolicy}. A rejected push throws a {@link
+ * PushRejectedException} and is not sent to anyone. A high priority push is never blocked by a full normal priority lane.
+ * <p/>
+ * The delegate should be able to run a push for every dispatch worker at the same time, e.g. a {@link ParallelPushAggregator} with at least as many threads as workers times
+ * pushers, otherwise high priority pushes still wait in the delegate's own queue. Call {@link #close()} when the aggregator is no longer needed. The delegate is not closed.
+ *
+ * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+ * @param <G> The type of the group identifier. A group identifier is used to put client tokens in a collection of groups, so that a push can be done to specific groups.
+ * @author Mike Seghers
+ */
+public class QueuingPushAggregator<P, G> implements AsyncPushAggregator<P, G>, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueuingPushAggregator.class);
+
+    public static final int DEFAULT_LANE_CAPACITY = 1000;
+    public static final int DEFAULT_WORKERS = 1;
+    public static final int DEFAULT_HIGH_PRIORITY_WORKERS = 1;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * What to do with a push when the lane of its priority is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Reject the push right away.
+         */
+        REJECT,
+        /**
+         * Block the caller until there is room in the lane, rejecting the push if the block timeout passes first.
+         */
+        BLOCK
+    }
+
+    private final AsyncPushAggregator<P, G> delegate;
+    private final Map<PushPriority, Deque<QueuedPush<P, G>>> lanes = new EnumMap<>(PushPriority.class);
+    private final Map<PushPriority, Integer> laneCapacities;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final long shutdownTimeoutSeconds;
+    private final PushMetrics metrics;
+    private final ExecutorService workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+
+    private QueuingPushAggregator(final Builder<P, G> builder) {
+        this.delegate = builder.delegate;
+        this.laneCapacities = new EnumMap<>(builder.laneCapacities);
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeoutMillis = builder.blockTimeoutMillis;
+        this.shutdownTimeoutSeconds = builder.shutdownTimeoutSeconds;
+        this.metrics = builder.metrics;
+        for (PushPriority priority : PushPriority.values()) {
+            lanes.put(priority, new ArrayDeque<QueuedPush<P, G>>());
+        }
+        this.workers = Executors.newFixedThreadPool(builder.workers + builder.highPriorityWorkers,
+                new ThreadFactoryBuilder().setNameFormat("promtius-queue-%d").setDaemon(true).build());
+        for (int i = 0; i < builder.workers; i++) {
+            workers.execute(new DispatchWorker(false));
+        }
+        for (int i = 0; i < builder.highPriorityWorkers; i++) {
+            workers.execute(new DispatchWorker(true));
+        }
+    }
+
+    @Override
+    public void sendPush(final PushPayload payload, final PusherAggregatorTracker tracker) {
+        markTrackerWhenFinished(sendPushAsync(payload), tracker);
+    }
+
+    @Override
+    public void sendPush(final PushPayload payload, final Collection<G> groups, final PusherAggregatorTracker tracker) {
+        markTrackerWhenFinished(sendPushAsync(payload, groups), tracker);
+    }
+
+    @Override
+    public void sendPushToPlatforms(final PushPayload payload, final Collection<P> platforms, final PusherAggregatorTracker tracker) {
+        markTrackerWhenFinished(sendPushToPlatformsAsync(payload, platforms), tracker);
+    }
+
+    @Override
+    public void sendPushToPlatforms(final PushPayload payload, final Collection<P> platforms, final Collection<G> groups, final PusherAggregatorTracker tracker) {
+        markTrackerWhenFinished(sendPushToPlatformsAsync(payload, platforms, groups), tracker);
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushAsync(final PushPayload payload) {
+        return enqueue(new QueuedPush<P, G>(payload) {
+            @Override
+            ListenableFuture<PushAggregatorResult<P>> dispatch(final AsyncPushAggregator<P, G> aggregator) {
+                return aggregator.sendPushAsync(payload);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushAsync(final PushPayload payload, final Collection<G> groups) {
+        return enqueue(new QueuedPush<P, G>(payload) {
+            @Override
+            ListenableFuture<PushAggregatorResult<P>> dispatch(final AsyncPushAggregator<P, G> aggregator) {
+                return aggregator.sendPushAsync(payload, groups);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushToPlatformsAsync(final PushPayload payload, final Collection<P> platforms) {
+        return enqueue(new QueuedPush<P, G>(payload) {
+            @Override
+            ListenableFuture<PushAggregatorResult<P>> dispatch(final AsyncPushAggregator<P, G> aggregator) {
+                return aggregator.sendPushToPlatformsAsync(payload, platforms);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<PushAggregatorResult<P>> sendPushToPlatformsAsync(final PushPayload payload, final Collection<P> platforms, final Collection<G> groups) {
+        return enqueue(new QueuedPush<P, G>(payload) {
+            @Override
+            ListenableFuture<PushAggregatorResult<P>> dispatch(final AsyncPushAggregator<P, G> aggregator) {
+                return aggregator.sendPushToPlatformsAsync(payload, platforms, groups);
+            }
+        });
+    }
+
+    /**
+     * Gets the number of pushes of the given priority waiting to be dispatched.
+     */
+    public int getQueuedPushes(final PushPriority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting pushes, and lets the workers dispatch the pushes that were already queued within the configured shutdown timeout. After that the workers are interrupted,
+     * and pushes that are still queued are cancelled.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                LOGGER.warn("Queued pushes were not dispatched within {} seconds, cancelling them", shutdownTimeoutSeconds);
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        cancelQueuedPushes();
+    }
+
+    private ListenableFuture<PushAggregatorResult<P>> enqueue(final QueuedPush<P, G> push) {
+        PushPriority priority = push.priority;
+        lock.lock();
+        try {
+            Deque<QueuedPush<P, G>> lane = lanes.get(priority);
+            long remainingNanos = overflowPolicy == OverflowPolicy.BLOCK ? TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis) : 0;
+            while (!closed && lane.size() >= laneCapacities.get(priority)) {
+                if (remainingNanos <= 0) {
+                    metrics.increment(PushMetricNames.PUSHES_REJECTED, 1, PushMetricNames.TAG_PRIORITY, priority.name());
+                    throw new PushRejectedException("The queue of " + priority + " priority pushes is full, rejecting " + push.payload);
+                }
+                remainingNanos = notFull.awaitNanos(remainingNanos);
+            }
+            if (closed) {
+                throw new PushRejectedException("The queuing aggregator is closed, rejecting " + push.payload);
+            }
+            lane.addLast(push);
+            // some workers only wait for high priority pushes, so all of them are woken up
+            notEmpty.signalAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PushRejectedException("Interrupted while waiting for room in the queue, rejecting " + push.payload, e);
+        } finally {
+            lock.unlock();
+        }
+        return push.result;
+    }
+
+    /**
+     * Takes the next push to dispatch, waiting for one if needed.
+     *
+     * @return the push, or {@literal null} once the aggregator is closed and the lanes the worker takes from are empty.
+     */
+    private QueuedPush<P, G> take(final boolean highPriorityOnly) throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                QueuedPush<P, G> push = lanes.get(PushPriority.HIGH).pollFirst();
+                if (push == null && !highPriorityOnly) {
+                    push = lanes.get(PushPriority.NORMAL).pollFirst();
+                }
+                if (push != null) {
+                    notFull.signalAll();
+                    return push;
+                }
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch(final QueuedPush<P, G> push) throws InterruptedException {
+        metrics.recordTime(PushMetricNames.QUEUE_WAIT, System.nanoTime() - push.enqueuedNanos, TimeUnit.NANOSECONDS, PushMetricNames.TAG_PRIORITY, push.priority.name());
+        if (push.result.isCancelled()) {
+            return;
+        }
+        try {
+            push.result.set(push.dispatch(delegate).get());
+        } catch (ExecutionException e) {
+            push.result.setException(e.getCause());
+        } catch (InterruptedException e) {
+            push.result.cancel(false);
+            throw e;
+        } catch (Throwable t) {
+            // errors too fail only this push, the worker keeps dispatching so no capacity is lost
+            LOGGER.error("Dispatching queued push failed", t);
+            push.result.setException(t);
+        }
+    }
+
+    private void cancelQueuedPushes() {
+        lock.lock();
+        try {
+            for (Deque<QueuedPush<P, G>> lane : lanes.values()) {
+                for (QueuedPush<P, G> push : lane) {
+                    push.result.cancel(false);
+                }
+                lane.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void markTrackerWhenFinished(final ListenableFuture<PushAggregatorResult<P>> result, final PusherAggregatorTracker tracker) {
+        Futures.addCallback(result, new FutureCallback<PushAggregatorResult<P>>() {
+            @Override
+            public void onSuccess(final PushAggregatorResult<P> result) {
+                if (result.isTimedOut() && tracker instanceof PusherAggregatorTimeoutTracker) {
+                    ((PusherAggregatorTimeoutTracker) tracker).markTimedOut(result);
+                }
+                tracker.markFinished();
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                LOGGER.error("Queued push failed", t);
+                tracker.markFinished();
+            }
+        });
+    }
+
+    /**
+     * Dispatches queued pushes one at a time, until the aggregator is closed and there is nothing left to dispatch.
+     */
+    private final class DispatchWorker implements Runnable {
+        private final boolean highPriorityOnly;
+
+        private DispatchWorker(final boolean highPriorityOnly) {
+            this.highPriorityOnly = highPriorityOnly;
+        }
+
+        @Override
+        public void run() {
+            try {
+                QueuedPush<P, G> push;
+                while ((push = take(highPriorityOnly)) != null) {
+                    dispatch(push);
+                }
+            } catch (InterruptedException e) {
+                LOGGER.debug("Dispatch worker interrupted, stopping");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A push waiting in its lane, together with the future reported to the caller.
+     */
+    private abstract static class QueuedPush<P, G> {
+        private final PushPayload payload;
+        private final PushPriority priority;
+        private final long enqueuedNanos = System.nanoTime();
+        private final SettableFuture<PushAggregatorResult<P>> result = SettableFuture.create();
+
+        private QueuedPush(final PushPayload payload) {
+            this.payload = payload;
+            this.priority = payload.getPushPriority();
+        }
+
+        abstract ListenableFuture<PushAggregatorResult<P>> dispatch(AsyncPushAggregator<P, G> aggregator);
+    }
+
+    /**
+     * Builds a {@link QueuingPushAggregator} in front of another aggregator.
+     *
+     * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+     * @param <G> The type of the group identifier.
+     */
+    public static class Builder<P, G> {
+        private final AsyncPushAggregator<P, G> delegate;
+        private final Map<PushPriority, Integer> laneCapacities = new EnumMap<>(PushPriority.class);
+        private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+        private long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+        private int workers = DEFAULT_WORKERS;
+        private int highPriorityWorkers = DEFAULT_HIGH_PRIORITY_WORKERS;
+        private long shutdownTimeoutSeconds = DEFAULT_SHUTDOWN_TIMEOUT_SECONDS;
+        private PushMetrics metrics = NoOpPushMetrics.INSTANCE;
+
+        public Builder(final AsyncPushAggregator<P, G> delegate) {
+            this.delegate = delegate;
+            for (PushPriority priority : PushPriority.values()) {
+                laneCapacities.put(priority, DEFAULT_LANE_CAPACITY);
+            }
+        }
+
+        /**
+         * The maximum number of queued pushes of the given priority. Defaults to {@value #DEFAULT_LANE_CAPACITY}.
+         */
+        public Builder<P, G> withLaneCapacity(final PushPriority priority, final int capacity) {
+            laneCapacities.put(priority, capacity);
+            return this;
+        }
+
+        /**
+         * What to do with a push when its lane is full. Defaults to {@link OverflowPolicy#REJECT}.
+         */
+        public Builder<P, G> withOverflowPolicy(final OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * How long a caller is blocked by {@link OverflowPolicy#BLOCK} before the push is rejected. Defaults to {@value #DEFAULT_BLOCK_TIMEOUT_MILLIS} milliseconds.
+         */
+        public Builder<P, G> withBlockTimeoutMillis(final long blockTimeoutMillis) {
+            this.blockTimeoutMillis = blockTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * The number of workers dispatching pushes of any priority, high priority first. Defaults to {@value #DEFAULT_WORKERS}.
+         */
+        public Builder<P, G> withWorkers(final int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * The number of extra workers that only dispatch {@link PushPriority#HIGH} pushes. Defaults to {@value #DEFAULT_HIGH_PRIORITY_WORKERS}.
+         */
+        public Builder<P, G> withHighPriorityWorkers(final int highPriorityWorkers) {
+            this.highPriorityWorkers = highPriorityWorkers;
+            return this;
+        }
+
+        /**
+         * How long {@link QueuingPushAggregator#close()} waits for queued pushes before cancelling them.
+         */
+        public Builder<P, G> withShutdownTimeoutSeconds(final long shutdownTimeoutSeconds) {
+            this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+            return this;
+        }
+
+        /**
+         * The metrics to which rejected pushes and the time pushes waited in the queue are reported. Defaults to {@link NoOpPushMetrics}.
+         */
+        public Builder<P, G> withMetrics(final PushMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public QueuingPushAggregator<P, G> build() {
+            Preconditions.checkState(delegate != null, "A delegate aggregator is needed");
+            for (Integer capacity : laneCapacities.values()) {
+                Preconditions.checkState(capacity > 0, "Lane capacities should be positive");
+            }
+            Preconditions.checkState(overflowPolicy != null, "An overflow policy is needed");
+            Preconditions.checkState(blockTimeoutMillis >= 0, "Block timeout should not be negative");
+            Preconditions.checkState(workers > 0, "At least one worker is needed");
+            Preconditions.checkState(highPriorityWorkers >= 0, "The number of high priority workers should not be negative");
+            Preconditions.checkState(metrics != null, "Metrics are needed, use NoOpPushMetrics to report nothing");
+            return new QueuingPushAggregator<>(this);
+        }
+    }
+}
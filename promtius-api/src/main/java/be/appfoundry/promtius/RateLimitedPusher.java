@@ -0,0 +1,50 @@
+package be.appfoundry.promtius;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Decorates a {@link Pusher} so every push waits for a {@link PushRateLimiter}, counting as a single message. Use it to cap the number of pushes per second and the number of
+ * pushes in flight for a pusher that has no rate limiter of its own. Pushers that send in batches, such as the GCM and APNs pushers, take a rate limiter themselves, which
+ * counts every token.
+ *
+ * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
+ * @param <G> The type of the group identifier.
+ * @author Mike Seghers
+ */
+public class RateLimitedPusher<P, G> implements Pusher<P, G> {
+    private final Pusher<P, G> delegate;
+    private final PushRateLimiter rateLimiter;
+
+    public RateLimitedPusher(final Pusher<P, G> delegate, final PushRateLimiter rateLimiter) {
+        this.delegate = Preconditions.checkNotNull(delegate, "A pusher is needed");
+        this.rateLimiter = Preconditions.checkNotNull(rateLimiter, "A rate limiter is needed");
+    }
+
+    @Override
+    public void sendPush(final PushPayload payload) {
+        rateLimiter.acquire(1);
+        try {
+            delegate.sendPush(payload);
+        } finally {
+            rateLimiter.release();
+        }
+    }
+
+    @Override
+    public void sendPush(final PushPayload payload, final Collection<G> groups) {
+        rateLimiter.acquire(1);
+        try {
+            delegate.sendPush(payload, groups);
+        } finally {
+            rateLimiter.release();
+        }
+    }
+
+    @Override
+    public Set<P> getPlatforms() {
+        return delegate.getPlatforms();
+    }
+}
@@ -0,0 +1,27 @@
+package be.appfoundry.promtius;
+
+import java.util.Collection;
+
+/**
+ * A {@link ClientTokenService} that can hand out client tokens while it is still reading them, instead of materialising the complete list first. Pushers use this variant when
+ * available, so the first notifications go out while the rest of the audience is still being read, and memory usage does not grow with the size of the audience.
+ *
+ * @param <CT> The type of the ClientToken
+ * @param <T> The type of the token send by a client.
+ * @param <P> The platform identifier type.
+ * @param <G> The type of the group identifier.
+ * @author Mike Seghers
+ * @see ClientTokenServices
+ */
+public interface StreamingClientTokenService<CT extends ClientToken<T, P>, T, P, G> extends ClientTokenService<CT, T, P, G> {
+    /**
+     * Passes every client token for the given platform to the visitor, in the calling thread. The method only returns once all tokens have been visited, so implementations can
+     * safely release cursors or connections afterwards.
+     */
+    void visitClientTokensForOperatingSystem(P platform, ClientTokenVisitor<? super CT> visitor);
+
+    /**
+     * Passes every client token for the given platform within the given groups to the visitor, in the calling thread.
+     */
+    void visitClientTokensForOperatingSystem(P platform, Collection<G> groups, ClientTokenVisitor<? super CT> visitor);
+}
@@ -0,0 +1,12 @@
+package be.appfoundry.promtius.exception;
+
+/**
+ * Thrown instead of calling a push service while its {@link be.appfoundry.promtius.CircuitBreaker} is open, so the push fails right away during an outage.
+ *
+ * @author Mike Seghers
+ */
+public class CircuitOpenException extends PushFailedException {
+    public CircuitOpenException(final String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,16 @@
+package be.appfoundry.promtius.exception;
+
+/**
+ * Thrown when a push is not accepted, because the queue it should wait in is full or closed. The push was not sent to anyone.
+ *
+ * @author Mike Seghers
+ */
+public class PushRejectedException extends PushFailedException {
+    public PushRejectedException(final String s) {
+        super(s);
+    }
+
+    public PushRejectedException(final String s, final Throwable throwable) {
+        super(s, throwable);
+    }
+}
@@ -0,0 +1,12 @@
+package be.appfoundry.promtius.exception;
+
+/**
+ * Reported as the failure of a pusher that did not finish within its deadline. The pusher was cancelled, interrupting it if it was running.
+ *
+ * @author Mike Seghers
+ */
+public class PushTimeoutException extends PushFailedException {
+    public PushTimeoutException(final String s) {
+        super(s);
+    }
+}
@@ -0,0 +1,354 @@
+package be.appfoundry.promtius.journal;
+
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.exception.PromtiusException;
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * {@link PushJournal} appending its records to a file. Every record is checksummed, and by default forced to the disk before the call returns, so a record that was
+ * written survives a crash of the JVM or the machine.
+ * <p/>
+ * The journal is read when it is opened: a record torn by a crash, and anything after it, is dropped. The file is then compacted to the unfinished pushes, so it only grows
+ * with the pushes sent since it was opened. The custom fields of a payload and the groups of a push are stored with Java serialization, and should therefore be {@link
+ * java.io.Serializable}. A push whose custom fields or groups can no longer be deserialized, for instance because their classes changed, is logged and dropped.
+ * <p/>
+ * Failing to record the start of a push throws a {@link PromtiusException}, so the push fails before anything was sent. Failing to record its progress is only logged: after
+ * a crash, the batches that were not recorded are sent again.
+ *
+ * @author Mike Seghers
+ */
+public final class FilePushJournal implements PushJournal, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilePushJournal.class);
+
+    private static final byte PUSH_STARTED = 1;
+    private static final byte BATCH_COMPLETED = 2;
+    private static final byte PUSH_FINISHED = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final File file;
+    private final boolean forceEveryRecord;
+    private final Map<String, Entry> unfinishedPushes = new LinkedHashMap<>();
+    private final FileChannel channel;
+
+    /**
+     * Opens the journal in the given file, creating it if needed, and forcing every record to the disk.
+     */
+    public FilePushJournal(final File file) throws IOException {
+        this(file, true);
+    }
+
+    /**
+     * Opens the journal in the given file, creating it if needed.
+     *
+     * @param forceEveryRecord whether every record is forced to the disk. If not, records that were not written to the disk by the operating system yet are lost when the
+     *                         machine crashes, but not when only the JVM does.
+     */
+    public FilePushJournal(final File file, final boolean forceEveryRecord) throws IOException {
+        this.file = file;
+        this.forceEveryRecord = forceEveryRecord;
+        replay();
+        compact();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized String pushStarted(final String pusher, final PushPayload payload, final Collection<?> groups) {
+        String pushId = UUID.randomUUID().toString();
+        try {
+            byte[] record = pushStartedRecord(pushId, pusher, payload, groups);
+            append(record);
+            unfinishedPushes.put(pushId, new Entry(record, pusher, payload, groups));
+        } catch (IOException e) {
+            throw new PromtiusException("Could not journal the start of push " + payload, e);
+        }
+        return pushId;
+    }
+
+    @Override
+    public synchronized void batchCompleted(final String pushId, final int batchIndex) {
+        Entry entry = unfinishedPushes.get(pushId);
+        if (entry == null) {
+            LOGGER.warn("Ignoring completed batch {} of push {}, which is not journaled as unfinished", batchIndex, pushId);
+            return;
+        }
+        try {
+            append(batchCompletedRecord(pushId, batchIndex));
+            entry.completedBatches.add(batchIndex);
+        } catch (IOException e) {
+            LOGGER.error("Could not journal completed batch " + batchIndex + " of push " + pushId, e);
+        }
+    }
+
+    @Override
+    public synchronized void pushFinished(final String pushId) {
+        if (unfinishedPushes.remove(pushId) == null) {
+            return;
+        }
+        try {
+            append(record(PUSH_FINISHED, pushId).toByteArray());
+        } catch (IOException e) {
+            LOGGER.error("Could not journal the end of push " + pushId, e);
+        }
+    }
+
+    @Override
+    public synchronized List<JournaledPush> getUnfinishedPushes(final String pusher) {
+        List<JournaledPush> pushes = new ArrayList<>();
+        for (Map.Entry<String, Entry> unfinishedPush : unfinishedPushes.entrySet()) {
+            Entry entry = unfinishedPush.getValue();
+            if (entry.pusher.equals(pusher)) {
+                pushes.add(new JournaledPush(unfinishedPush.getKey(), entry.pusher, entry.payload, entry.groups, entry.completedBatches));
+            }
+        }
+        return pushes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void append(final byte[] record) throws IOException {
+        write(channel, record);
+        if (forceEveryRecord) {
+            channel.force(false);
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                apply(record);
+            }
+        }
+        LOGGER.info("Push journal {} has {} unfinished pushes", file, unfinishedPushes.size());
+    }
+
+    /**
+     * Reads the next record, or returns {@literal null} at the end of the journal, or at a record that was torn by a crash.
+     */
+    private byte[] readRecord(final DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                LOGGER.warn("Invalid record length {} in push journal {}, ignoring the rest of the journal", length, file);
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            if (checksum(record) != checksum) {
+                LOGGER.warn("Corrupt record in push journal {}, ignoring the rest of the journal", file);
+                return null;
+            }
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void apply(final byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String pushId = readString(in);
+        switch (type) {
+            case PUSH_STARTED:
+                String pusher = readString(in);
+                try {
+                    PushPayload payload = readPayload(in);
+                    Collection<?> groups = (Collection<?>) readObject(in);
+                    unfinishedPushes.put(pushId, new Entry(record, pusher, payload, groups));
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Could not read unfinished push " + pushId + " of " + pusher + " in push journal " + file + ", it will not be resumed", e);
+                }
+                break;
+            case BATCH_COMPLETED:
+                Entry entry = unfinishedPushes.get(pushId);
+                if (entry != null) {
+                    entry.completedBatches.add(in.readInt());
+                }
+                break;
+            case PUSH_FINISHED:
+                unfinishedPushes.remove(pushId);
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " in push journal " + file);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the records of the unfinished pushes, replacing the old file at once.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".compacting");
+        try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Entry> unfinishedPush : unfinishedPushes.entrySet()) {
+                write(out, unfinishedPush.getValue().startedRecord);
+                for (Integer batchIndex : unfinishedPush.getValue().completedBatches) {
+                    write(out, batchCompletedRecord(unfinishedPush.getKey(), batchIndex));
+                }
+            }
+            out.force(true);
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(final FileChannel out, final byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt(checksum(record)).put(record).flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static int checksum(final byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] pushStartedRecord(final String pushId, final String pusher, final PushPayload payload, final Collection<?> groups) throws IOException {
+        RecordWriter record = record(PUSH_STARTED, pushId);
+        writeString(record.out, pusher);
+        writeString(record.out, payload.getMessage());
+        writeString(record.out, payload.getSound());
+        writeString(record.out, payload.getDiscriminator());
+        writeString(record.out, payload.getPushPriority().name());
+        record.out.writeBoolean(payload.getTimeToLive().isPresent());
+        if (payload.getTimeToLive().isPresent()) {
+            record.out.writeInt(payload.getTimeToLive().get());
+        }
+        writeObject(record.out, payload.getCustomFields().isPresent() ? new HashMap<>(payload.getCustomFields().get()) : null);
+        writeObject(record.out, groups == null ? null : new ArrayList<>(groups));
+        return record.toByteArray();
+    }
+
+    private static byte[] batchCompletedRecord(final String pushId, final int batchIndex) throws IOException {
+        RecordWriter record = record(BATCH_COMPLETED, pushId);
+        record.out.writeInt(batchIndex);
+        return record.toByteArray();
+    }
+
+    private static RecordWriter record(final byte type, final String pushId) throws IOException {
+        RecordWriter record = new RecordWriter();
+        record.out.writeByte(type);
+        writeString(record.out, pushId);
+        return record;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PushPayload readPayload(final DataInputStream in) throws IOException {
+        PushPayload.Builder builder = new PushPayload.Builder()
+                .withMessage(readString(in))
+                .withSound(readString(in))
+                .withDiscriminator(readString(in))
+                .withPushPriority(PushPayload.PushPriority.valueOf(readString(in)));
+        if (in.readBoolean()) {
+            builder.withTimeToLive(in.readInt());
+        }
+        Map<String, ?> customFields = (Map<String, ?>) readObject(in);
+        if (customFields != null) {
+            builder.withCustomFields(customFields);
+        }
+        return builder.build();
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeObject(final DataOutputStream out, final Object value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+                objectOut.writeObject(value);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private static Object readObject(final DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return objectIn.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not read journaled object", e);
+        }
+    }
+
+    private static final class RecordWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * An unfinished push, with the record it was started with, so it can be written again when compacting.
+     */
+    private static final class Entry {
+        private final byte[] startedRecord;
+        private final String pusher;
+        private final PushPayload payload;
+        private final Collection<?> groups;
+        private final Set<Integer> completedBatches = new LinkedHashSet<>();
+
+        private Entry(final byte[] startedRecord, final String pusher, final PushPayload payload, final Collection<?> groups) {
+            this.startedRecord = startedRecord;
+            this.pusher = pusher;
+            this.payload = payload;
+            this.groups = groups;
+        }
+    }
+}
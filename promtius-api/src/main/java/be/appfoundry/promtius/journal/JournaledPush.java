@@ -0,0 +1,61 @@
+package be.appfoundry.promtius.journal;
+
+import be.appfoundry.promtius.PushPayload;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A push recorded in a {@link PushJournal}, together with the batches that were acknowledged so far.
+ *
+ * @author Mike Seghers
+ */
+public final class JournaledPush {
+    private final String id;
+    private final String pusher;
+    private final PushPayload payload;
+    private final Optional<Collection<?>> groups;
+    private final Set<Integer> completedBatches;
+
+    public JournaledPush(final String id, final String pusher, final PushPayload payload, final Collection<?> groups, final Set<Integer> completedBatches) {
+        this.id = id;
+        this.pusher = pusher;
+        this.payload = payload;
+        this.groups = groups == null ? Optional.<Collection<?>>absent() : Optional.<Collection<?>>of(ImmutableList.copyOf(groups));
+        this.completedBatches = ImmutableSet.copyOf(completedBatches);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPusher() {
+        return pusher;
+    }
+
+    public PushPayload getPayload() {
+        return payload;
+    }
+
+    /**
+     * The groups the push is sent to, absent if it is sent to everyone.
+     */
+    public Optional<Collection<?>> getGroups() {
+        return groups;
+    }
+
+    /**
+     * The indexes of the batches that were acknowledged, and should not be sent again.
+     */
+    public Set<Integer> getCompletedBatches() {
+        return completedBatches;
+    }
+
+    @Override
+    public String toString() {
+        return "JournaledPush(id=" + id + ", pusher=" + pusher + ", completedBatches=" + completedBatches.size() + ")";
+    }
+}
@@ -0,0 +1,39 @@
+package be.appfoundry.promtius.journal;
+
+import be.appfoundry.promtius.PushPayload;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link PushJournal} recording nothing, so nothing is ever resumed.
+ *
+ * @author Mike Seghers
+ */
+public final class NoOpPushJournal implements PushJournal {
+    public static final PushJournal INSTANCE = new NoOpPushJournal();
+
+    private static final String PUSH_ID = "";
+
+    private NoOpPushJournal() {
+    }
+
+    @Override
+    public String pushStarted(final String pusher, final PushPayload payload, final Collection<?> groups) {
+        return PUSH_ID;
+    }
+
+    @Override
+    public void batchCompleted(final String pushId, final int batchIndex) {
+    }
+
+    @Override
+    public void pushFinished(final String pushId) {
+    }
+
+    @Override
+    public List<JournaledPush> getUnfinishedPushes(final String pusher) {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,41 @@
+package be.appfoundry.promtius.journal;
+
+import be.appfoundry.promtius.PushPayload;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Write-ahead journal of pushes, recording which batches of a push were acknowledged, so a push interrupted by a crash can be resumed instead of being sent again from
+ * scratch. A pusher records the start of a push before sending anything, every batch once it was acknowledged, and the end of the push once all of its batches were sent.
+ * <p/>
+ * Batches are identified by their index within the push. Resuming a push relies on the client token service returning the audience of the push in the same order every time,
+ * so the same index denotes the same tokens.
+ *
+ * @author Mike Seghers
+ */
+public interface PushJournal {
+    /**
+     * Records the start of a push, before any batch is sent.
+     *
+     * @param pusher identifies the pusher sending the push, so it can find its own unfinished pushes again.
+     * @param groups the groups the push is sent to, or {@literal null} if it is sent to everyone.
+     * @return the id of the push within the journal.
+     */
+    String pushStarted(String pusher, PushPayload payload, Collection<?> groups);
+
+    /**
+     * Records that the batch with the given index was acknowledged by the push service.
+     */
+    void batchCompleted(String pushId, int batchIndex);
+
+    /**
+     * Records that every batch of the push was sent. A push that failed is not finished, so it can be resumed.
+     */
+    void pushFinished(String pushId);
+
+    /**
+     * Gets the pushes of the given pusher that were started, but never finished.
+     */
+    List<JournaledPush> getUnfinishedPushes(String pusher);
+}
@@ -0,0 +1,38 @@
+package be.appfoundry.promtius.metrics;
+
+import com.google.common.base.Preconditions;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PushMetrics} reporting to a Micrometer {@link MeterRegistry}: counters become {@link io.micrometer.core.instrument.Counter}s, times become {@link
+ * io.micrometer.core.instrument.Timer}s and values become {@link io.micrometer.core.instrument.DistributionSummary}s. Percentiles and histograms are configured on the registry,
+ * e.g. through a {@link io.micrometer.core.instrument.config.MeterFilter}.
+ * <p/>
+ * Micrometer is an optional dependency of this module: add {@code io.micrometer:micrometer-core} to use this adapter.
+ *
+ * @author Mike Seghers
+ */
+public final class MicrometerPushMetrics implements PushMetrics {
+    private final MeterRegistry registry;
+
+    public MicrometerPushMetrics(final MeterRegistry registry) {
+        this.registry = Preconditions.checkNotNull(registry, "A meter registry is needed");
+    }
+
+    @Override
+    public void increment(final String name, final long amount, final String... tags) {
+        registry.counter(name, tags).increment(amount);
+    }
+
+    @Override
+    public void recordTime(final String name, final long duration, final TimeUnit unit, final String... tags) {
+        registry.timer(name, tags).record(duration, unit);
+    }
+
+    @Override
+    public void recordValue(final String name, final double value, final String... tags) {
+        registry.summary(name, tags).record(value);
+    }
+}
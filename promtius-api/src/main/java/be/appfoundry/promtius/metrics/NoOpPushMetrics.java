@@ -0,0 +1,27 @@
+package be.appfoundry.promtius.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PushMetrics} ignoring everything that is reported.
+ *
+ * @author Mike Seghers
+ */
+public final class NoOpPushMetrics implements PushMetrics {
+    public static final PushMetrics INSTANCE = new NoOpPushMetrics();
+
+    private NoOpPushMetrics() {
+    }
+
+    @Override
+    public void increment(final String name, final long amount, final String... tags) {
+    }
+
+    @Override
+    public void recordTime(final String name, final long duration, final TimeUnit unit, final String... tags) {
+    }
+
+    @Override
+    public void recordValue(final String name, final double value, final String... tags) {
+    }
+}
@@ -0,0 +1,95 @@
+package be.appfoundry.promtius.metrics;
+
+/**
+ * Names and tags of the meters reported through {@link PushMetrics}.
+ *
+ * @author Mike Seghers
+ */
+public final class PushMetricNames {
+    /**
+     * Counter of pusher tasks accepted by the aggregator, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String PUSHES_STARTED = "promtius.pushes.started";
+    /**
+     * Counter of pusher tasks that finished, tagged with {@link #TAG_PLATFORM} and {@link #TAG_OUTCOME}.
+     */
+    public static final String PUSHES_FINISHED = "promtius.pushes.finished";
+    /**
+     * Timer of pusher tasks, tagged with {@link #TAG_PLATFORM} and {@link #TAG_OUTCOME}.
+     */
+    public static final String PUSH_DURATION = "promtius.push.duration";
+    /**
+     * Counter of pushes refused by a queuing aggregator, tagged with {@link #TAG_PRIORITY}.
+     */
+    public static final String PUSHES_REJECTED = "promtius.pushes.rejected";
+    /**
+     * Timer of the time pushes waited in the queue of a queuing aggregator, tagged with {@link #TAG_PRIORITY}.
+     */
+    public static final String QUEUE_WAIT = "promtius.queue.wait";
+    /**
+     * Counter of tokens handed to a push service, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String TOKENS_ATTEMPTED = "promtius.tokens.attempted";
+    /**
+     * Counter of tokens accepted by a push service, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String TOKENS_SUCCEEDED = "promtius.tokens.succeeded";
+    /**
+     * Counter of tokens refused by a push service, or that could not be sent at all, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String TOKENS_FAILED = "promtius.tokens.failed";
+    /**
+     * Counter of tokens replaced by their canonical token, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String TOKENS_CANONICALISED = "promtius.tokens.canonicalised";
+    /**
+     * Distribution of the number of tokens per batch, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String BATCH_SIZE = "promtius.batch.size";
+    /**
+     * Timer of the time spent looking up the tokens of a push, excluding the time spent sending batches, tagged with {@link #TAG_PLATFORM}.
+     */
+    public static final String TOKEN_LOOKUP = "promtius.token.lookup";
+    /**
+     * Timer of HTTP requests to a push service, tagged with {@link #TAG_SERVICE} and {@link #TAG_STATUS}.
+     */
+    public static final String HTTP_LATENCY = "promtius.http.latency";
+    /**
+     * Counter of retried requests to a push service, tagged with {@link #TAG_SERVICE}.
+     */
+    public static final String RETRIES = "promtius.retries";
+    /**
+     * Timer of the back-off before retrying a request to a push service, tagged with {@link #TAG_SERVICE}.
+     */
+    public static final String RETRY_BACKOFF = "promtius.retry.backoff";
+
+    /**
+     * The platform(s) of a pusher.
+     */
+    public static final String TAG_PLATFORM = "platform";
+    /**
+     * The {@link be.appfoundry.promtius.PushPayload.PushPriority} of a push.
+     */
+    public static final String TAG_PRIORITY = "priority";
+    /**
+     * One of {@link #OUTCOME_SUCCESS}, {@link #OUTCOME_FAILURE} or {@link #OUTCOME_TIMEOUT}.
+     */
+    public static final String TAG_OUTCOME = "outcome";
+    /**
+     * The push service being called, such as {@code gcm}.
+     */
+    public static final String TAG_SERVICE = "service";
+    /**
+     * The HTTP status of a response, or {@link #STATUS_IO_ERROR} when no response was received.
+     */
+    public static final String TAG_STATUS = "status";
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+    public static final String OUTCOME_TIMEOUT = "timeout";
+    public static final String STATUS_IO_ERROR = "io_error";
+
+    private PushMetricNames() {
+        throw new UnsupportedOperationException("You should not call the constructor of this class!");
+    }
+}
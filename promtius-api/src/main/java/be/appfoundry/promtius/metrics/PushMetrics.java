@@ -0,0 +1,29 @@
+package be.appfoundry.promtius.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instrumentation SPI through which the aggregator, the pushers and the GCM sender report what they are doing. Meters are identified by a name, see {@link PushMetricNames},
+ * and tags given as alternating keys and values, following the conventions of Micrometer.
+ * <p/>
+ * Implementations are called from the pushing threads, once per push or per batch, and should therefore be thread safe and cheap. Use {@link NoOpPushMetrics} to report
+ * nothing, which is the default everywhere, or {@link MicrometerPushMetrics} to report to a Micrometer registry.
+ *
+ * @author Mike Seghers
+ */
+public interface PushMetrics {
+    /**
+     * Adds the given amount to a counter.
+     */
+    void increment(String name, long amount, String... tags);
+
+    /**
+     * Records a duration in a timer.
+     */
+    void recordTime(String name, long duration, TimeUnit unit, String... tags);
+
+    /**
+     * Records a value, such as the size of a batch, in a distribution summary.
+     */
+    void recordValue(String name, double value, String... tags);
+}
@@ -0,0 +1,202 @@
+package be.appfoundry.promtius;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Mike Seghers
+ */
+public class AsyncClientTokenFeedbackTest {
+    private static final TestClientToken TOKEN_A = new TestClientToken("a");
+    private static final TestClientToken TOKEN_B = new TestClientToken("b");
+    private static final TestClientToken TOKEN_C = new TestClientToken("c");
+
+    private BulkClientTokenService<TestClientToken, String, String, String> service;
+    private AsyncClientTokenFeedback<TestClientToken, String, String> feedback;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        service = mock(BulkClientTokenService.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (feedback != null) {
+            feedback.close();
+        }
+    }
+
+    @Test
+    public void test_updatesAreCoalescedAndWrittenInBulkOnClose() throws Exception {
+        feedback = new AsyncClientTokenFeedback.Builder<>(service).withFlushIntervalMillis(TimeUnit.HOURS.toMillis(1)).build();
+
+        feedback.unregisterClientTokens(Arrays.asList(TOKEN_A, TOKEN_B));
+        feedback.changeClientTokens(Collections.singletonMap(TOKEN_C, "c2"));
+        feedback.changeClientTokens(Collections.singletonMap(TOKEN_A, "a2"));
+        feedback.unregisterClientTokens(Collections.singletonList(TOKEN_A));
+        assertThat(feedback.getPendingTokens(), is(3));
+        verify(service, never()).unregisterClientTokens(anyCollectionOf(TestClientToken.class));
+
+        feedback.close();
+
+        verify(service).unregisterClientTokens(new LinkedHashSet<>(Arrays.asList(TOKEN_A, TOKEN_B)));
+        verify(service).changeClientTokens(Collections.singletonMap(TOKEN_C, "c2"));
+        assertThat(feedback.getPendingTokens(), is(0));
+    }
+
+    @Test
+    public void test_unregisteringDropsPendingChange() throws Exception {
+        feedback = new AsyncClientTokenFeedback.Builder<>(service).withFlushIntervalMillis(TimeUnit.HOURS.toMillis(1)).build();
+        Map<TestClientToken, String> changes = new LinkedHashMap<>();
+        changes.put(TOKEN_A, "a2");
+        changes.put(TOKEN_B, "b2");
+
+        feedback.changeClientTokens(changes);
+        feedback.unregisterClientTokens(Collections.singletonList(TOKEN_B));
+        feedback.flush();
+
+        verify(service).changeClientTokens(Collections.singletonMap(TOKEN_A, "a2"));
+        verify(service).unregisterClientTokens(Collections.singleton(TOKEN_B));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_serviceWithoutBulkOperationsIsUpdatedOneByOne() throws Exception {
+        ClientTokenService<TestClientToken, String, String, String> plainService = mock(ClientTokenService.class);
+        feedback = new AsyncClientTokenFeedback.Builder<>(plainService).withFlushIntervalMillis(TimeUnit.HOURS.toMillis(1)).build();
+
+        feedback.unregisterClientTokens(Arrays.asList(TOKEN_A, TOKEN_B));
+        feedback.changeClientTokens(Collections.singletonMap(TOKEN_C, "c2"));
+        feedback.flush();
+
+        verify(plainService).unregisterClientToken(TOKEN_A);
+        verify(plainService).unregisterClientToken(TOKEN_B);
+        verify(plainService).changeClientToken(TOKEN_C, "c2");
+    }
+
+    @Test
+    public void test_reachingMaxPendingTokensFlushesInBackground() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        doAnswer(countDown(written)).when(service).unregisterClientTokens(anyCollectionOf(TestClientToken.class));
+        feedback = new AsyncClientTokenFeedback.Builder<>(service).withFlushIntervalMillis(TimeUnit.HOURS.toMillis(1)).withMaxPendingTokens(2).build();
+
+        feedback.unregisterClientTokens(Collections.singletonList(TOKEN_A));
+        feedback.unregisterClientTokens(Collections.singletonList(TOKEN_B));
+
+        assertThat(written.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void test_updatesAfterCloseAreWrittenRightAway() throws Exception {
+        feedback = new AsyncClientTokenFeedback.Builder<>(service).withFlushIntervalMillis(TimeUnit.HOURS.toMillis(1)).build();
+        feedback.close();
+
+        feedback.unregisterClientTokens(Collections.singletonList(TOKEN_A));
+        feedback.changeClientTokens(Collections.singletonMap(TOKEN_B, "b2"));
+
+        verify(service).unregisterClientTokens(new LinkedHashSet<>(Collections.singletonList(TOKEN_A)));
+        verify(service).changeClientTokens(Collections.singletonMap(TOKEN_B, "b2"));
+        assertThat(feedback.getPendingTokens(), is(0));
+    }
+
+    @Test
+    public void test_pendingUpdatesAreFlushedEveryInterval() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        doAnswer(countDown(written)).when(service).changeClientTokens(anyMapOf(TestClientToken.class, String.class));
+        feedback = new AsyncClientTokenFeedback.Builder<>(service).withFlushIntervalMillis(10).build();
+
+        feedback.changeClientTokens(Collections.singletonMap(TOKEN_A, "a2"));
+
+        assertThat(written.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void test_failingWriteIsNotRethrownNorRetried() throws Exception {
+        doThrow(new IllegalStateException("database down")).when(service).unregisterClientTokens(anyCollectionOf(TestClientToken.class));
+        feedback = new AsyncClientTokenFeedback.Builder<>(service).withFlushIntervalMillis(TimeUnit.HOURS.toMillis(1)).build();
+
+        feedback.unregisterClientTokens(Collections.singletonList(TOKEN_A));
+        feedback.changeClientTokens(Collections.singletonMap(TOKEN_B, "b2"));
+        feedback.flush();
+
+        verify(service).changeClientTokens(Collections.singletonMap(TOKEN_B, "b2"));
+        assertThat(feedback.getPendingTokens(), is(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_maxPendingTokensShouldBePositive() throws Exception {
+        new AsyncClientTokenFeedback.Builder<>(service).withMaxPendingTokens(0).build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_directFeedbackUsesBulkOperations() throws Exception {
+        DirectClientTokenFeedback<TestClientToken, String, String> direct = new DirectClientTokenFeedback<>(service);
+
+        direct.unregisterClientTokens(Arrays.asList(TOKEN_A, TOKEN_B));
+        direct.changeClientTokens(Collections.<TestClientToken, String>emptyMap());
+
+        verify(service).unregisterClientTokens(Arrays.asList(TOKEN_A, TOKEN_B));
+        verify(service, never()).changeClientTokens(anyMapOf(TestClientToken.class, String.class));
+    }
+
+    private static Answer<Void> countDown(final CountDownLatch latch) {
+        return new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                latch.countDown();
+                return null;
+            }
+        };
+    }
+
+    private static final class TestClientToken implements ClientToken<String, String> {
+        private final String token;
+
+        private TestClientToken(final String token) {
+            this.token = token;
+        }
+
+        @Override
+        public String getToken() {
+            return token;
+        }
+
+        @Override
+        public String getPlatform() {
+            return "IOS";
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof TestClientToken && token.equals(((TestClientToken) o).token);
+        }
+
+        @Override
+        public int hashCode() {
+            return token.hashCode();
+        }
+    }
+}
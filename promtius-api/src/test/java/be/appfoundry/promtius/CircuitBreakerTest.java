@@ -0,0 +1,135 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.exception.CircuitOpenException;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mike Seghers
+ */
+public class CircuitBreakerTest {
+    private FakeTicker ticker;
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() throws Exception {
+        ticker = new FakeTicker();
+        circuitBreaker = new CircuitBreaker.Builder().withName("test").withFailureThreshold(3).withOpenDuration(10, TimeUnit.SECONDS)
+                .withMaxOpenDuration(30, TimeUnit.SECONDS).withTicker(ticker).build();
+    }
+
+    @Test
+    public void test_opensAfterConsecutiveFailures() throws Exception {
+        failCalls(2);
+        circuitBreaker.recordSuccess(circuitBreaker.acquirePermission());
+        failCalls(2);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        failCalls(1);
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        assertRejected();
+    }
+
+    @Test
+    public void test_letsSingleProbeThroughOnceOpenDurationPassed() throws Exception {
+        failCalls(3);
+        ticker.advance(9);
+        assertRejected();
+
+        ticker.advance(1);
+        circuitBreaker.acquirePermission();
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertRejected();
+    }
+
+    @Test
+    public void test_successfulProbeClosesCircuit() throws Exception {
+        failCalls(3);
+        ticker.advance(10);
+        long probe = circuitBreaker.acquirePermission();
+
+        circuitBreaker.recordSuccess(probe);
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+        circuitBreaker.acquirePermission();
+    }
+
+    @Test
+    public void test_failedProbeReopensForTwiceAsLongUpToMax() throws Exception {
+        failCalls(3);
+        ticker.advance(10);
+        circuitBreaker.recordFailure(circuitBreaker.acquirePermission());
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        ticker.advance(19);
+        assertRejected();
+        ticker.advance(1);
+        circuitBreaker.recordFailure(circuitBreaker.acquirePermission());
+
+        ticker.advance(30);
+        circuitBreaker.acquirePermission();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    }
+
+    @Test
+    public void test_failuresOfCallsStillInFlightWhileOpenAreIgnored() throws Exception {
+        long slowCall = circuitBreaker.acquirePermission();
+        failCalls(3);
+        ticker.advance(5);
+        circuitBreaker.recordFailure(slowCall);
+
+        ticker.advance(5);
+        long probe = circuitBreaker.acquirePermission();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+
+        // neither outcome of a call permitted before the probe decides for it
+        circuitBreaker.recordFailure(slowCall);
+        circuitBreaker.recordSuccess(slowCall);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+
+        circuitBreaker.recordSuccess(probe);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildWithMaxOpenDurationShorterThanOpenDurationFails() throws Exception {
+        new CircuitBreaker.Builder().withOpenDuration(1, TimeUnit.MINUTES).withMaxOpenDuration(30, TimeUnit.SECONDS).build();
+    }
+
+    private void failCalls(final int calls) {
+        for (int i = 0; i < calls; i++) {
+            circuitBreaker.recordFailure(circuitBreaker.acquirePermission());
+        }
+    }
+
+    private void assertRejected() {
+        try {
+            circuitBreaker.acquirePermission();
+            fail("The circuit should reject the call");
+        } catch (CircuitOpenException expected) {
+            // the service is not called
+        }
+    }
+
+    private static final class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void advance(final long seconds) {
+            nanos += TimeUnit.SECONDS.toNanos(seconds);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package be.appfoundry.promtius;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+public class ClientTokenBatcherTest {
+    private List<List<String>> batches;
+    private ClientTokenBatcher<TestClientToken, String> batcher;
+
+    @Before
+    public void setUp() throws Exception {
+        batches = new ArrayList<>();
+        batcher = new ClientTokenBatcher<TestClientToken, String>(2) {
+            @Override
+            protected void processBatch(final List<String> batch) {
+                batches.add(batch);
+            }
+        };
+    }
+
+    @Test
+    public void test_fullBatchesAreProcessedWhileVisiting() throws Exception {
+        batcher.visit(new TestClientToken("a"));
+        assertThat(batches, is(empty()));
+        batcher.visit(new TestClientToken("b"));
+        batcher.visit(new TestClientToken("c"));
+
+        assertThat(batches, hasSize(1));
+        assertThat(batches.get(0), contains("a", "b"));
+    }
+
+    @Test
+    public void test_flushProcessesPartialBatch() throws Exception {
+        batcher.visit(new TestClientToken("a"));
+        batcher.visit(new TestClientToken("b"));
+        batcher.visit(new TestClientToken("c"));
+        batcher.flush();
+        batcher.flush();
+
+        assertThat(batches, hasSize(2));
+        assertThat(batches.get(1), contains("c"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_visitWithListBasedServiceVisitsAllTokens() throws Exception {
+        ClientTokenService<TestClientToken, String, String, String> service = mock(ClientTokenService.class);
+        when(service.findClientTokensForOperatingSystem("IOS"))
+                .thenReturn(Arrays.asList(new TestClientToken("a"), new TestClientToken("b"), new TestClientToken("c")));
+
+        ClientTokenServices.visitClientTokensForOperatingSystem(service, "IOS", batcher);
+        batcher.flush();
+
+        assertThat(batches, hasSize(2));
+        assertThat(batches.get(0), contains("a", "b"));
+        assertThat(batches.get(1), contains("c"));
+    }
+
+    @Test
+    public void test_timeSpentProcessingBatchesIsTracked() throws Exception {
+        ClientTokenBatcher<TestClientToken, String> slowBatcher = new ClientTokenBatcher<TestClientToken, String>(1) {
+            @Override
+            protected void processBatch(final List<String> batch) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        assertThat(slowBatcher.getBatchProcessingNanos(), is(0L));
+
+        slowBatcher.visit(new TestClientToken("a"));
+        slowBatcher.visit(new TestClientToken("b"));
+
+        assertThat(slowBatcher.getBatchProcessingNanos(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20)));
+    }
+
+    @Test
+    public void test_mappingBatcherBatchesOtherRepresentation() throws Exception {
+        final List<List<Integer>> lengths = new ArrayList<>();
+        MappingClientTokenBatcher<TestClientToken, Integer> lengthBatcher = new MappingClientTokenBatcher<TestClientToken, Integer>(2) {
+            @Override
+            protected Integer valueOf(final TestClientToken clientToken) {
+                return clientToken.getToken().length();
+            }
+
+            @Override
+            protected void processBatch(final List<Integer> batch) {
+                lengths.add(batch);
+            }
+        };
+
+        lengthBatcher.visit(new TestClientToken("a"));
+        lengthBatcher.visit(new TestClientToken("abc"));
+
+        assertThat(lengths, hasSize(1));
+        assertThat(lengths.get(0), contains(1, 3));
+    }
+
+    @Test
+    public void test_overriddenBatchSizeIsCheckedForEveryBatch() throws Exception {
+        final List<List<String>> varyingBatches = new ArrayList<>();
+        ClientTokenBatcher<TestClientToken, String> growingBatcher = new ClientTokenBatcher<TestClientToken, String>(1) {
+            @Override
+            protected int getBatchSize() {
+                return varyingBatches.size() + 1;
+            }
+
+            @Override
+            protected void processBatch(final List<String> batch) {
+                varyingBatches.add(batch);
+            }
+        };
+
+        for (String token : Arrays.asList("a", "b", "c", "d", "e", "f")) {
+            growingBatcher.visit(new TestClientToken(token));
+        }
+
+        assertThat(varyingBatches, hasSize(3));
+        assertThat(varyingBatches.get(0), contains("a"));
+        assertThat(varyingBatches.get(1), contains("b", "c"));
+        assertThat(varyingBatches.get(2), contains("d", "e", "f"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_batchSizeShouldBePositive() throws Exception {
+        new ClientTokenBatcher<TestClientToken, String>(0) {
+            @Override
+            protected void processBatch(final List<String> batch) {
+            }
+        };
+    }
+
+    private static class TestClientToken implements ClientToken<String, String> {
+        private final String token;
+
+        private TestClientToken(final String token) {
+            this.token = token;
+        }
+
+        @Override
+        public String getToken() {
+            return token;
+        }
+
+        @Override
+        public String getPlatform() {
+            return "IOS";
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package be.appfoundry.promtius;
 
 import be.appfoundry.promtius.exception.PushFailedException;
+import be.appfoundry.promtius.exception.PushTimeoutException;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.junit.Before;
@@ -8,13 +11,26 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.anything;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 /**
@@ -103,6 +119,204 @@ public class ParallelPushAggregatorTest {
         pushAggregator.sendPushToPlatforms(simpleMessagePayload, Lists.newArrayList("IOS"), groups, tracker);
     }
 
+    @Test
+    public void test_sendPushUsingInjectedExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withExecutorService(executor).build();
+        pushAggregator.sendPush(simpleMessagePayload, tracker);
+        waitUntilAggregatorHasFinished(simpleMessagePayload, 500);
+        verify(pusherA).sendPush(simpleMessagePayload);
+        verify(pusherB).sendPush(simpleMessagePayload);
+
+        pushAggregator.close();
+        assertFalse(executor.isShutdown());
+        executor.shutdown();
+    }
+
+    @Test
+    public void test_sendPushSeveralTimesReusesExecutor() throws Exception {
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withThreadPoolSize(1).withQueueCapacity(10).build();
+        for (int i = 0; i < 3; i++) {
+            pushFinished = false;
+            pushAggregator.sendPush(simpleMessagePayload, tracker);
+            waitUntilAggregatorHasFinished(simpleMessagePayload, 500);
+        }
+        verify(pusherA, times(3)).sendPush(simpleMessagePayload);
+        verify(pusherB, times(3)).sendPush(simpleMessagePayload);
+        pushAggregator.close();
+    }
+
+    @Test
+    public void test_sendPushAfterCloseIsRejectedButStillFinishes() throws Exception {
+        pushAggregator.close();
+        pushAggregator.sendPush(simpleMessagePayload, tracker);
+        waitUntilAggregatorHasFinished(simpleMessagePayload, 500);
+        verify(pusherA, never()).sendPush(simpleMessagePayload);
+        verify(pusherB, never()).sendPush(simpleMessagePayload);
+    }
+
+    @Test
+    public void test_sendPushAsync_reportsOutcomePerPusher() throws Exception {
+        when(pusherA.getPlatforms()).thenReturn(Sets.newHashSet("IOS"));
+        when(pusherB.getPlatforms()).thenReturn(Sets.newHashSet("ANDROID"));
+        doThrow(new IllegalStateException()).when(pusherB).sendPush(simpleMessagePayload);
+
+        PushAggregatorResult<String> result = pushAggregator.sendPushAsync(simpleMessagePayload).get(500, TimeUnit.MILLISECONDS);
+
+        assertThat(result.getPusherResults(), hasSize(2));
+        assertThat(result.getSuccessCount(), is(1));
+        assertThat(result.getFailureCount(), is(1));
+        assertFalse(result.isSuccess());
+        assertTrue(result.getPusherResultsForPlatform("IOS").get(0).isSuccess());
+        PusherResult<String> failed = result.getPusherResultsForPlatform("ANDROID").get(0);
+        assertFalse(failed.isSuccess());
+        assertThat(failed.getFailure().get(), is(instanceOf(IllegalStateException.class)));
+        assertThat(result.getFailedPusherResults(), contains(failed));
+    }
+
+    @Test
+    public void test_sendPushToPlatformsAsyncWithGroups() throws Exception {
+        final Collection<String> groups = Arrays.asList("groupA", "groupB");
+        when(pusherA.getPlatforms()).thenReturn(Sets.newHashSet("IOS"));
+
+        PushAggregatorResult<String> result = pushAggregator.sendPushToPlatformsAsync(simpleMessagePayload, Lists.newArrayList("IOS"), groups).get(500, TimeUnit.MILLISECONDS);
+
+        assertTrue(result.isSuccess());
+        assertThat(result.getPusherResults(), hasSize(1));
+        verify(pusherA).sendPush(simpleMessagePayload, groups);
+        verify(pusherB, never()).sendPush(Mockito.any(PushPayload.class), Mockito.<Collection<String>>any());
+    }
+
+    @Test
+    public void test_sendPushAsyncAfterCloseReportsRejectedPushersAsFailed() throws Exception {
+        pushAggregator.close();
+        PushAggregatorResult<String> result = pushAggregator.sendPushAsync(simpleMessagePayload).get(500, TimeUnit.MILLISECONDS);
+        assertThat(result.getFailureCount(), is(2));
+        assertThat(result.getPusherResults().get(0).getFailure().get(), is(instanceOf(CancellationException.class)));
+    }
+
+    @Test
+    public void test_sendPushAsync_reportsStartedAndFinishedPushesToMetrics() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        when(pusherA.getPlatforms()).thenReturn(Sets.newHashSet("IOS"));
+        when(pusherB.getPlatforms()).thenReturn(Sets.newHashSet("ANDROID"));
+        doThrow(new IllegalStateException()).when(pusherB).sendPush(simpleMessagePayload);
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withMetrics(metrics).build();
+
+        pushAggregator.sendPushAsync(simpleMessagePayload).get(500, TimeUnit.MILLISECONDS);
+
+        verify(metrics).increment(PushMetricNames.PUSHES_STARTED, 1, PushMetricNames.TAG_PLATFORM, "IOS");
+        verify(metrics).increment(PushMetricNames.PUSHES_STARTED, 1, PushMetricNames.TAG_PLATFORM, "ANDROID");
+        verify(metrics).increment(PushMetricNames.PUSHES_FINISHED, 1, PushMetricNames.TAG_PLATFORM, "IOS", PushMetricNames.TAG_OUTCOME, PushMetricNames.OUTCOME_SUCCESS);
+        verify(metrics).increment(PushMetricNames.PUSHES_FINISHED, 1, PushMetricNames.TAG_PLATFORM, "ANDROID", PushMetricNames.TAG_OUTCOME, PushMetricNames.OUTCOME_FAILURE);
+        verify(metrics).recordTime(eq(PushMetricNames.PUSH_DURATION), anyLong(), eq(TimeUnit.NANOSECONDS), eq(PushMetricNames.TAG_PLATFORM), eq("IOS"),
+                eq(PushMetricNames.TAG_OUTCOME), eq(PushMetricNames.OUTCOME_SUCCESS));
+        pushAggregator.close();
+    }
+
+    @Test
+    public void test_sendPushAsyncAfterCloseDoesNotReportRejectedPushesAsStarted() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withMetrics(metrics).build();
+        pushAggregator.close();
+
+        pushAggregator.sendPushAsync(simpleMessagePayload).get(500, TimeUnit.MILLISECONDS);
+
+        verify(metrics, never()).increment(eq(PushMetricNames.PUSHES_STARTED), anyLong(), Mockito.<String>anyVararg());
+    }
+
+    @Test
+    public void test_sendPushAsync_pusherTimeoutCancelsAndInterruptsHangingPusher() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        when(pusherA.getPlatforms()).thenReturn(Sets.newHashSet("IOS"));
+        when(pusherB.getPlatforms()).thenReturn(Sets.newHashSet("ANDROID"));
+        doAnswer(hangUntilInterrupted(interrupted)).when(pusherA).sendPush(simpleMessagePayload);
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withPusherTimeout(100, TimeUnit.MILLISECONDS).build();
+
+        PushAggregatorResult<String> result = pushAggregator.sendPushAsync(simpleMessagePayload).get(2, TimeUnit.SECONDS);
+
+        assertTrue(result.isTimedOut());
+        assertThat(result.getFailureCount(), is(1));
+        PusherResult<String> timedOut = result.getPusherResultsForPlatform("IOS").get(0);
+        assertTrue(timedOut.isTimedOut());
+        assertThat(timedOut.getFailure().get(), is(instanceOf(PushTimeoutException.class)));
+        assertTrue(result.getPusherResultsForPlatform("ANDROID").get(0).isSuccess());
+        assertTrue(interrupted.await(2, TimeUnit.SECONDS));
+        pushAggregator.close();
+    }
+
+    @Test
+    public void test_sendPushAsync_pushTimeoutAlsoCancelsQueuedPushers() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        doAnswer(hangUntilInterrupted(interrupted)).when(pusherA).sendPush(simpleMessagePayload);
+        doAnswer(hangUntilInterrupted(interrupted)).when(pusherB).sendPush(simpleMessagePayload);
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withThreadPoolSize(1)
+                .withPushTimeout(200, TimeUnit.MILLISECONDS).build();
+
+        PushAggregatorResult<String> result = pushAggregator.sendPushAsync(simpleMessagePayload).get(2, TimeUnit.SECONDS);
+
+        assertThat(result.getTimedOutPusherResults(), hasSize(2));
+        assertTrue(interrupted.await(2, TimeUnit.SECONDS));
+        pushAggregator.close();
+    }
+
+    @Test
+    public void test_sendPush_reportsTimeoutToTimeoutTrackerBeforeFinishing() throws Exception {
+        doAnswer(hangUntilInterrupted(new CountDownLatch(1))).when(pusherA).sendPush(simpleMessagePayload);
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withPushTimeout(100, TimeUnit.MILLISECONDS).build();
+        final List<String> calls = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        PusherAggregatorTimeoutTracker timeoutTracker = new PusherAggregatorTimeoutTracker() {
+            @Override
+            public void markTimedOut(final PushAggregatorResult<?> result) {
+                calls.add("timedOut:" + result.getTimedOutPusherResults().size());
+            }
+
+            @Override
+            public void markFinished() {
+                calls.add("finished");
+                finished.countDown();
+            }
+        };
+
+        pushAggregator.sendPush(simpleMessagePayload, timeoutTracker);
+
+        assertTrue(finished.await(2, TimeUnit.SECONDS));
+        assertThat(calls, contains("timedOut:1", "finished"));
+        pushAggregator.close();
+    }
+
+    @Test
+    public void test_sendPushAsync_pushersFinishingInTimeAreNotTimedOut() throws Exception {
+        pushAggregator = new ParallelPushAggregator.Builder<>(new HashSet<>(Arrays.asList(pusherA, pusherB))).withPusherTimeout(1, TimeUnit.SECONDS)
+                .withPushTimeout(1, TimeUnit.SECONDS).build();
+
+        PushAggregatorResult<String> result = pushAggregator.sendPushAsync(simpleMessagePayload).get(500, TimeUnit.MILLISECONDS);
+
+        assertTrue(result.isSuccess());
+        assertFalse(result.isTimedOut());
+        pushAggregator.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildWithoutPushersFails() throws Exception {
+        new ParallelPushAggregator.Builder<String, String>(new HashSet<Pusher<String, String>>()).build();
+    }
+
+    private static Answer<Void> hangUntilInterrupted(final CountDownLatch interrupted) {
+        return new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                try {
+                    TimeUnit.SECONDS.sleep(30);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+        };
+    }
+
     private void waitUntilAggregatorHasFinished(PushPayload payload, long timeout) throws InterruptedException {
         long start = System.currentTimeMillis();
         long timePassed = 0;
@@ -0,0 +1,118 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.exception.PushFailedException;
+import com.google.common.base.Stopwatch;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mike Seghers
+ */
+public class PushRateLimiterTest {
+
+    @After
+    public void tearDown() throws Exception {
+        Thread.interrupted();
+    }
+
+    @Test
+    public void test_unlimitedNeverWaits() throws Exception {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 0; i < 100; i++) {
+            PushRateLimiter.UNLIMITED.acquire(1000);
+        }
+
+        assertThat(stopwatch.elapsed(TimeUnit.MILLISECONDS), is(lessThan(500L)));
+    }
+
+    @Test
+    public void test_messagesArePacedAtTheConfiguredRate() throws Exception {
+        PushRateLimiter limiter = new PushRateLimiter.Builder().withMessagesPerSecond(10).build();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        limiter.acquire(5);
+        limiter.release();
+        limiter.acquire(5);
+        limiter.release();
+        limiter.acquire(1);
+        limiter.release();
+
+        // the first five go out right away, the next five pay for them, the last one for the second five
+        assertThat(stopwatch.elapsed(TimeUnit.MILLISECONDS), is(greaterThanOrEqualTo(900L)));
+    }
+
+    @Test
+    public void test_requestsBeyondTheConcurrencyLimitWait() throws Exception {
+        final PushRateLimiter limiter = new PushRateLimiter.Builder().withMaxConcurrentRequests(1).build();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        limiter.acquire(1);
+
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                limiter.acquire(1);
+                acquired.countDown();
+            }
+        });
+        waiting.start();
+
+        assertThat(acquired.await(100, TimeUnit.MILLISECONDS), is(false));
+        limiter.release();
+        assertThat(acquired.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void test_interruptedWhileWaitingFailsAndKeepsInterruptFlag() throws Exception {
+        PushRateLimiter limiter = new PushRateLimiter.Builder().withMaxConcurrentRequests(1).build();
+        limiter.acquire(1);
+        Thread.currentThread().interrupt();
+
+        try {
+            limiter.acquire(1);
+            fail("Acquiring should fail when interrupted");
+        } catch (PushFailedException e) {
+            assertThat(Thread.currentThread().isInterrupted(), is(true));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void test_interruptedWhileWaitingForTheMessageRateFails() throws Exception {
+        PushRateLimiter limiter = new PushRateLimiter.Builder().withMessagesPerSecond(1).build();
+        limiter.acquire(60);
+        limiter.release();
+        final Thread main = Thread.currentThread();
+        Thread interrupter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                main.interrupt();
+            }
+        });
+        interrupter.start();
+
+        try {
+            limiter.acquire(1);
+            fail("Acquiring should fail when interrupted");
+        } catch (PushFailedException e) {
+            assertThat(Thread.currentThread().isInterrupted(), is(true));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildWithNegativeRateFails() throws Exception {
+        new PushRateLimiter.Builder().withMessagesPerSecond(-1).build();
+    }
+}
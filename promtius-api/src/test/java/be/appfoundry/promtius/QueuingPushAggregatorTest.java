@@ -0,0 +1,273 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.PushPayload.PushPriority;
+import be.appfoundry.promtius.exception.PushFailedException;
+import be.appfoundry.promtius.exception.PushRejectedException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class QueuingPushAggregatorTest {
+    @Mock
+    private AsyncPushAggregator<String, String> delegate;
+
+    private QueuingPushAggregator<String, String> aggregator;
+    private PushPayload broadcast;
+    private PushPayload otherBroadcast;
+    private PushPayload transactional;
+    private SettableFuture<PushAggregatorResult<String>> broadcastResult = SettableFuture.create();
+    private SettableFuture<PushAggregatorResult<String>> otherBroadcastResult = SettableFuture.create();
+    private PushAggregatorResult<String> result = new PushAggregatorResult<>(Collections.<PusherResult<String>>emptyList(), 0);
+
+    @Before
+    public void setUp() throws Exception {
+        broadcast = new PushPayload.Builder().withMessage("broadcast").build();
+        otherBroadcast = new PushPayload.Builder().withMessage("other broadcast").build();
+        transactional = new PushPayload.Builder().withMessage("transactional").withPushPriority(PushPriority.HIGH).build();
+        when(delegate.sendPushAsync(broadcast)).thenReturn(broadcastResult);
+        when(delegate.sendPushAsync(otherBroadcast)).thenReturn(otherBroadcastResult);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broadcastResult.set(result);
+        otherBroadcastResult.set(result);
+        if (aggregator != null) {
+            aggregator.close();
+        }
+    }
+
+    @Test
+    public void testQueuedPushCompletesWithDelegateResult() throws Exception {
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).build();
+        ListenableFuture<PushAggregatorResult<String>> future = aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        assertFalse(future.isDone());
+
+        broadcastResult.set(result);
+
+        assertThat(future.get(500, TimeUnit.MILLISECONDS), is(sameInstance(result)));
+    }
+
+    @Test
+    public void testDelegateFailureIsReported() throws Exception {
+        when(delegate.sendPushToPlatformsAsync(broadcast, Collections.singletonList("IOS"))).thenThrow(new PushFailedException("no pusher"));
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).build();
+
+        try {
+            aggregator.sendPushToPlatformsAsync(broadcast, Collections.singletonList("IOS")).get(500, TimeUnit.MILLISECONDS);
+            fail("Should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(PushFailedException.class)));
+        }
+    }
+
+    @Test
+    public void testDelegateErrorFailsPushButKeepsWorkerDispatching() throws Exception {
+        when(delegate.sendPushAsync(transactional)).thenThrow(new AssertionError("delegate error")).thenReturn(immediate(result));
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withHighPriorityWorkers(0).build();
+
+        try {
+            aggregator.sendPushAsync(transactional).get(500, TimeUnit.MILLISECONDS);
+            fail("Should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(AssertionError.class)));
+        }
+
+        assertThat(aggregator.sendPushAsync(transactional).get(500, TimeUnit.MILLISECONDS), is(sameInstance(result)));
+    }
+
+    @Test
+    public void testHighPriorityPushOvertakesDrainingBroadcast() throws Exception {
+        when(delegate.sendPushAsync(transactional)).thenReturn(immediate(result));
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withHighPriorityWorkers(1).build();
+
+        aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        ListenableFuture<PushAggregatorResult<String>> other = aggregator.sendPushAsync(otherBroadcast);
+        ListenableFuture<PushAggregatorResult<String>> high = aggregator.sendPushAsync(transactional);
+
+        assertThat(high.get(500, TimeUnit.MILLISECONDS), is(sameInstance(result)));
+        assertFalse(other.isDone());
+        assertThat(aggregator.getQueuedPushes(PushPriority.NORMAL), is(1));
+    }
+
+    @Test
+    public void testHighPriorityPushIsDispatchedFirstBySharedWorker() throws Exception {
+        final CountDownLatch otherBroadcastDispatched = new CountDownLatch(1);
+        when(delegate.sendPushAsync(transactional)).thenReturn(immediate(result));
+        when(delegate.sendPushAsync(otherBroadcast)).thenAnswer(new Answer<ListenableFuture<PushAggregatorResult<String>>>() {
+            @Override
+            public ListenableFuture<PushAggregatorResult<String>> answer(final InvocationOnMock invocation) throws Throwable {
+                otherBroadcastDispatched.countDown();
+                return otherBroadcastResult;
+            }
+        });
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withHighPriorityWorkers(0).build();
+
+        aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        aggregator.sendPushAsync(otherBroadcast);
+        ListenableFuture<PushAggregatorResult<String>> high = aggregator.sendPushAsync(transactional);
+        broadcastResult.set(result);
+
+        assertThat(high.get(500, TimeUnit.MILLISECONDS), is(sameInstance(result)));
+        assertTrue(otherBroadcastDispatched.await(500, TimeUnit.MILLISECONDS));
+        InOrder inOrder = inOrder(delegate);
+        inOrder.verify(delegate).sendPushAsync(broadcast);
+        inOrder.verify(delegate).sendPushAsync(transactional);
+        inOrder.verify(delegate).sendPushAsync(otherBroadcast);
+    }
+
+    @Test
+    public void testPushIsRejectedWhenLaneIsFull() throws Exception {
+        when(delegate.sendPushAsync(transactional)).thenReturn(immediate(result));
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withHighPriorityWorkers(0).withLaneCapacity(PushPriority.NORMAL, 1).build();
+        aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        aggregator.sendPushAsync(otherBroadcast);
+
+        try {
+            aggregator.sendPushAsync(otherBroadcast);
+            fail("Should have been rejected");
+        } catch (PushRejectedException expected) {
+            assertThat(aggregator.getQueuedPushes(PushPriority.NORMAL), is(1));
+        }
+        // the high priority lane still has room
+        aggregator.sendPushAsync(transactional);
+        assertThat(aggregator.getQueuedPushes(PushPriority.HIGH), is(1));
+    }
+
+    @Test
+    public void testBlockingPolicyRejectsAfterTimeout() throws Exception {
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withLaneCapacity(PushPriority.NORMAL, 1)
+                .withOverflowPolicy(QueuingPushAggregator.OverflowPolicy.BLOCK).withBlockTimeoutMillis(100).build();
+        aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        aggregator.sendPushAsync(otherBroadcast);
+
+        long start = System.nanoTime();
+        try {
+            aggregator.sendPushAsync(otherBroadcast);
+            fail("Should have been rejected");
+        } catch (PushRejectedException expected) {
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(100L)));
+        }
+    }
+
+    @Test
+    public void testBlockingPolicyAdmitsPushOnceThereIsRoom() throws Exception {
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withLaneCapacity(PushPriority.NORMAL, 1)
+                .withOverflowPolicy(QueuingPushAggregator.OverflowPolicy.BLOCK).withBlockTimeoutMillis(5000).build();
+        aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        aggregator.sendPushAsync(otherBroadcast);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sleep(100);
+                broadcastResult.set(result);
+            }
+        }).start();
+
+        ListenableFuture<PushAggregatorResult<String>> blocked = aggregator.sendPushAsync(otherBroadcast);
+
+        otherBroadcastResult.set(result);
+        assertThat(blocked.get(500, TimeUnit.MILLISECONDS), is(sameInstance(result)));
+    }
+
+    @Test
+    public void testTrackerIsMarkedFinished() throws Exception {
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).build();
+        final boolean[] finished = new boolean[1];
+        aggregator.sendPush(broadcast, new PusherAggregatorTracker() {
+            @Override
+            public void markFinished() {
+                finished[0] = true;
+            }
+        });
+        broadcastResult.set(result);
+
+        long start = System.currentTimeMillis();
+        while (!finished[0] && System.currentTimeMillis() - start < 500) {
+            sleep(10);
+        }
+        assertTrue(finished[0]);
+    }
+
+    @Test(expected = PushRejectedException.class)
+    public void testPushAfterCloseIsRejected() throws Exception {
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).build();
+        aggregator.close();
+        aggregator.sendPushAsync(broadcast);
+    }
+
+    @Test
+    public void testCloseCancelsPushesNotDispatchedInTime() throws Exception {
+        aggregator = new QueuingPushAggregator.Builder<>(delegate).withWorkers(1).withHighPriorityWorkers(0).withShutdownTimeoutSeconds(0).build();
+        ListenableFuture<PushAggregatorResult<String>> running = aggregator.sendPushAsync(broadcast);
+        verify(delegate, timeout(500)).sendPushAsync(broadcast);
+        ListenableFuture<PushAggregatorResult<String>> queued = aggregator.sendPushAsync(otherBroadcast);
+
+        aggregator.close();
+
+        assertTrue(queued.isCancelled());
+        try {
+            // the interrupted worker cancels the running push
+            running.get(500, TimeUnit.MILLISECONDS);
+            fail("Should have been cancelled");
+        } catch (CancellationException expected) {
+            assertTrue(running.isCancelled());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuildWithoutWorkersFails() throws Exception {
+        new QueuingPushAggregator.Builder<>(delegate).withWorkers(0).build();
+    }
+
+    private static ListenableFuture<PushAggregatorResult<String>> immediate(final PushAggregatorResult<String> result) {
+        SettableFuture<PushAggregatorResult<String>> future = SettableFuture.create();
+        future.set(result);
+        return future;
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
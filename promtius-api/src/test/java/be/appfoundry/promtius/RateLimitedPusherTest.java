@@ -0,0 +1,72 @@
+package be.appfoundry.promtius;
+
+import be.appfoundry.promtius.exception.PushFailedException;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class RateLimitedPusherTest {
+    @Mock
+    private Pusher<String, String> delegate;
+
+    private RateLimitedPusher<String, String> pusher;
+    private PushPayload payload;
+
+    @Before
+    public void setUp() throws Exception {
+        pusher = new RateLimitedPusher<>(delegate, new PushRateLimiter.Builder().withMaxConcurrentRequests(1).build());
+        payload = new PushPayload.Builder().withMessage("message").build();
+    }
+
+    @Test(timeout = 5000)
+    public void test_sendPush_releasesLimiterAfterEveryPush() throws Exception {
+        Collection<String> groups = Collections.singleton("group");
+
+        pusher.sendPush(payload);
+        pusher.sendPush(payload, groups);
+        pusher.sendPush(payload);
+
+        verify(delegate, times(2)).sendPush(payload);
+        verify(delegate).sendPush(payload, groups);
+    }
+
+    @Test(timeout = 5000)
+    public void test_sendPush_releasesLimiterWhenPushFails() throws Exception {
+        doThrow(new PushFailedException()).doNothing().when(delegate).sendPush(payload);
+
+        try {
+            pusher.sendPush(payload);
+            fail("The failure of the delegate should be passed on");
+        } catch (PushFailedException e) {
+            // expected
+        }
+        pusher.sendPush(payload);
+
+        verify(delegate, times(2)).sendPush(payload);
+    }
+
+    @Test
+    public void test_getPlatformsOfDelegate() throws Exception {
+        when(delegate.getPlatforms()).thenReturn(ImmutableSet.of("iOS"));
+
+        assertThat(pusher.getPlatforms(), contains("iOS"));
+    }
+}
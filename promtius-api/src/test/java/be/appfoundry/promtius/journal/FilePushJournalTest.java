@@ -0,0 +1,182 @@
+package be.appfoundry.promtius.journal;
+
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.exception.PromtiusException;
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Mike Seghers
+ */
+public class FilePushJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private FilePushJournal journal;
+    private PushPayload payload;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "push.journal");
+        journal = new FilePushJournal(file);
+        payload = new PushPayload.Builder().withMessage("message").withSound("bell").withDiscriminator("news").withTimeToLive(10)
+                .withPushPriority(PushPayload.PushPriority.HIGH).withCustomFields(ImmutableMap.of("id", 42)).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+    }
+
+    @Test
+    public void testUnfinishedPushSurvivesReopening() throws Exception {
+        String pushId = journal.pushStarted("ANDROID", payload, Arrays.asList("groupA", "groupB"));
+        journal.batchCompleted(pushId, 0);
+        journal.batchCompleted(pushId, 2);
+
+        List<JournaledPush> pushes = reopen().getUnfinishedPushes("ANDROID");
+
+        assertThat(pushes, hasSize(1));
+        JournaledPush push = pushes.get(0);
+        assertThat(push.getId(), is(pushId));
+        assertThat(push.getCompletedBatches(), containsInAnyOrder(0, 2));
+        assertThat(push.getGroups().get(), contains((Object) "groupA", "groupB"));
+        PushPayload journaledPayload = push.getPayload();
+        assertThat(journaledPayload.getMessage(), is("message"));
+        assertThat(journaledPayload.getSound(), is("bell"));
+        assertThat(journaledPayload.getDiscriminator(), is("news"));
+        assertThat(journaledPayload.getTimeToLive().get(), is(10));
+        assertThat(journaledPayload.getPushPriority(), is(PushPayload.PushPriority.HIGH));
+        assertThat(journaledPayload.getCustomFields().get().get("id"), is((Object) 42));
+    }
+
+    @Test
+    public void testFinishedPushIsForgotten() throws Exception {
+        String pushId = journal.pushStarted("ANDROID", payload, null);
+        journal.batchCompleted(pushId, 0);
+        journal.pushFinished(pushId);
+
+        assertThat(journal.getUnfinishedPushes("ANDROID"), is(empty()));
+        assertThat(reopen().getUnfinishedPushes("ANDROID"), is(empty()));
+    }
+
+    @Test
+    public void testUnfinishedPushesAreKeptPerPusher() throws Exception {
+        journal.pushStarted("ANDROID", payload, null);
+        journal.pushStarted("IOS", payload, null);
+
+        assertThat(journal.getUnfinishedPushes("ANDROID"), hasSize(1));
+        assertFalse(journal.getUnfinishedPushes("ANDROID").get(0).getGroups().isPresent());
+        assertThat(reopen().getUnfinishedPushes("IOS"), hasSize(1));
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        String pushId = journal.pushStarted("ANDROID", payload, null);
+        journal.batchCompleted(pushId, 0);
+        journal.batchCompleted(pushId, 1);
+        journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+
+        JournaledPush push = reopen().getUnfinishedPushes("ANDROID").get(0);
+
+        assertThat(push.getCompletedBatches(), contains(0));
+    }
+
+    @Test
+    public void testCorruptRecordIsIgnoredWithEverythingAfterIt() throws Exception {
+        String pushId = journal.pushStarted("ANDROID", payload, null);
+        long length = file.length();
+        journal.batchCompleted(pushId, 0);
+        journal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(0xff);
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 1});
+        }
+
+        JournaledPush push = reopen().getUnfinishedPushes("ANDROID").get(0);
+
+        assertThat(push.getCompletedBatches(), is(empty()));
+        assertThat(file.length(), is(length));
+    }
+
+    @Test
+    public void testReopeningCompactsFinishedPushes() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            String pushId = journal.pushStarted("ANDROID", payload, null);
+            journal.batchCompleted(pushId, 0);
+            journal.pushFinished(pushId);
+        }
+        long length = file.length();
+
+        reopen();
+
+        assertThat(file.length(), is(lessThan(length)));
+        assertThat(file.length(), is(0L));
+    }
+
+    @Test(expected = PromtiusException.class)
+    public void testPushWithNonSerializableCustomFieldsCannotBeStarted() throws Exception {
+        journal.pushStarted("ANDROID", new PushPayload.Builder().withMessage("message").withCustomFields(ImmutableMap.of("key", new Object())).build(),
+                Collections.emptyList());
+    }
+
+    @Test
+    public void testPushThatCannotBeDeserializedIsSkipped() throws Exception {
+        String unreadable = journal.pushStarted("ANDROID", payload, Collections.singletonList(new Unreadable()));
+        journal.batchCompleted(unreadable, 0);
+        String readable = journal.pushStarted("ANDROID", payload, null);
+
+        List<JournaledPush> pushes = reopen().getUnfinishedPushes("ANDROID");
+
+        assertThat(pushes, hasSize(1));
+        assertThat(pushes.get(0).getId(), is(readable));
+    }
+
+    private FilePushJournal reopen() throws Exception {
+        journal.close();
+        journal = new FilePushJournal(file);
+        return journal;
+    }
+
+    /**
+     * Stands in for a class that changed incompatibly since it was journaled.
+     */
+    private static final class Unreadable implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private void readObject(final ObjectInputStream in) throws IOException {
+            throw new InvalidClassException(Unreadable.class.getName(), "incompatible");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package be.appfoundry.promtius.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Mike Seghers
+ */
+public class MicrometerPushMetricsTest {
+    private SimpleMeterRegistry registry;
+    private MicrometerPushMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new SimpleMeterRegistry();
+        metrics = new MicrometerPushMetrics(registry);
+    }
+
+    @Test
+    public void testIncrementAddsToTaggedCounter() throws Exception {
+        metrics.increment(PushMetricNames.TOKENS_ATTEMPTED, 1000, PushMetricNames.TAG_PLATFORM, "ANDROID");
+        metrics.increment(PushMetricNames.TOKENS_ATTEMPTED, 15, PushMetricNames.TAG_PLATFORM, "ANDROID");
+        metrics.increment(PushMetricNames.TOKENS_ATTEMPTED, 4, PushMetricNames.TAG_PLATFORM, "IOS");
+
+        assertThat(registry.get(PushMetricNames.TOKENS_ATTEMPTED).tag(PushMetricNames.TAG_PLATFORM, "ANDROID").counter().count(), is(1015.0));
+        assertThat(registry.get(PushMetricNames.TOKENS_ATTEMPTED).tag(PushMetricNames.TAG_PLATFORM, "IOS").counter().count(), is(4.0));
+    }
+
+    @Test
+    public void testRecordTimeRecordsInTimer() throws Exception {
+        metrics.recordTime(PushMetricNames.HTTP_LATENCY, 42, TimeUnit.MILLISECONDS, PushMetricNames.TAG_SERVICE, "gcm", PushMetricNames.TAG_STATUS, "200");
+
+        assertThat(registry.get(PushMetricNames.HTTP_LATENCY).tag(PushMetricNames.TAG_STATUS, "200").timer().count(), is(1L));
+        assertThat(registry.get(PushMetricNames.HTTP_LATENCY).timer().totalTime(TimeUnit.MILLISECONDS), is(42.0));
+    }
+
+    @Test
+    public void testRecordValueRecordsInSummary() throws Exception {
+        metrics.recordValue(PushMetricNames.BATCH_SIZE, 1000, PushMetricNames.TAG_PLATFORM, "ANDROID");
+        metrics.recordValue(PushMetricNames.BATCH_SIZE, 8, PushMetricNames.TAG_PLATFORM, "ANDROID");
+
+        assertThat(registry.get(PushMetricNames.BATCH_SIZE).summary().count(), is(2L));
+        assertThat(registry.get(PushMetricNames.BATCH_SIZE).summary().max(), is(1000.0));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testRegistryIsRequired() throws Exception {
+        new MicrometerPushMetrics(null);
+    }
+}
@@ -0,0 +1,20 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.ClientToken;
+
+/**
+ * A client token that keeps its device token in the binary form sent to APNs as well. The {@link ApplePushNotificationServicePusher} uses it instead of decoding the hex
+ * string of the token on every push.
+ * <p/>
+ * Implementations typically decode the token lazily with {@link ApnsDeviceTokens#decode(String)} and keep the result in a (transient) field. The returned array is shared,
+ * and should not be modified.
+ *
+ * @param <P> The platform identifier type.
+ * @author Mike Seghers
+ */
+public interface ApnsClientToken<P> extends ClientToken<String, P> {
+    /**
+     * @return the device token as bytes.
+     */
+    byte[] getTokenBytes();
+}
@@ -0,0 +1,37 @@
+package be.appfoundry.promtius.apple;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.io.BaseEncoding;
+
+import java.util.Locale;
+
+/**
+ * Converts APNs device tokens between their hex string and binary form.
+ *
+ * @author Mike Seghers
+ */
+public final class ApnsDeviceTokens {
+    private static final BaseEncoding HEX = BaseEncoding.base16();
+    private static final CharMatcher HEX_DIGITS = CharMatcher.inRange('0', '9').or(CharMatcher.inRange('a', 'f')).or(CharMatcher.inRange('A', 'F'));
+    private static final CharMatcher IGNORED = CharMatcher.WHITESPACE.or(CharMatcher.anyOf("<>"));
+
+    private ApnsDeviceTokens() {
+        throw new UnsupportedOperationException("You should not call the constructor of this class!");
+    }
+
+    /**
+     * Decodes a device token from its hex string, in either case. White space and angle brackets, as in the token's description on iOS, are ignored.
+     *
+     * @throws IllegalArgumentException when the token is not a hex string.
+     */
+    public static byte[] decode(final String token) {
+        return HEX.decode(IGNORED.removeFrom(token).toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks, without decoding it, whether the token is a hex string {@link #decode(String)} accepts.
+     */
+    public static boolean isValid(final String token) {
+        return token != null && HEX_DIGITS.or(IGNORED).matchesAllOf(token) && HEX_DIGITS.countIn(token) % 2 == 0;
+    }
+}
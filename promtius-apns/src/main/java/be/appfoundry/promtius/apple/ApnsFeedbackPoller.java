@@ -0,0 +1,148 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenFeedback;
+import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.DirectClientTokenFeedback;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.notnoop.apns.ApnsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the APNs feedback service for inactive devices on its own interval, and unregisters them at once through a {@link ClientTokenFeedback}. This keeps the feedback
+ * connection off the push path: the {@link ApplePushNotificationServicePusher} goes straight to delivery.
+ * <p/>
+ * Tokens are unregistered with the value the feedback service reported. A failing poll is logged, and the next poll is tried on schedule.
+ * <p/>
+ * Call {@link #close()} when the poller is no longer needed. The {@link ApnsService} is not stopped.
+ *
+ * @param <CT> The type of ClientTokens the poller unregisters
+ * @param <P>  The platform identifier type, identifying the platform of the unregistered tokens.
+ * @author Mike Seghers
+ */
+public class ApnsFeedbackPoller<CT extends ClientToken<String, P>, P> implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApnsFeedbackPoller.class);
+
+    public static final long DEFAULT_POLL_INTERVAL_SECONDS = 3600;
+
+    private final ApnsService apnsService;
+    private final ClientTokenFactory<CT, String, P> clientTokenFactory;
+    private final P platform;
+    private final ClientTokenFeedback<CT, String> feedback;
+    private final ScheduledExecutorService poller;
+
+    private ApnsFeedbackPoller(final Builder<CT, P> builder) {
+        this.apnsService = builder.apnsService;
+        this.clientTokenFactory = builder.clientTokenFactory;
+        this.platform = builder.platform;
+        this.feedback = builder.feedback != null ? builder.feedback : new DirectClientTokenFeedback<>(builder.clientTokenService);
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("promtius-apns-feedback-%d").setDaemon(true).build());
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, builder.initialDelaySeconds, builder.pollIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Polls the feedback service and unregisters the inactive devices right away, on the calling thread.
+     *
+     * @return the number of client tokens unregistered, 0 if polling failed.
+     */
+    public int poll() {
+        try {
+            Map<String, Date> inactiveDevices = apnsService.getInactiveDevices();
+            if (inactiveDevices.isEmpty()) {
+                return 0;
+            }
+            List<CT> inactiveTokens = new ArrayList<>(inactiveDevices.size());
+            for (String token : inactiveDevices.keySet()) {
+                inactiveTokens.add(clientTokenFactory.createClientToken(token, platform));
+            }
+            LOGGER.debug("Unregistering {} inactive device tokens", inactiveTokens.size());
+            feedback.unregisterClientTokens(inactiveTokens);
+            return inactiveTokens.size();
+        } catch (RuntimeException e) {
+            LOGGER.error("Polling the APNs feedback service failed, trying again on the next poll", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Stops polling. A poll that is running is interrupted.
+     */
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+
+    /**
+     * Builds an {@link ApnsFeedbackPoller}, which starts polling once built.
+     *
+     * @param <CT> The type of ClientTokens the poller unregisters
+     * @param <P>  The platform identifier type.
+     */
+    public static class Builder<CT extends ClientToken<String, P>, P> {
+        private final ApnsService apnsService;
+        private final ClientTokenService<CT, String, P, ?> clientTokenService;
+        private final ClientTokenFactory<CT, String, P> clientTokenFactory;
+        private final P platform;
+        private long pollIntervalSeconds = DEFAULT_POLL_INTERVAL_SECONDS;
+        private long initialDelaySeconds;
+        private ClientTokenFeedback<CT, String> feedback;
+
+        public Builder(final ApnsService apnsService, final ClientTokenService<CT, String, P, ?> clientTokenService, final ClientTokenFactory<CT, String, P> clientTokenFactory,
+                       final P platform) {
+            this.apnsService = apnsService;
+            this.clientTokenService = clientTokenService;
+            this.clientTokenFactory = clientTokenFactory;
+            this.platform = platform;
+        }
+
+        /**
+         * The time between the end of a poll and the start of the next one. Defaults to {@value #DEFAULT_POLL_INTERVAL_SECONDS} seconds.
+         */
+        public Builder<CT, P> withPollIntervalSeconds(final long pollIntervalSeconds) {
+            this.pollIntervalSeconds = pollIntervalSeconds;
+            return this;
+        }
+
+        /**
+         * The time before the first poll. Defaults to 0, polling right away.
+         */
+        public Builder<CT, P> withInitialDelaySeconds(final long initialDelaySeconds) {
+            this.initialDelaySeconds = initialDelaySeconds;
+            return this;
+        }
+
+        /**
+         * The feedback to which the inactive devices are passed. Defaults to a {@link DirectClientTokenFeedback} updating the client token service on the polling thread.
+         */
+        public Builder<CT, P> withFeedback(final ClientTokenFeedback<CT, String> feedback) {
+            this.feedback = feedback;
+            return this;
+        }
+
+        public ApnsFeedbackPoller<CT, P> build() {
+            Preconditions.checkState(apnsService != null, "An APNs service is needed");
+            Preconditions.checkState(clientTokenService != null || feedback != null, "A client token service or feedback is needed");
+            Preconditions.checkState(clientTokenFactory != null, "A client token factory is needed");
+            Preconditions.checkState(pollIntervalSeconds > 0, "Poll interval should be positive");
+            Preconditions.checkState(initialDelaySeconds >= 0, "Initial delay should not be negative");
+            return new ApnsFeedbackPoller<>(this);
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenBatcher;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenFeedback;
+import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.ClientTokenServices;
+import be.appfoundry.promtius.DirectClientTokenFeedback;
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.PushPayload.PushPriority;
+import be.appfoundry.promtius.PushRateLimiter;
+import be.appfoundry.promtius.Pusher;
+import be.appfoundry.promtius.exception.PushFailedException;
+import be.appfoundry.promtius.metrics.NoOpPushMetrics;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Pusher} sending payload via the HTTP/2 provider API of Apple's Push Notification Services, one request per device token.
+ * <p/>
+ * Requests are multiplexed as concurrent streams over a few HTTP/2 connections, and every device token gets its own response. Tokens that APNs reports as unregistered
+ * (410) or as bad device tokens (400 {@code BadDeviceToken}) are passed to a {@link ClientTokenFeedback}, once per batch of {@link #BATCH_SIZE} tokens. Other refusals only
+ * count as failed tokens. The push fails, without sending to the remaining tokens, when APNs could not be reached or refused service: on I/O errors and on 403, 429 and 5xx
+ * responses.
+ * <p/>
+ * The payload is encoded once per push. Requests are sent with <a href="https://square.github.io/okhttp/">OkHttp</a>, an optional dependency of this module: add {@code
+ * com.squareup.okhttp3:okhttp} to use this pusher. Over TLS, HTTP/2 is negotiated with ALPN, which needs Java 8u252 or later. An {@code http} endpoint, such as a local stub
+ * server, is spoken to in cleartext HTTP/2 without negotiation. Call {@link #close()} when the pusher is no longer needed.
+ *
+ * @param <CT> The type of ClientTokens this pusher is using
+ * @param <P>  The platform identifier type, identifying the platform to which the pusher pushes its messages.
+ * @param <G>  The type of the group identifier. A group identifier is used to put client tokens in a collection of groups, so that a push can be done to specific groups.
+ * @author Mike Seghers
+ */
+public final class ApnsHttp2Pusher<CT extends ClientToken<String, P>, P, G> implements Pusher<P, G>, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApnsHttp2Pusher.class);
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    public static final String PRODUCTION_ENDPOINT = "https://api.push.apple.com";
+    public static final String SANDBOX_ENDPOINT = "https://api.sandbox.push.apple.com";
+    public static final String METRICS_SERVICE = "apns";
+    public static final int DEFAULT_CONNECTIONS = 2;
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    /**
+     * The number of tokens whose responses are reported together to the feedback and metrics.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    static final String REASON_BAD_DEVICE_TOKEN = "BadDeviceToken";
+
+    private final ClientTokenService<CT, String, P, G> clientTokenService;
+    private final ClientTokenFactory<CT, String, P> clientTokenFactory;
+    private final P platform;
+    private final String topic;
+    private final String endpoint;
+    private final ApnsProviderTokenManager providerTokenManager;
+    private final PushRateLimiter rateLimiter;
+    private final int maxStreamsInFlight;
+    private final ClientTokenFeedback<CT, String> feedback;
+    private final PushMetrics metrics;
+    private final String platformTag;
+    private final ExecutorService callExecutor;
+    private final List<OkHttpClient> connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    private ApnsHttp2Pusher(final Builder<CT, P, G> builder) {
+        this.clientTokenService = builder.clientTokenService;
+        this.clientTokenFactory = builder.clientTokenFactory;
+        this.platform = builder.platform;
+        this.topic = builder.topic;
+        this.endpoint = builder.endpoint;
+        this.providerTokenManager = builder.providerTokenManager;
+        this.rateLimiter = builder.rateLimiter;
+        this.maxStreamsInFlight = builder.connections * builder.maxConcurrentStreams;
+        this.feedback = builder.feedback != null ? builder.feedback : new DirectClientTokenFeedback<>(builder.clientTokenService);
+        this.metrics = builder.metrics;
+        this.platformTag = String.valueOf(builder.platform);
+        callExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("promtius-apns-http2-%d").setDaemon(true).build());
+        ImmutableList.Builder<OkHttpClient> clients = ImmutableList.builder();
+        for (int i = 0; i < builder.connections; i++) {
+            clients.add(createConnection(builder));
+        }
+        connections = clients.build();
+    }
+
+    /**
+     * Creates a client keeping a single connection, so the configured number of clients is the number of connections.
+     */
+    private OkHttpClient createConnection(final Builder<CT, P, G> builder) {
+        Dispatcher dispatcher = new Dispatcher(callExecutor);
+        dispatcher.setMaxRequests(builder.maxConcurrentStreams);
+        dispatcher.setMaxRequestsPerHost(builder.maxConcurrentStreams);
+        OkHttpClient.Builder client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(1, 5, TimeUnit.MINUTES))
+                .connectTimeout(builder.connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(builder.readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true);
+        if (builder.endpoint.startsWith("http:")) {
+            client.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        } else {
+            client.protocols(ImmutableList.of(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        }
+        if (builder.sslSocketFactory != null) {
+            client.sslSocketFactory(builder.sslSocketFactory, builder.trustManager);
+        }
+        return client.build();
+    }
+
+    @Override
+    public void sendPush(final PushPayload payload) {
+        LOGGER.info("Sending payload ({}) to APNs over HTTP/2", payload);
+        NotificationBatcher batcher = new NotificationBatcher(payload);
+        try {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            ClientTokenServices.visitClientTokensForOperatingSystem(clientTokenService, platform, batcher);
+            batcher.flush();
+            recordTokenLookup(stopwatch, batcher);
+        } finally {
+            batcher.awaitStreamsInFlight();
+        }
+        batcher.throwIfPushFailed();
+        LOGGER.info("APNs HTTP/2 push finished", payload);
+    }
+
+    @Override
+    public void sendPush(final PushPayload payload, final Collection<G> groups) {
+        LOGGER.info("Sending payload ({}) to groups {} over HTTP/2", payload, groups);
+        NotificationBatcher batcher = new NotificationBatcher(payload);
+        try {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            ClientTokenServices.visitClientTokensForOperatingSystem(clientTokenService, platform, groups, batcher);
+            batcher.flush();
+            recordTokenLookup(stopwatch, batcher);
+        } finally {
+            batcher.awaitStreamsInFlight();
+        }
+        batcher.throwIfPushFailed();
+        LOGGER.info("APNs HTTP/2 group push finished", payload);
+    }
+
+    @Override
+    public Set<P> getPlatforms() {
+        return ImmutableSet.of(platform);
+    }
+
+    /**
+     * Closes the connections and stops the threads waiting on responses.
+     */
+    @Override
+    public void close() {
+        callExecutor.shutdown();
+        for (OkHttpClient connection : connections) {
+            connection.connectionPool().evictAll();
+        }
+    }
+
+    private void recordTokenLookup(final Stopwatch stopwatch, final NotificationBatcher batcher) {
+        long lookupNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS) - batcher.getBatchProcessingNanos();
+        metrics.recordTime(PushMetricNames.TOKEN_LOOKUP, lookupNanos, TimeUnit.NANOSECONDS, PushMetricNames.TAG_PLATFORM, platformTag);
+    }
+
+    private OkHttpClient nextConnection() {
+        return connections.get((nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.size());
+    }
+
+    private Request buildRequest(final String token, final RequestBody body, final PushPayload payload) {
+        Request.Builder request = new Request.Builder()
+                .url(endpoint + "/3/device/" + token)
+                .header("apns-topic", topic)
+                .header("apns-priority", payload.getPushPriority() == PushPriority.HIGH ? "10" : "5")
+                .post(body);
+        if (providerTokenManager != null) {
+            request.header("authorization", "bearer " + providerTokenManager.getToken());
+        }
+        if (payload.getTimeToLive().isPresent()) {
+            long expiration = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + TimeUnit.MINUTES.toSeconds(payload.getTimeToLive().get());
+            request.header("apns-expiration", String.valueOf(expiration));
+        }
+        return request.build();
+    }
+
+    /**
+     * Gets the reason APNs gave for refusing a notification, or {@literal null} if there is none.
+     */
+    private static String readReason(final ResponseBody body) {
+        try {
+            Object response = new JSONParser().parse(body.charStream());
+            Object reason = response instanceof JSONObject ? ((JSONObject) response).get("reason") : null;
+            return reason == null ? null : reason.toString();
+        } catch (IOException | ParseException | RuntimeException e) {
+            LOGGER.debug("Could not read the reason of an APNs response", e);
+            return null;
+        }
+    }
+
+    private static boolean isUnregistered(final int status, final String reason) {
+        return status == 410 || (status == 400 && REASON_BAD_DEVICE_TOKEN.equals(reason));
+    }
+
+    private static boolean isServiceFailure(final int status) {
+        return status == 403 || status == 429 || status >= 500;
+    }
+
+    /**
+     * Sends a notification for every token as soon as a batch of tokens is read, with at most the configured number of streams in flight over all connections. Reading further
+     * tokens blocks until a stream finishes. The first service failure stops the push.
+     */
+    private final class NotificationBatcher extends ClientTokenBatcher<CT, String> {
+        private final PushPayload payload;
+        private final RequestBody body;
+        private final Semaphore streamsInFlight = new Semaphore(maxStreamsInFlight);
+        private final AtomicReference<PushFailedException> failure = new AtomicReference<>();
+
+        private NotificationBatcher(final PushPayload payload) {
+            super(BATCH_SIZE);
+            this.payload = payload;
+            this.body = RequestBody.create(JSON, ApplePushNotificationServicePusher.buildPayload(payload).getBytes(Charsets.UTF_8));
+        }
+
+        @Override
+        protected void processBatch(final List<String> batch) {
+            metrics.recordValue(PushMetricNames.BATCH_SIZE, batch.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+            metrics.increment(PushMetricNames.TOKENS_ATTEMPTED, batch.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+            BatchResponses responses = new BatchResponses(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                if (failure.get() != null) {
+                    responses.skip(batch.size() - i);
+                    break;
+                }
+                Request request = buildRequestOrFail(batch.get(i), responses);
+                if (request == null) {
+                    continue;
+                }
+                try {
+                    acquireStream();
+                    acquireRate();
+                } catch (RuntimeException e) {
+                    responses.skip(batch.size() - i);
+                    throw e;
+                }
+                send(batch.get(i), request, responses);
+            }
+            throwIfPushFailed();
+        }
+
+        /**
+         * Builds the request before any permit is taken, failing the push and the token if it can't be built, e.g. because the provider token can't be signed.
+         */
+        private Request buildRequestOrFail(final String token, final BatchResponses responses) {
+            try {
+                return buildRequest(token, body, payload);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, new PushFailedException("could not build notification request for payload " + payload, e));
+                responses.failed();
+                return null;
+            }
+        }
+
+        private void send(final String token, final Request request, final BatchResponses responses) {
+            final long start = System.nanoTime();
+            try {
+                enqueue(token, request, responses, start);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, new PushFailedException("could not send notification to APNs for payload " + payload, e));
+                responses.failed();
+                rateLimiter.release();
+                streamsInFlight.release();
+            }
+        }
+
+        private void enqueue(final String token, final Request request, final BatchResponses responses, final long start) {
+            nextConnection().newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(final Call call, final IOException e) {
+                    try {
+                        recordLatency(start, PushMetricNames.STATUS_IO_ERROR);
+                        failure.compareAndSet(null, new PushFailedException("could not send notification to APNs for payload " + payload, e));
+                        responses.failed();
+                    } finally {
+                        rateLimiter.release();
+                        streamsInFlight.release();
+                    }
+                }
+
+                @Override
+                public void onResponse(final Call call, final Response response) {
+                    try {
+                        int status = response.code();
+                        recordLatency(start, String.valueOf(status));
+                        if (status == 200) {
+                            responses.succeeded();
+                            return;
+                        }
+                        String reason = readReason(response.body());
+                        LOGGER.debug("APNs refused notification for token {} with status {} ({})", token, status, reason);
+                        if (isServiceFailure(status)) {
+                            failure.compareAndSet(null, new PushFailedException("APNs refused service with status " + status + " (" + reason + ") for payload " + payload));
+                            responses.failed();
+                        } else if (isUnregistered(status, reason)) {
+                            responses.unregistered(token);
+                        } else {
+                            responses.failed();
+                        }
+                    } finally {
+                        response.close();
+                        rateLimiter.release();
+                        streamsInFlight.release();
+                    }
+                }
+            });
+        }
+
+        private void recordLatency(final long start, final String status) {
+            metrics.recordTime(PushMetricNames.HTTP_LATENCY, System.nanoTime() - start, TimeUnit.NANOSECONDS, PushMetricNames.TAG_SERVICE, METRICS_SERVICE,
+                    PushMetricNames.TAG_STATUS, status);
+        }
+
+        private void acquireStream() {
+            try {
+                streamsInFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PushFailedException("interrupted while waiting to send notification for payload " + payload, e);
+            }
+        }
+
+        private void acquireRate() {
+            try {
+                rateLimiter.acquire(1);
+            } catch (RuntimeException e) {
+                streamsInFlight.release();
+                throw e;
+            }
+        }
+
+        private void awaitStreamsInFlight() {
+            streamsInFlight.acquireUninterruptibly(maxStreamsInFlight);
+            streamsInFlight.release(maxStreamsInFlight);
+        }
+
+        private void throwIfPushFailed() {
+            PushFailedException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Collects the responses of one batch, and reports them once the last one came in.
+     */
+    private final class BatchResponses {
+        private final AtomicInteger remaining;
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final List<CT> unregistered = Collections.synchronizedList(new ArrayList<CT>());
+
+        private BatchResponses(final int size) {
+            remaining = new AtomicInteger(size);
+        }
+
+        void succeeded() {
+            succeeded.incrementAndGet();
+            countDown(1);
+        }
+
+        void failed() {
+            failed.incrementAndGet();
+            countDown(1);
+        }
+
+        void unregistered(final String token) {
+            unregistered.add(clientTokenFactory.createClientToken(token, platform));
+            failed.incrementAndGet();
+            countDown(1);
+        }
+
+        /**
+         * Counts tokens that were never sent because the push failed.
+         */
+        void skip(final int tokens) {
+            failed.addAndGet(tokens);
+            countDown(tokens);
+        }
+
+        private void countDown(final int tokens) {
+            if (remaining.addAndGet(-tokens) == 0) {
+                report();
+            }
+        }
+
+        private void report() {
+            metrics.increment(PushMetricNames.TOKENS_SUCCEEDED, succeeded.get(), PushMetricNames.TAG_PLATFORM, platformTag);
+            metrics.increment(PushMetricNames.TOKENS_FAILED, failed.get(), PushMetricNames.TAG_PLATFORM, platformTag);
+            if (!unregistered.isEmpty()) {
+                try {
+                    feedback.unregisterClientTokens(new ArrayList<>(unregistered));
+                } catch (RuntimeException e) {
+                    LOGGER.error("Unregistering {} client tokens reported by APNs failed", unregistered.size(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds an {@link ApnsHttp2Pusher}.
+     *
+     * @param <CT> The type of ClientTokens the pusher is using
+     * @param <P>  The platform identifier type.
+     * @param <G>  The type of the group identifier.
+     */
+    public static final class Builder<CT extends ClientToken<String, P>, P, G> {
+        private final ClientTokenService<CT, String, P, G> clientTokenService;
+        private final ClientTokenFactory<CT, String, P> clientTokenFactory;
+        private final P platform;
+        private final String topic;
+        private String endpoint = PRODUCTION_ENDPOINT;
+        private int connections = DEFAULT_CONNECTIONS;
+        private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+        private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+        private SSLSocketFactory sslSocketFactory;
+        private X509TrustManager trustManager;
+        private ApnsProviderTokenManager providerTokenManager;
+        private PushRateLimiter rateLimiter = PushRateLimiter.UNLIMITED;
+        private ClientTokenFeedback<CT, String> feedback;
+        private PushMetrics metrics = NoOpPushMetrics.INSTANCE;
+
+        /**
+         * @param topic The topic of the notifications, usually the bundle id of the app.
+         */
+        public Builder(final ClientTokenService<CT, String, P, G> clientTokenService, final ClientTokenFactory<CT, String, P> clientTokenFactory, final P platform,
+                       final String topic) {
+            this.clientTokenService = clientTokenService;
+            this.clientTokenFactory = clientTokenFactory;
+            this.platform = platform;
+            this.topic = topic;
+        }
+
+        /**
+         * The base URL of APNs. Defaults to {@link #PRODUCTION_ENDPOINT}, use {@link #SANDBOX_ENDPOINT} for development builds of the app.
+         */
+        public Builder<CT, P, G> withEndpoint(final String endpoint) {
+            this.endpoint = endpoint;
+            return this;
+        }
+
+        /**
+         * The number of HTTP/2 connections to APNs. Defaults to {@value #DEFAULT_CONNECTIONS}.
+         */
+        public Builder<CT, P, G> withConnections(final int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        /**
+         * The maximum number of notifications in flight on a single connection. APNs announces its own limit per connection, streams beyond that limit wait for a free one.
+         * Defaults to {@value #DEFAULT_MAX_CONCURRENT_STREAMS}.
+         */
+        public Builder<CT, P, G> withMaxConcurrentStreams(final int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            return this;
+        }
+
+        /**
+         * The timeout for opening a connection. Defaults to {@value #DEFAULT_CONNECT_TIMEOUT_MILLIS} milliseconds.
+         */
+        public Builder<CT, P, G> withConnectTimeoutMillis(final int connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * The timeout for waiting on a response. Defaults to {@value #DEFAULT_READ_TIMEOUT_MILLIS} milliseconds.
+         */
+        public Builder<CT, P, G> withReadTimeoutMillis(final int readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * The TLS socket factory, holding the provider certificate to authenticate with. Defaults to the platform's socket factory. See {@link ApnsServiceFactory.Builder} to
+         * create one from a {@code .p12} certificate.
+         */
+        public Builder<CT, P, G> withSslSocketFactory(final SSLSocketFactory sslSocketFactory, final X509TrustManager trustManager) {
+            this.sslSocketFactory = sslSocketFactory;
+            this.trustManager = trustManager;
+            return this;
+        }
+
+        /**
+         * Authenticates with provider tokens instead of a provider certificate. The manager's cached token is sent with every notification.
+         */
+        public Builder<CT, P, G> withProviderToken(final ApnsProviderTokenManager providerTokenManager) {
+            this.providerTokenManager = providerTokenManager;
+            return this;
+        }
+
+        /**
+         * The rate limiter every notification waits for before it is sent, on top of the limit of concurrent streams. Share it with every pusher using the same certificate or
+         * signing key. Defaults to {@link PushRateLimiter#UNLIMITED}.
+         */
+        public Builder<CT, P, G> withRateLimiter(final PushRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * The feedback to which the tokens reported as unregistered by APNs are passed, once per batch. Defaults to a {@link DirectClientTokenFeedback} updating the client
+         * token service on the thread receiving the last response of the batch.
+         */
+        public Builder<CT, P, G> withFeedback(final ClientTokenFeedback<CT, String> feedback) {
+            this.feedback = feedback;
+            return this;
+        }
+
+        /**
+         * The metrics to which tokens, batches, token lookups and request latencies are reported. Defaults to {@link NoOpPushMetrics}.
+         */
+        public Builder<CT, P, G> withMetrics(final PushMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public ApnsHttp2Pusher<CT, P, G> build() {
+            Preconditions.checkState(clientTokenService != null, "A client token service is needed");
+            Preconditions.checkState(clientTokenFactory != null, "A client token factory is needed");
+            Preconditions.checkState(topic != null && !topic.isEmpty(), "A topic is needed");
+            Preconditions.checkState(endpoint != null && (endpoint.startsWith("https:") || endpoint.startsWith("http:")), "An http or https endpoint is needed");
+            Preconditions.checkState(connections > 0, "At least one connection is needed");
+            Preconditions.checkState(maxConcurrentStreams > 0, "At least one concurrent stream is needed");
+            Preconditions.checkState(connectTimeoutMillis >= 0 && readTimeoutMillis >= 0, "Timeouts should not be negative");
+            Preconditions.checkState((sslSocketFactory == null) == (trustManager == null), "An SSL socket factory needs a trust manager");
+            Preconditions.checkState(metrics != null, "Metrics are needed, use NoOpPushMetrics to report nothing");
+            Preconditions.checkState(rateLimiter != null, "A rate limiter is needed, use PushRateLimiter.UNLIMITED to not limit the rate");
+            return new ApnsHttp2Pusher<>(this);
+        }
+    }
+}
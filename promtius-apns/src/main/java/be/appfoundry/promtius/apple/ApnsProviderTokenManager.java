@@ -0,0 +1,166 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.exception.PromtiusException;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Signs the provider authentication tokens (JWT) with which the {@link ApnsHttp2Pusher} authenticates to APNs, and caches them.
+ * <p/>
+ * Signing with ES256 is relatively expensive, so a token is signed once and shared by all connections and threads. APNs accepts a token for one hour, and refuses to
+ * accept a new one more often than every 20 minutes. The token is therefore re-signed once it is older than the refresh interval, 50 minutes by default, well before it
+ * expires. Reading the cached token is a single volatile read. Re-signing happens on one thread, while the others keep using the previous token as long as it is valid; they
+ * only wait for the new token when there is no valid one.
+ *
+ * @author Mike Seghers
+ */
+public class ApnsProviderTokenManager {
+    public static final long DEFAULT_REFRESH_INTERVAL_SECONDS = TimeUnit.MINUTES.toSeconds(50);
+
+    private static final BaseEncoding BASE64_URL = BaseEncoding.base64Url().omitPadding();
+    private static final int ES256_COORDINATE_LENGTH = 32;
+    private static final long TOKEN_VALIDITY_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final String teamId;
+    private final String keyId;
+    private final PrivateKey signingKey;
+    private final long refreshIntervalNanos;
+    private final Ticker ticker;
+    private final Lock refreshLock = new ReentrantLock();
+    private volatile SignedToken current;
+
+    /**
+     * Creates a manager signing tokens with the given key, refreshing them every {@value #DEFAULT_REFRESH_INTERVAL_SECONDS} seconds.
+     *
+     * @param teamId     The id of the developer team the key belongs to.
+     * @param keyId      The id of the key, as shown in the Apple developer account.
+     * @param signingKey The EC private key on the P-256 curve, see {@link #loadSigningKey(InputStream)}.
+     */
+    public ApnsProviderTokenManager(final String teamId, final String keyId, final PrivateKey signingKey) {
+        this(teamId, keyId, signingKey, DEFAULT_REFRESH_INTERVAL_SECONDS, Ticker.systemTicker());
+    }
+
+    ApnsProviderTokenManager(final String teamId, final String keyId, final PrivateKey signingKey, final long refreshIntervalSeconds, final Ticker ticker) {
+        Preconditions.checkArgument(teamId != null && !teamId.isEmpty(), "A team id is needed");
+        Preconditions.checkArgument(keyId != null && !keyId.isEmpty(), "A key id is needed");
+        Preconditions.checkArgument(signingKey != null && "EC".equals(signingKey.getAlgorithm()), "An EC signing key is needed");
+        Preconditions.checkArgument(refreshIntervalSeconds > 0, "Refresh interval should be positive");
+        this.teamId = teamId;
+        this.keyId = keyId;
+        this.signingKey = signingKey;
+        this.refreshIntervalNanos = TimeUnit.SECONDS.toNanos(refreshIntervalSeconds);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Loads the signing key from a {@code .p8} file as downloaded from the Apple developer account: a PEM encoded PKCS#8 EC private key.
+     */
+    public static PrivateKey loadSigningKey(final InputStream p8) {
+        try {
+            String pem = new String(ByteStreams.toByteArray(p8), Charsets.US_ASCII);
+            String base64 = pem.replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "").replaceAll("\\s", "");
+            return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(BaseEncoding.base64().decode(base64)));
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            throw new PromtiusException("Could not load the APNs signing key", e);
+        }
+    }
+
+    /**
+     * Gets the current token, signing a new one if there is none yet or if it is older than the refresh interval. While another thread is signing, the previous token is
+     * returned as long as it is valid.
+     */
+    public String getToken() {
+        SignedToken token = current;
+        if (token != null && !isOlderThan(token, refreshIntervalNanos)) {
+            return token.value;
+        }
+        if (token != null && !isOlderThan(token, TOKEN_VALIDITY_NANOS)) {
+            if (!refreshLock.tryLock()) {
+                return token.value;
+            }
+        } else {
+            refreshLock.lock();
+        }
+        try {
+            return refresh().value;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private boolean isOlderThan(final SignedToken token, final long ageNanos) {
+        return ticker.read() - token.signedAtNanos >= ageNanos;
+    }
+
+    private SignedToken refresh() {
+        SignedToken token = current;
+        if (token == null || isOlderThan(token, refreshIntervalNanos)) {
+            token = new SignedToken(sign(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())), ticker.read());
+            current = token;
+        }
+        return token;
+    }
+
+    String sign(final long issuedAtSeconds) {
+        String header = BASE64_URL.encode(("{\"alg\":\"ES256\",\"kid\":\"" + keyId + "\"}").getBytes(Charsets.UTF_8));
+        String claims = BASE64_URL.encode(("{\"iss\":\"" + teamId + "\",\"iat\":" + issuedAtSeconds + "}").getBytes(Charsets.UTF_8));
+        String signingInput = header + '.' + claims;
+        try {
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(signingKey);
+            signature.update(signingInput.getBytes(Charsets.US_ASCII));
+            return signingInput + '.' + BASE64_URL.encode(derToConcatenated(signature.sign()));
+        } catch (GeneralSecurityException e) {
+            throw new PromtiusException("Could not sign the APNs provider token", e);
+        }
+    }
+
+    /**
+     * Converts an ASN.1 DER encoded ECDSA signature, a sequence of the integers r and s, to the concatenation of both as 32 byte unsigned big endian numbers, as JWT expects.
+     */
+    static byte[] derToConcatenated(final byte[] der) {
+        int offset = 2;
+        if ((der[1] & 0xff) == 0x81) {
+            // the sequence length takes an extra byte once it exceeds 127
+            offset++;
+        }
+        byte[] concatenated = new byte[2 * ES256_COORDINATE_LENGTH];
+        offset = copyInteger(der, offset, concatenated, 0);
+        copyInteger(der, offset, concatenated, ES256_COORDINATE_LENGTH);
+        return concatenated;
+    }
+
+    private static int copyInteger(final byte[] der, final int offset, final byte[] target, final int targetOffset) {
+        int length = der[offset + 1];
+        int start = offset + 2;
+        int end = start + length;
+        // skip the sign byte, or left-pad a shorter number with zeroes
+        int significant = Math.min(length, ES256_COORDINATE_LENGTH);
+        System.arraycopy(der, end - significant, target, targetOffset + ES256_COORDINATE_LENGTH - significant, significant);
+        return end;
+    }
+
+    private static final class SignedToken {
+        private final String value;
+        private final long signedAtNanos;
+
+        private SignedToken(final String value, final long signedAtNanos) {
+            this.value = value;
+            this.signedAtNanos = signedAtNanos;
+        }
+    }
+}
@@ -1,16 +1,34 @@
 package be.appfoundry.promtius.apple;
 
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.exception.PromtiusException;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.ApnsServiceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
 
 /**
+ * Creates the services and pushers talking to APNs. The static methods create an {@link ApnsService} authenticating with a {@code .p12} certificate loaded from the
+ * classpath. The {@link Builder} also authenticates with provider tokens, which only the HTTP/2 provider API supports.
+ *
  * @author Mike Seghers
  */
 public class ApnsServiceFactory {
@@ -29,32 +47,172 @@ public class ApnsServiceFactory {
     }
 
     private static ApnsService internalGetApnsService(final String certPath, final String certPass, final boolean sandbox) {
-        ApnsService service;
-        if (Strings.isNullOrEmpty(certPass)) {
-            service = fallBackToNoOpService();
+        Builder builder = new Builder().withCertificate(certPath, certPass);
+        if (sandbox) {
+            builder.withSandboxDestination();
         } else {
-            InputStream resource = ApplePushNotificationServicePusher.class.getResourceAsStream(certPath);
-            if (resource != null) {
-                LOGGER.info("APNs configuration seems ok, setting up APNs.");
-                ApnsServiceBuilder apnsServiceBuilder = APNS.newService().withCert(resource, certPass);
-                if (sandbox) {
-                    LOGGER.info("APNs setup for sandbox");
-                    apnsServiceBuilder.withSandboxDestination();
-                } else {
-                    LOGGER.info("APNs setup for production");
-                    apnsServiceBuilder.withProductionDestination();
-                }
-                service = apnsServiceBuilder.build();
-            } else {
-                LOGGER.warn(certPath + " could not be loaded, are you sure this is a valid resource path?");
-                service = fallBackToNoOpService();
-            }
+            builder.withProductionDestination();
         }
-        return service;
+        return builder.build();
     }
 
     private static ApnsService fallBackToNoOpService() {
         LOGGER.warn("APNs Service not configured properly, falling back to NO-OP service, your push notifications will not be send to Apple!");
         return new NoopApnsService();
     }
+
+    /**
+     * Configures how to authenticate to APNs, with a {@code .p12} provider certificate or with provider tokens, and which destination to push to.
+     * <p/>
+     * {@link #build()} creates an {@link ApnsService} on the binary interface, which only knows certificates. {@link #newHttp2PusherBuilder(ClientTokenService,
+     * ClientTokenFactory, Object, String)} prepares an {@link ApnsHttp2Pusher} using either one.
+     */
+    public static class Builder {
+        private String certPath;
+        private byte[] certificate;
+        private String certPass;
+        private ApnsProviderTokenManager providerTokenManager;
+        private boolean sandbox;
+
+        /**
+         * Authenticates with the {@code .p12} certificate at the given classpath resource path.
+         */
+        public Builder withCertificate(final String certPath, final String certPass) {
+            this.certPath = certPath;
+            this.certificate = null;
+            this.certPass = certPass;
+            return this;
+        }
+
+        /**
+         * Authenticates with the {@code .p12} certificate read from the given stream. The stream is read right away, and is not closed.
+         */
+        public Builder withCertificate(final InputStream certificate, final String certPass) {
+            try {
+                this.certificate = ByteStreams.toByteArray(certificate);
+            } catch (IOException e) {
+                throw new PromtiusException("Could not read the APNs certificate", e);
+            }
+            this.certPath = null;
+            this.certPass = certPass;
+            return this;
+        }
+
+        /**
+         * Authenticates with provider tokens signed by the given manager. Only supported by the HTTP/2 provider API.
+         */
+        public Builder withProviderToken(final ApnsProviderTokenManager providerTokenManager) {
+            this.providerTokenManager = providerTokenManager;
+            return this;
+        }
+
+        /**
+         * Authenticates with provider tokens signed with the {@code .p8} signing key read from the given stream. Only supported by the HTTP/2 provider API.
+         *
+         * @see ApnsProviderTokenManager#loadSigningKey(InputStream)
+         */
+        public Builder withProviderToken(final String teamId, final String keyId, final InputStream signingKey) {
+            return withProviderToken(teamId, keyId, ApnsProviderTokenManager.loadSigningKey(signingKey));
+        }
+
+        /**
+         * Authenticates with provider tokens signed with the given signing key. Only supported by the HTTP/2 provider API.
+         */
+        public Builder withProviderToken(final String teamId, final String keyId, final PrivateKey signingKey) {
+            return withProviderToken(new ApnsProviderTokenManager(teamId, keyId, signingKey));
+        }
+
+        public Builder withSandboxDestination() {
+            this.sandbox = true;
+            return this;
+        }
+
+        /**
+         * Pushes to the production destination, the default.
+         */
+        public Builder withProductionDestination() {
+            this.sandbox = false;
+            return this;
+        }
+
+        /**
+         * Builds an {@link ApnsService} authenticating with the configured certificate. Falls back to a {@link NoopApnsService} when no password is given or the certificate
+         * resource could not be found.
+         *
+         * @throws IllegalStateException when configured with provider tokens, which the binary interface does not support.
+         */
+        public ApnsService build() {
+            Preconditions.checkState(providerTokenManager == null, "Provider tokens are only supported by the HTTP/2 provider API, use newHttp2PusherBuilder instead");
+            byte[] cert = Strings.isNullOrEmpty(certPass) ? null : loadCertificate();
+            if (cert == null) {
+                return fallBackToNoOpService();
+            }
+            LOGGER.info("APNs configuration seems ok, setting up APNs.");
+            ApnsServiceBuilder apnsServiceBuilder = APNS.newService().withCert(new ByteArrayInputStream(cert), certPass);
+            if (sandbox) {
+                LOGGER.info("APNs setup for sandbox");
+                apnsServiceBuilder.withSandboxDestination();
+            } else {
+                LOGGER.info("APNs setup for production");
+                apnsServiceBuilder.withProductionDestination();
+            }
+            return apnsServiceBuilder.build();
+        }
+
+        /**
+         * Prepares a builder for an {@link ApnsHttp2Pusher} pushing to the configured destination, authenticating with the configured provider tokens or certificate.
+         *
+         * @throws IllegalStateException when neither provider tokens nor a loadable certificate are configured.
+         */
+        public <CT extends ClientToken<String, P>, P, G> ApnsHttp2Pusher.Builder<CT, P, G> newHttp2PusherBuilder(final ClientTokenService<CT, String, P, G> clientTokenService,
+                                                                                                                 final ClientTokenFactory<CT, String, P> clientTokenFactory,
+                                                                                                                 final P platform, final String topic) {
+            ApnsHttp2Pusher.Builder<CT, P, G> builder = new ApnsHttp2Pusher.Builder<>(clientTokenService, clientTokenFactory, platform, topic)
+                    .withEndpoint(sandbox ? ApnsHttp2Pusher.SANDBOX_ENDPOINT : ApnsHttp2Pusher.PRODUCTION_ENDPOINT);
+            if (providerTokenManager != null) {
+                return builder.withProviderToken(providerTokenManager);
+            }
+            byte[] cert = loadCertificate();
+            Preconditions.checkState(cert != null && certPass != null, "Provider tokens or a certificate with its password are needed");
+            try {
+                KeyStore keyStore = KeyStore.getInstance("PKCS12");
+                keyStore.load(new ByteArrayInputStream(cert), certPass.toCharArray());
+                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagerFactory.init(keyStore, certPass.toCharArray());
+                X509TrustManager trustManager = defaultTrustManager();
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(keyManagerFactory.getKeyManagers(), new TrustManager[]{trustManager}, null);
+                return builder.withSslSocketFactory(sslContext.getSocketFactory(), trustManager);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new PromtiusException("Could not set up TLS with the APNs certificate", e);
+            }
+        }
+
+        private byte[] loadCertificate() {
+            if (certificate != null || certPath == null) {
+                return certificate;
+            }
+            InputStream resource = ApplePushNotificationServicePusher.class.getResourceAsStream(certPath);
+            if (resource == null) {
+                LOGGER.warn(certPath + " could not be loaded, are you sure this is a valid resource path?");
+                return null;
+            }
+            try (InputStream in = resource) {
+                return ByteStreams.toByteArray(in);
+            } catch (IOException e) {
+                throw new PromtiusException("Could not read the APNs certificate " + certPath, e);
+            }
+        }
+
+        private static X509TrustManager defaultTrustManager() throws GeneralSecurityException {
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init((KeyStore) null);
+            for (TrustManager trustManager : trustManagerFactory.getTrustManagers()) {
+                if (trustManager instanceof X509TrustManager) {
+                    return (X509TrustManager) trustManager;
+                }
+            }
+            throw new IllegalStateException("No X509 trust manager available");
+        }
+    }
 }
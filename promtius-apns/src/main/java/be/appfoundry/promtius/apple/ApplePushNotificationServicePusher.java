@@ -3,11 +3,18 @@ package be.appfoundry.promtius.apple;
 import be.appfoundry.promtius.ClientToken;
 import be.appfoundry.promtius.ClientTokenFactory;
 import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.ClientTokenServices;
+import be.appfoundry.promtius.MappingClientTokenBatcher;
 import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.PushRateLimiter;
 import be.appfoundry.promtius.Pusher;
-import com.google.common.base.Function;
+import be.appfoundry.promtius.metrics.NoOpPushMetrics;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.PayloadBuilder;
@@ -15,13 +22,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.Date;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link be.appfoundry.promtius.Pusher} capable of sending payload via Apple's Push Notification Services.
+ * <p/>
+ * APNs reports rejected notifications asynchronously, if at all. The tokens reported as succeeded to the {@link PushMetrics} are therefore the tokens accepted by the {@link
+ * ApnsService}, while the failed ones are the tokens of batches the service threw on, and tokens that are not hex strings.
+ * <p/>
+ * The payload is encoded to bytes once per push, and handed to the service together with the binary device tokens, so the service does not convert them for every
+ * notification. Tokens implementing {@link ApnsClientToken} provide their binary form themselves, others are decoded on every push.
+ * <p/>
+ * The pusher does not poll the APNs feedback service, so every push goes straight to delivery. Use an {@link ApnsFeedbackPoller} to unregister inactive devices on its own
+ * schedule.
  *
  * @param <CT> The type of ClientTokens this pusher is using
  * @param <P>  The platform identifier type, identifying the platform to which the pusher pushes its messages.
@@ -32,74 +47,142 @@ public class ApplePushNotificationServicePusher<CT extends ClientToken<String, P
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ApplePushNotificationServicePusher.class);
 
+    /**
+     * The maximum number of device tokens handed to the {@link ApnsService} at once.
+     */
+    public static final int PUSH_BATCH_SIZE = 1000;
+
     private final ApnsService apnsService;
     private final ClientTokenService<CT, String, P, G> clientTokenService;
-    private final ClientTokenFactory<CT, String, P> clientTokenFactory;
     private final P platform;
+    private final PushMetrics metrics;
+    private final PushRateLimiter rateLimiter;
+    private final String platformTag;
 
     public ApplePushNotificationServicePusher(ApnsService apnsService, ClientTokenService<CT, String, P, G> clientTokenService,
                                               ClientTokenFactory<CT, String, P> clientTokenFactory, final P platform) {
+        this(apnsService, clientTokenService, clientTokenFactory, platform, NoOpPushMetrics.INSTANCE);
+    }
+
+    /**
+     * Creates a pusher reporting its tokens, batches and token lookups to the given metrics. The client token factory is no longer used by the pusher, inactive devices are
+     * unregistered by an {@link ApnsFeedbackPoller}.
+     */
+    public ApplePushNotificationServicePusher(ApnsService apnsService, ClientTokenService<CT, String, P, G> clientTokenService,
+                                              ClientTokenFactory<CT, String, P> clientTokenFactory, final P platform, final PushMetrics metrics) {
+        this(apnsService, clientTokenService, platform, metrics, PushRateLimiter.UNLIMITED);
+    }
+
+    /**
+     * Creates a pusher handing every batch to the service only once the rate limiter allows it, with the batch size as the number of messages. Share the limiter with
+     * every pusher using the same certificate.
+     */
+    public ApplePushNotificationServicePusher(ApnsService apnsService, ClientTokenService<CT, String, P, G> clientTokenService, final P platform,
+                                              final PushMetrics metrics, final PushRateLimiter rateLimiter) {
         this.apnsService = apnsService;
         this.clientTokenService = clientTokenService;
-        this.clientTokenFactory = clientTokenFactory;
         this.platform = platform;
+        this.metrics = Preconditions.checkNotNull(metrics, "Metrics are needed, use NoOpPushMetrics to report nothing");
+        this.rateLimiter = Preconditions.checkNotNull(rateLimiter, "A rate limiter is needed, use PushRateLimiter.UNLIMITED to not limit the rate");
+        this.platformTag = String.valueOf(platform);
     }
 
     @Override
     public void sendPush(final PushPayload payload) {
         LOGGER.info("Sending payload ({}) to APNs", payload);
-        unregisterInactiveDevices();
-        pushPayloadToClientsIdentifiedByTokens(payload, clientTokenService.findClientTokensForOperatingSystem(platform));
+        PayloadBatcher batcher = new PayloadBatcher(payload);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        ClientTokenServices.visitClientTokensForOperatingSystem(clientTokenService, platform, batcher);
+        batcher.flush();
+        recordTokenLookup(stopwatch, batcher);
         LOGGER.info("APNs push finished", payload);
     }
 
     @Override
     public void sendPush(final PushPayload payload, final Collection<G> groups) {
         LOGGER.info("Sending payload ({}) to APNs", payload);
-        unregisterInactiveDevices();
-        LOGGER.debug("Inactive devices unregistered - starting actual push now");
-        pushPayloadToClientsIdentifiedByTokens(payload, clientTokenService.findClientTokensForOperatingSystem(platform, groups));
+        PayloadBatcher batcher = new PayloadBatcher(payload);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        ClientTokenServices.visitClientTokensForOperatingSystem(clientTokenService, platform, groups, batcher);
+        batcher.flush();
+        recordTokenLookup(stopwatch, batcher);
         LOGGER.info("APNs push finished", payload);
     }
 
-    private void pushPayloadToClientsIdentifiedByTokens(final PushPayload payload, final List<CT> tokens) {
-        List<String> tokenIds = Lists.transform(tokens, new Function<ClientToken<String, P>, String>() {
-            @Override
-            public String apply(final ClientToken<String, P> input) {
-                return input.getToken();
-            }
-        });
+    private void recordTokenLookup(final Stopwatch stopwatch, final PayloadBatcher batcher) {
+        long lookupNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS) - batcher.getBatchProcessingNanos();
+        metrics.recordTime(PushMetricNames.TOKEN_LOOKUP, lookupNanos, TimeUnit.NANOSECONDS, PushMetricNames.TAG_PLATFORM, platformTag);
+    }
 
-        LOGGER.debug("Pushing payload to {} devices", tokenIds.size());
+    static String buildPayload(final PushPayload payload) {
         PayloadBuilder builder = APNS.newPayload().alertBody(payload.getMessage()).sound(payload.getSound());
         if (payload.getCustomFields().isPresent()) {
             builder.customFields(payload.getCustomFields().get());
         }
-        String payloadAsString = builder.build();
-        if (payload.getTimeToLive().isPresent()) {
-            int offset = payload.getTimeToLive().get();
-
-            apnsService.push(tokenIds, payloadAsString, new Date(System.currentTimeMillis() + (offset * 60 * 1000)));
-        } else {
-            apnsService.push(tokenIds, payloadAsString);
-        }
+        return builder.build();
     }
 
-    private void unregisterInactiveDevices() {
+    private void pushPayloadToDevices(final List<byte[]> tokenIds, final byte[] payloadBytes, final PushPayload payload) {
+        LOGGER.debug("Pushing payload to {} devices", tokenIds.size());
+        metrics.recordValue(PushMetricNames.BATCH_SIZE, tokenIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+        metrics.increment(PushMetricNames.TOKENS_ATTEMPTED, tokenIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+        rateLimiter.acquire(tokenIds.size());
         try {
-            Map<String, Date> inactiveDevices = apnsService.getInactiveDevices();
-            LOGGER.debug("Unregistering device tokens ({})", inactiveDevices);
-            for (String token : inactiveDevices.keySet()) {
-                clientTokenService.unregisterClientToken(clientTokenFactory.createClientToken(token, platform));
+            if (payload.getTimeToLive().isPresent()) {
+                int offset = payload.getTimeToLive().get();
+
+                apnsService.push(tokenIds, payloadBytes, (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(offset)));
+            } else {
+                apnsService.push(tokenIds, payloadBytes);
             }
-            LOGGER.debug("Inactive devices unregistered - starting actual push now");
-        } catch (Throwable t) {
-            LOGGER.error("Unregistering devices failed - still trying to push though.", t);
+        } catch (RuntimeException e) {
+            metrics.increment(PushMetricNames.TOKENS_FAILED, tokenIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+            throw e;
+        } finally {
+            rateLimiter.release();
         }
+        metrics.increment(PushMetricNames.TOKENS_SUCCEEDED, tokenIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
     }
 
     @Override
     public Set<P> getPlatforms() {
         return ImmutableSet.of(platform);
     }
+
+    /**
+     * Pushes the payload, which is only built and encoded once, to each batch of at most {@link #PUSH_BATCH_SIZE} binary device tokens as soon as the batch is full.
+     */
+    private final class PayloadBatcher extends MappingClientTokenBatcher<CT, byte[]> {
+        private final PushPayload payload;
+        private final byte[] payloadBytes;
+
+        private PayloadBatcher(final PushPayload payload) {
+            super(PUSH_BATCH_SIZE);
+            this.payload = payload;
+            this.payloadBytes = buildPayload(payload).getBytes(Charsets.UTF_8);
+        }
+
+        @Override
+        public void visit(final CT clientToken) {
+            if (clientToken instanceof ApnsClientToken || ApnsDeviceTokens.isValid(clientToken.getToken())) {
+                super.visit(clientToken);
+            } else {
+                LOGGER.warn("Skipping device token {}, it is not a hex string", clientToken.getToken());
+                metrics.increment(PushMetricNames.TOKENS_FAILED, 1, PushMetricNames.TAG_PLATFORM, platformTag);
+            }
+        }
+
+        @Override
+        protected byte[] valueOf(final CT clientToken) {
+            if (clientToken instanceof ApnsClientToken) {
+                return ((ApnsClientToken<?>) clientToken).getTokenBytes();
+            }
+            return ApnsDeviceTokens.decode(clientToken.getToken());
+        }
+
+        @Override
+        protected void processBatch(final List<byte[]> batch) {
+            pushPayloadToDevices(batch, payloadBytes, payload);
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.CircuitBreaker;
+import com.google.common.base.Preconditions;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.NetworkIOException;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Decorates an {@link ApnsService} with a {@link CircuitBreaker}, so pushes fail right away with a {@link be.appfoundry.promtius.exception.CircuitOpenException} while APNs
+ * can't be reached, instead of reconnecting for every batch.
+ * <p/>
+ * A push fails when the service throws. Starting, stopping, testing the connection and reading the feedback service are passed on without involving the circuit.
+ *
+ * @author Mike Seghers
+ */
+public class CircuitBreakingApnsService implements ApnsService {
+    private final ApnsService delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    public CircuitBreakingApnsService(final ApnsService delegate, final CircuitBreaker circuitBreaker) {
+        this.delegate = Preconditions.checkNotNull(delegate, "An APNs service is needed");
+        this.circuitBreaker = Preconditions.checkNotNull(circuitBreaker, "A circuit breaker is needed");
+    }
+
+    @Override
+    public ApnsNotification push(final String deviceToken, final String payload) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            ApnsNotification notification = delegate.push(deviceToken, payload);
+            succeeded = true;
+            return notification;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public EnhancedApnsNotification push(final String deviceToken, final String payload, final Date expiry) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            EnhancedApnsNotification notification = delegate.push(deviceToken, payload, expiry);
+            succeeded = true;
+            return notification;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public ApnsNotification push(final byte[] deviceToken, final byte[] payload) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            ApnsNotification notification = delegate.push(deviceToken, payload);
+            succeeded = true;
+            return notification;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public EnhancedApnsNotification push(final byte[] deviceToken, final byte[] payload, final int expiry) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            EnhancedApnsNotification notification = delegate.push(deviceToken, payload, expiry);
+            succeeded = true;
+            return notification;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public Collection<? extends ApnsNotification> push(final Collection<String> deviceTokens, final String payload) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            Collection<? extends ApnsNotification> notifications = delegate.push(deviceTokens, payload);
+            succeeded = true;
+            return notifications;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public Collection<? extends EnhancedApnsNotification> push(final Collection<String> deviceTokens, final String payload, final Date expiry) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            Collection<? extends EnhancedApnsNotification> notifications = delegate.push(deviceTokens, payload, expiry);
+            succeeded = true;
+            return notifications;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public Collection<? extends ApnsNotification> push(final Collection<byte[]> deviceTokens, final byte[] payload) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            Collection<? extends ApnsNotification> notifications = delegate.push(deviceTokens, payload);
+            succeeded = true;
+            return notifications;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public Collection<? extends EnhancedApnsNotification> push(final Collection<byte[]> deviceTokens, final byte[] payload, final int expiry) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            Collection<? extends EnhancedApnsNotification> notifications = delegate.push(deviceTokens, payload, expiry);
+            succeeded = true;
+            return notifications;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    @Override
+    public void push(final ApnsNotification message) throws NetworkIOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            delegate.push(message);
+            succeeded = true;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    private void record(final long permission, final boolean succeeded) {
+        if (succeeded) {
+            circuitBreaker.recordSuccess(permission);
+        } else {
+            circuitBreaker.recordFailure(permission);
+        }
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+    }
+
+    @Override
+    public void stop() {
+        delegate.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return delegate.getInactiveDevices();
+    }
+
+    @Override
+    public void testConnection() throws NetworkIOException {
+        delegate.testConnection();
+    }
+}
@@ -0,0 +1,30 @@
+package be.appfoundry.promtius.apple;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Mike Seghers
+ */
+public class ApnsDeviceTokensTest {
+
+    @Test
+    public void test_decode_ignoresCaseSpacesAndBrackets() throws Exception {
+        assertThat(ApnsDeviceTokens.decode("<aB01 fF10>"), is(new byte[]{(byte) 0xab, 0x01, (byte) 0xff, 0x10}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_decode_rejectsNonHex() throws Exception {
+        ApnsDeviceTokens.decode("token1");
+    }
+
+    @Test
+    public void test_isValid() throws Exception {
+        assertThat(ApnsDeviceTokens.isValid("<aB01 fF10>"), is(true));
+        assertThat(ApnsDeviceTokens.isValid("token1"), is(false));
+        assertThat(ApnsDeviceTokens.isValid("abc"), is(false));
+        assertThat(ApnsDeviceTokens.isValid(null), is(false));
+    }
+}
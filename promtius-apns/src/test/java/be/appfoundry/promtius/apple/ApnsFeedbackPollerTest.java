@@ -0,0 +1,168 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.BulkClientTokenService;
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenFeedback;
+import be.appfoundry.promtius.ClientTokenService;
+import com.notnoop.apns.ApnsService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ApnsFeedbackPollerTest {
+    private static final String TEST_PLATFORM = "iOS";
+
+    @Mock
+    private ApnsService apnsService;
+    @Mock
+    private ClientTokenService<TestClientToken, String, String, String> clientTokenService;
+    @Mock
+    private ClientTokenFactory<TestClientToken, String, String> clientTokenFactory;
+
+    private final TestClientToken tokenA = new TestClientToken("token1");
+    private final TestClientToken tokenB = new TestClientToken("token2");
+    private ApnsFeedbackPoller<TestClientToken, String> poller;
+
+    @Before
+    public void setUp() throws Exception {
+        when(clientTokenFactory.createClientToken("token1", TEST_PLATFORM)).thenReturn(tokenA);
+        when(clientTokenFactory.createClientToken("token2", TEST_PLATFORM)).thenReturn(tokenB);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (poller != null) {
+            poller.close();
+        }
+    }
+
+    @Test
+    public void test_pollUnregistersInactiveDevices() throws Exception {
+        poller = newIdlePoller(clientTokenService);
+        when(apnsService.getInactiveDevices()).thenReturn(inactive("token1", "token2"));
+
+        assertThat(poller.poll(), is(2));
+
+        verify(clientTokenService).unregisterClientToken(tokenA);
+        verify(clientTokenService).unregisterClientToken(tokenB);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_pollUnregistersAllAtOnceOnBulkService() throws Exception {
+        BulkClientTokenService<TestClientToken, String, String, String> bulkService = mock(BulkClientTokenService.class);
+        poller = newIdlePoller(bulkService);
+        when(apnsService.getInactiveDevices()).thenReturn(inactive("token1", "token2"));
+
+        poller.poll();
+
+        verify(bulkService).unregisterClientTokens(Arrays.asList(tokenA, tokenB));
+        verify(bulkService, never()).unregisterClientToken(any(TestClientToken.class));
+    }
+
+    @Test
+    public void test_pollUnregistersTokensAsReported() throws Exception {
+        TestClientToken upperCaseTokenA = new TestClientToken("TOKEN1");
+        when(clientTokenFactory.createClientToken("TOKEN1", TEST_PLATFORM)).thenReturn(upperCaseTokenA);
+        poller = newIdlePoller(clientTokenService);
+        when(apnsService.getInactiveDevices()).thenReturn(inactive("token1", "TOKEN1"));
+
+        assertThat(poller.poll(), is(2));
+
+        verify(clientTokenService).unregisterClientToken(tokenA);
+        verify(clientTokenService).unregisterClientToken(upperCaseTokenA);
+    }
+
+    @Test
+    public void test_failingPollIsSwallowed() throws Exception {
+        poller = newIdlePoller(clientTokenService);
+        when(apnsService.getInactiveDevices()).thenThrow(new RuntimeException());
+
+        assertThat(poller.poll(), is(0));
+
+        verify(clientTokenService, never()).unregisterClientToken(any(TestClientToken.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_pollsOnScheduleAndReportsToFeedback() throws Exception {
+        final CountDownLatch unregistered = new CountDownLatch(1);
+        ClientTokenFeedback<TestClientToken, String> feedback = mock(ClientTokenFeedback.class);
+        when(apnsService.getInactiveDevices()).thenReturn(inactive("token1"));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                unregistered.countDown();
+                return null;
+            }
+        }).when(feedback).unregisterClientTokens(anyCollectionOf(TestClientToken.class));
+
+        poller = new ApnsFeedbackPoller.Builder<>(apnsService, clientTokenService, clientTokenFactory, TEST_PLATFORM).withFeedback(feedback).build();
+
+        assertThat(unregistered.await(5, TimeUnit.SECONDS), is(true));
+        verify(feedback).unregisterClientTokens(Collections.singletonList(tokenA));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_pollIntervalShouldBePositive() throws Exception {
+        new ApnsFeedbackPoller.Builder<>(apnsService, clientTokenService, clientTokenFactory, TEST_PLATFORM).withPollIntervalSeconds(0).build();
+    }
+
+    private ApnsFeedbackPoller<TestClientToken, String> newIdlePoller(final ClientTokenService<TestClientToken, String, String, String> service) {
+        return new ApnsFeedbackPoller.Builder<>(apnsService, service, clientTokenFactory, TEST_PLATFORM).withInitialDelaySeconds(TimeUnit.HOURS.toSeconds(1)).build();
+    }
+
+    private static Map<String, Date> inactive(final String... tokens) {
+        Map<String, Date> inactive = new LinkedHashMap<>();
+        for (String token : tokens) {
+            inactive.put(token, new Date());
+        }
+        return inactive;
+    }
+
+    private static class TestClientToken implements ClientToken<String, String> {
+        private final String token;
+
+        private TestClientToken(final String token) {
+            this.token = token;
+        }
+
+        @Override
+        public String getToken() {
+            return token;
+        }
+
+        @Override
+        public String getPlatform() {
+            return TEST_PLATFORM;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenFeedback;
+import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.PushRateLimiter;
+import be.appfoundry.promtius.exception.PromtiusException;
+import be.appfoundry.promtius.exception.PushFailedException;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ApnsHttp2PusherTest {
+    private static final String TEST_PLATFORM = "iOS";
+    private static final String TOPIC = "be.appfoundry.app";
+
+    @Mock
+    private ClientTokenService<TestClientToken, String, String, String> clientTokenService;
+    @Mock
+    private ClientTokenFactory<TestClientToken, String, String> clientTokenFactory;
+    @Mock
+    private ClientTokenFeedback<TestClientToken, String> feedback;
+    @Captor
+    private ArgumentCaptor<Collection<TestClientToken>> unregisteredCaptor;
+
+    private MockWebServer server;
+    private final Map<String, MockResponse> responses = new ConcurrentHashMap<>();
+    private long responseDelayMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private ApnsHttp2Pusher<TestClientToken, String, String> pusher;
+    private final PushPayload payload = new PushPayload.Builder().withMessage("message").build();
+
+    @Before
+    public void setUp() throws Exception {
+        Logger.getLogger(MockWebServer.class.getName()).setLevel(Level.WARNING);
+        server = new MockWebServer();
+        server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(final RecordedRequest request) throws InterruptedException {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(responseDelayMillis);
+                    String token = request.getPath().substring("/3/device/".length());
+                    MockResponse response = responses.get(token);
+                    return response != null ? response : new MockResponse().setResponseCode(200);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+        when(clientTokenFactory.createClientToken(anyString(), eq(TEST_PLATFORM))).thenAnswer(new Answer<TestClientToken>() {
+            @Override
+            public TestClientToken answer(final InvocationOnMock invocation) throws Throwable {
+                return new TestClientToken((String) invocation.getArguments()[0]);
+            }
+        });
+        pusher = newPusherBuilder().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pusher.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void test_sendPush_sendsOneRequestPerTokenOverHttp2() throws Exception {
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("aa", "bb"));
+        PushPayload highPriority = new PushPayload.Builder().withMessage("message").withPushPriority(PushPayload.PushPriority.HIGH).withTimeToLive(10).build();
+
+        pusher.sendPush(highPriority);
+
+        assertThat(server.getRequestCount(), is(2));
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            RecordedRequest request = server.takeRequest();
+            paths.add(request.getPath());
+            assertThat(request.getMethod(), is("POST"));
+            assertThat(request.getHeader("apns-topic"), is(TOPIC));
+            assertThat(request.getHeader("apns-priority"), is("10"));
+            long expiration = Long.parseLong(request.getHeader("apns-expiration"));
+            assertThat(Math.abs(expiration - (TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 600)), is(lessThanOrEqualTo(5L)));
+            assertThat(request.getBody().readUtf8(), containsString("\"message\""));
+        }
+        Collections.sort(paths);
+        assertThat(paths, is(Arrays.asList("/3/device/aa", "/3/device/bb")));
+    }
+
+    @Test
+    public void test_sendPush_defaultsToNormalPriorityWithoutExpiration() throws Exception {
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("aa"));
+
+        pusher.sendPush(payload);
+
+        RecordedRequest request = server.takeRequest();
+        assertThat(request.getHeader("apns-priority"), is("5"));
+        assertThat(request.getHeader("apns-expiration"), is(nullValue()));
+    }
+
+    @Test
+    public void test_sendPushToGroup_looksUpGroupTokens() throws Exception {
+        Collection<String> groups = Arrays.asList("groupA");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM, groups)).thenReturn(tokens("aa"));
+
+        pusher.sendPush(payload, groups);
+
+        assertThat(server.takeRequest().getPath(), is("/3/device/aa"));
+    }
+
+    @Test
+    public void test_sendPush_unregistersGoneAndBadDeviceTokensInOneBatch() throws Exception {
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("ok", "gone", "bad", "topic"));
+        responses.put("gone", new MockResponse().setResponseCode(410).setBody("{\"reason\":\"Unregistered\",\"timestamp\":1}"));
+        responses.put("bad", new MockResponse().setResponseCode(400).setBody("{\"reason\":\"BadDeviceToken\"}"));
+        responses.put("topic", new MockResponse().setResponseCode(400).setBody("{\"reason\":\"DeviceTokenNotForTopic\"}"));
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher.close();
+        pusher = newPusherBuilder().withFeedback(feedback).withMetrics(metrics).build();
+
+        pusher.sendPush(payload);
+
+        verify(feedback).unregisterClientTokens(unregisteredCaptor.capture());
+        assertThat(unregisteredCaptor.getValue(), containsInAnyOrder(new TestClientToken("gone"), new TestClientToken("bad")));
+        verify(metrics).increment(PushMetricNames.TOKENS_ATTEMPTED, 4, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_SUCCEEDED, 1, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_FAILED, 3, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).recordTime(eq(PushMetricNames.HTTP_LATENCY), anyLong(), eq(TimeUnit.NANOSECONDS), eq(PushMetricNames.TAG_SERVICE),
+                eq(ApnsHttp2Pusher.METRICS_SERVICE), eq(PushMetricNames.TAG_STATUS), eq("410"));
+    }
+
+    @Test
+    public void test_sendPush_failsWhenServiceIsUnavailable() throws Exception {
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("aa", "bb"));
+        responses.put("aa", new MockResponse().setResponseCode(503).setBody("{\"reason\":\"ServiceUnavailable\"}"));
+        pusher.close();
+        pusher = newPusherBuilder().withFeedback(feedback).build();
+
+        try {
+            pusher.sendPush(payload);
+            fail("The push should fail");
+        } catch (PushFailedException e) {
+            assertThat(e.getMessage(), containsString("503"));
+        }
+        verify(feedback, never()).unregisterClientTokens(anyCollectionOf(TestClientToken.class));
+    }
+
+    @Test
+    public void test_sendPush_failsWhenServiceCannotBeReached() throws Exception {
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("aa"));
+        server.shutdown();
+
+        try {
+            pusher.sendPush(payload);
+            fail("The push should fail");
+        } catch (PushFailedException e) {
+            assertThat(e.getCause(), is(notNullValue()));
+        }
+    }
+
+    @Test
+    public void test_sendPush_multiplexesConcurrentStreamsOverFewConnections() throws Exception {
+        List<TestClientToken> tokens = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tokens.add(new TestClientToken("token" + i));
+        }
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        responseDelayMillis = 20;
+        pusher.close();
+        pusher = newPusherBuilder().withConnections(2).withMaxConcurrentStreams(10).build();
+
+        pusher.sendPush(payload);
+
+        assertThat(server.getRequestCount(), is(200));
+        int connections = 0;
+        for (int i = 0; i < 200; i++) {
+            if (server.takeRequest().getSequenceNumber() == 0) {
+                connections++;
+            }
+        }
+        assertThat(connections, is(lessThanOrEqualTo(2)));
+        assertThat(maxInFlight.get(), is(greaterThan(2)));
+        assertThat(maxInFlight.get(), is(lessThanOrEqualTo(20)));
+    }
+
+    @Test
+    public void test_sendPush_sharedRateLimiterCapsStreamsInFlight() throws Exception {
+        List<TestClientToken> tokens = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            tokens.add(new TestClientToken("token" + i));
+        }
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        responseDelayMillis = 10;
+        pusher.close();
+        pusher = newPusherBuilder().withMaxConcurrentStreams(10).withRateLimiter(new PushRateLimiter.Builder().withMaxConcurrentRequests(2).build()).build();
+
+        pusher.sendPush(payload);
+
+        assertThat(server.getRequestCount(), is(30));
+        assertThat(maxInFlight.get(), is(lessThanOrEqualTo(2)));
+    }
+
+    @Test
+    public void test_sendPush_authenticatesWithProviderToken() throws Exception {
+        ApnsProviderTokenManager tokenManager = mock(ApnsProviderTokenManager.class);
+        when(tokenManager.getToken()).thenReturn("signed.jwt.token");
+        pusher.close();
+        pusher = newPusherBuilder().withProviderToken(tokenManager).build();
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("aa"));
+
+        pusher.sendPush(payload);
+
+        assertThat(server.takeRequest().getHeader("authorization"), is("bearer signed.jwt.token"));
+    }
+
+    @Test(timeout = 10000)
+    public void test_sendPush_failsWithoutLeakingStreamsWhenRequestCannotBeBuilt() throws Exception {
+        ApnsProviderTokenManager tokenManager = mock(ApnsProviderTokenManager.class);
+        when(tokenManager.getToken()).thenThrow(new PromtiusException("Could not sign the APNs provider token"));
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher.close();
+        pusher = newPusherBuilder().withProviderToken(tokenManager).withMaxConcurrentStreams(1).withMetrics(metrics).build();
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens("aa", "bb"));
+
+        try {
+            pusher.sendPush(payload);
+            fail("The push should fail");
+        } catch (PushFailedException e) {
+            assertThat(e.getCause(), is(instanceOf(PromtiusException.class)));
+        }
+
+        assertThat(server.getRequestCount(), is(0));
+        verify(metrics).increment(PushMetricNames.TOKENS_FAILED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_build_needsTopic() throws Exception {
+        new ApnsHttp2Pusher.Builder<>(clientTokenService, clientTokenFactory, TEST_PLATFORM, "").build();
+    }
+
+    private ApnsHttp2Pusher.Builder<TestClientToken, String, String> newPusherBuilder() {
+        String endpoint = server.url("/").toString();
+        return new ApnsHttp2Pusher.Builder<>(clientTokenService, clientTokenFactory, TEST_PLATFORM, TOPIC)
+                .withEndpoint(endpoint.substring(0, endpoint.length() - 1))
+                .withReadTimeoutMillis(5000);
+    }
+
+    private static List<TestClientToken> tokens(final String... tokens) {
+        List<TestClientToken> clientTokens = new ArrayList<>();
+        for (String token : tokens) {
+            clientTokens.add(new TestClientToken(token));
+        }
+        return clientTokens;
+    }
+
+    private static final class TestClientToken implements ClientToken<String, String> {
+        private final String token;
+
+        private TestClientToken(final String token) {
+            this.token = token;
+        }
+
+        @Override
+        public String getToken() {
+            return token;
+        }
+
+        @Override
+        public String getPlatform() {
+            return TEST_PLATFORM;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof TestClientToken && token.equals(((TestClientToken) o).token);
+        }
+
+        @Override
+        public int hashCode() {
+            return token.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return token;
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package be.appfoundry.promtius.apple;
 
 
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenService;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import org.junit.Test;
 
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
 
 /**
  * @author Mike Seghers
@@ -44,4 +51,43 @@ public class ApnsServiceFactoryTest {
         assertThat(sandboxApnsService, is(notNullValue()));
 
     }
+
+    @Test
+    public void test_builder_certificateFromStream() throws Exception {
+        ApnsService service = new ApnsServiceFactory.Builder().withCertificate(getClass().getResourceAsStream("/selfsigned.p12"), "password").withSandboxDestination().build();
+        assertThat(service, is(not(instanceOf(NoopApnsService.class))));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_builder_providerTokenHasNoBinaryService() throws Exception {
+        newProviderTokenBuilder().build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_builder_http2PusherWithProviderToken() throws Exception {
+        ApnsHttp2Pusher<ClientToken<String, String>, String, String> pusher = newProviderTokenBuilder().withSandboxDestination()
+                .newHttp2PusherBuilder(mock(ClientTokenService.class), mock(ClientTokenFactory.class), "iOS", "be.appfoundry.app").build();
+        pusher.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_builder_http2PusherWithCertificate() throws Exception {
+        ApnsHttp2Pusher<ClientToken<String, String>, String, String> pusher = new ApnsServiceFactory.Builder().withCertificate("/selfsigned.p12", "password")
+                .newHttp2PusherBuilder(mock(ClientTokenService.class), mock(ClientTokenFactory.class), "iOS", "be.appfoundry.app").build();
+        pusher.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    @SuppressWarnings("unchecked")
+    public void test_builder_http2PusherNeedsAuthentication() throws Exception {
+        new ApnsServiceFactory.Builder().newHttp2PusherBuilder(mock(ClientTokenService.class), mock(ClientTokenFactory.class), "iOS", "be.appfoundry.app");
+    }
+
+    private static ApnsServiceFactory.Builder newProviderTokenBuilder() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return new ApnsServiceFactory.Builder().withProviderToken("TEAM123456", "KEY1234567", generator.generateKeyPair().getPrivate());
+    }
 }
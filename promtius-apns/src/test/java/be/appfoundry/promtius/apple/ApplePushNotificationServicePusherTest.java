@@ -4,8 +4,15 @@ package be.appfoundry.promtius.apple;
 import be.appfoundry.promtius.ClientToken;
 import be.appfoundry.promtius.ClientTokenFactory;
 import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.ClientTokenVisitor;
 import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.PushRateLimiter;
+import be.appfoundry.promtius.StreamingClientTokenService;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
 import com.notnoop.apns.ApnsService;
 import org.junit.Before;
 import org.junit.Test;
@@ -13,26 +20,31 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import static org.exparity.hamcrest.date.DateMatchers.within;
-import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -51,7 +63,9 @@ public class ApplePushNotificationServicePusherTest {
     private ClientTokenFactory<TestClientToken, String, String> clientTokenFactory;
 
     @Captor
-    ArgumentCaptor<TestClientToken> pushTokenCaptor;
+    ArgumentCaptor<Collection<byte[]>> tokenIdsCaptor;
+    @Captor
+    ArgumentCaptor<byte[]> payloadCaptor;
 
     private static final String TEST_PLATFORM = "iOS";
     private TestClientToken tokenA;
@@ -62,8 +76,8 @@ public class ApplePushNotificationServicePusherTest {
     @Before
     public void setUp() throws Exception {
         pusher = new ApplePushNotificationServicePusher<>(apnsService, clientTokenService, clientTokenFactory, TEST_PLATFORM);
-        tokenA = new TestClientToken("token1");
-        tokenB = new TestClientToken("token2");
+        tokenA = new TestClientToken("aa01");
+        tokenB = new TestClientToken("BB02");
     }
 
     @Test
@@ -74,7 +88,10 @@ public class ApplePushNotificationServicePusherTest {
 
         pusher.sendPush(payload);
 
-        verify(apnsService).push(eq(Arrays.asList("token1", "token2")), argThat(allOf(containsString("\"message\""), containsString("\"sound\""))));
+        verify(apnsService).push(tokenIdsCaptor.capture(), payloadCaptor.capture());
+        assertThat(hex(tokenIdsCaptor.getValue()), is(Arrays.asList("aa01", "bb02")));
+        assertThat(utf8(payloadCaptor.getValue()), containsString("\"message\""));
+        assertThat(utf8(payloadCaptor.getValue()), containsString("\"sound\""));
     }
 
     @Test
@@ -88,7 +105,8 @@ public class ApplePushNotificationServicePusherTest {
 
         pusher.sendPush(payload);
 
-        verify(apnsService).push(eq(Arrays.asList("token1", "token2")), argThat(allOf(containsString("\"custom\":{}"))));
+        verify(apnsService).push(tokenIdsCaptor.capture(), payloadCaptor.capture());
+        assertThat(utf8(payloadCaptor.getValue()), containsString("\"custom\":{}"));
     }
 
     @Test
@@ -99,8 +117,11 @@ public class ApplePushNotificationServicePusherTest {
 
         pusher.sendPush(payload);
 
-        Date ttlDate = new Date(System.currentTimeMillis() + 600000);
-        verify(apnsService).push(eq(Arrays.asList("token1", "token2")), any(String.class), argThat(within(1, TimeUnit.SECONDS, ttlDate)));
+        ArgumentCaptor<Integer> expiryCaptor = ArgumentCaptor.forClass(Integer.class);
+        verify(apnsService).push(tokenIdsCaptor.capture(), any(byte[].class), expiryCaptor.capture());
+        assertThat(hex(tokenIdsCaptor.getValue()), is(Arrays.asList("aa01", "bb02")));
+        long expectedExpiry = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + 600000);
+        assertThat(Math.abs(expiryCaptor.getValue() - expectedExpiry), is(lessThanOrEqualTo(1L)));
     }
 
     @Test
@@ -112,25 +133,83 @@ public class ApplePushNotificationServicePusherTest {
 
         pusher.sendPush(payload, groups);
 
-        verify(apnsService).push(eq(Arrays.asList("token1", "token2")), argThat(allOf(containsString("message"), containsString(PushPayload.DEFAULT_SOUND_VALUE))));
+        verify(apnsService).push(tokenIdsCaptor.capture(), payloadCaptor.capture());
+        assertThat(hex(tokenIdsCaptor.getValue()), is(Arrays.asList("aa01", "bb02")));
+        assertThat(utf8(payloadCaptor.getValue()), containsString(PushPayload.DEFAULT_SOUND_VALUE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_sendPush_streamsTokensFromStreamingServiceInBatches() throws Exception {
+        final StreamingClientTokenService<TestClientToken, String, String, String> streamingService = mock(StreamingClientTokenService.class);
+        pusher = new ApplePushNotificationServicePusher<>(apnsService, streamingService, clientTokenFactory, TEST_PLATFORM);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                ClientTokenVisitor<TestClientToken> visitor = (ClientTokenVisitor<TestClientToken>) invocation.getArguments()[2];
+                for (int i = 0; i < ApplePushNotificationServicePusher.PUSH_BATCH_SIZE + 1; i++) {
+                    visitor.visit(tokenA);
+                }
+                return null;
+            }
+        }).when(streamingService).visitClientTokensForOperatingSystem(eq(TEST_PLATFORM), anyCollectionOf(String.class), any(ClientTokenVisitor.class));
+
+        pusher.sendPush(new PushPayload.Builder().withMessage("message").build(), Arrays.asList("groupA"));
+
+        verify(apnsService, times(2)).push(tokenIdsCaptor.capture(), any(byte[].class));
+        assertThat(tokenIdsCaptor.getAllValues().get(0).size(), is(ApplePushNotificationServicePusher.PUSH_BATCH_SIZE));
+        assertThat(tokenIdsCaptor.getAllValues().get(1).size(), is(1));
+        verify(streamingService, never()).findClientTokensForOperatingSystem(eq(TEST_PLATFORM), anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void test_sendPush_reportsTokensAndBatchesToMetrics() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher = new ApplePushNotificationServicePusher<>(apnsService, clientTokenService, clientTokenFactory, TEST_PLATFORM, metrics);
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, tokenB));
+
+        pusher.sendPush(new PushPayload.Builder().withMessage("message").build());
+
+        verify(metrics).recordValue(PushMetricNames.BATCH_SIZE, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_ATTEMPTED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_SUCCEEDED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).recordTime(eq(PushMetricNames.TOKEN_LOOKUP), anyLong(), eq(TimeUnit.NANOSECONDS), eq(PushMetricNames.TAG_PLATFORM), eq(TEST_PLATFORM));
     }
 
     @Test
-    public void test_removeInactiveDevices() throws Exception {
-        Map<String, Date> inactive = new HashMap<String, Date>();
-        inactive.put("token1", new Date());
-        inactive.put("token2", new Date());
-        when(apnsService.getInactiveDevices()).thenReturn(inactive);
-        when(clientTokenFactory.createClientToken("token1", TEST_PLATFORM)).thenReturn(tokenA);
-        when(clientTokenFactory.createClientToken("token2", TEST_PLATFORM)).thenReturn(tokenB);
+    public void test_sendPush_reportsBatchAsFailedWhenServiceThrows() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher = new ApplePushNotificationServicePusher<>(apnsService, clientTokenService, clientTokenFactory, TEST_PLATFORM, metrics);
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, tokenB));
+        when(apnsService.push(anyCollectionOf(byte[].class), any(byte[].class))).thenThrow(new IllegalStateException());
+
+        try {
+            pusher.sendPush(new PushPayload.Builder().withMessage("message").build());
+        } catch (IllegalStateException expected) {
+            // the batch failure is reported before the push fails
+        }
 
+        verify(metrics).increment(PushMetricNames.TOKENS_FAILED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics, never()).increment(eq(PushMetricNames.TOKENS_SUCCEEDED), anyLong(), Mockito.<String>anyVararg());
+    }
+
+    @Test(timeout = 5000)
+    public void test_sendPush_releasesRateLimiterWhenServiceThrows() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        PushRateLimiter limiter = new PushRateLimiter.Builder().withMaxConcurrentRequests(1).build();
+        pusher = new ApplePushNotificationServicePusher<>(apnsService, clientTokenService, TEST_PLATFORM, metrics, limiter);
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, tokenB));
+        when(apnsService.push(anyCollectionOf(byte[].class), any(byte[].class))).thenThrow(new IllegalStateException()).thenReturn(null);
         PushPayload payload = new PushPayload.Builder().withMessage("message").build();
+
+        try {
+            pusher.sendPush(payload);
+        } catch (IllegalStateException expected) {
+            // the next push may go out right away
+        }
         pusher.sendPush(payload);
 
-        verify(clientTokenService, times(2)).unregisterClientToken(pushTokenCaptor.capture());
-        List<TestClientToken> allValues = pushTokenCaptor.getAllValues();
-        assertThat(allValues.get(0), is(tokenA));
-        assertThat(allValues.get(1), is(tokenB));
+        verify(apnsService, times(2)).push(anyCollectionOf(byte[].class), any(byte[].class));
     }
 
     @Test
@@ -140,13 +219,74 @@ public class ApplePushNotificationServicePusherTest {
     }
 
     @Test
-    public void test_whenUnregistrationFails_pushStillContinues() throws Exception {
+    public void test_sendPush_goesStraightToDeliveryWithoutPollingFeedback() throws Exception {
         List<TestClientToken> tokens = Arrays.asList(tokenA, tokenB);
         when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
-        when(apnsService.getInactiveDevices()).thenThrow(new RuntimeException());
         PushPayload payload = new PushPayload.Builder().withMessage("message").build();
         pusher.sendPush(payload);
-        verify(apnsService).push(eq(Arrays.asList("token1", "token2")), argThat(allOf(containsString("message"), containsString(PushPayload.DEFAULT_SOUND_VALUE))));
+        verify(apnsService).push(anyCollectionOf(byte[].class), any(byte[].class));
+        verify(apnsService, never()).getInactiveDevices();
+        verify(clientTokenService, never()).unregisterClientToken(any(TestClientToken.class));
+    }
+
+    @Test
+    public void test_sendPush_sharesEncodedPayloadAndUsesCachedTokenBytes() throws Exception {
+        final byte[] cachedBytes = {(byte) 0xcc, 0x03};
+        ApnsClientToken<String> binaryToken = new ApnsClientToken<String>() {
+            @Override
+            public byte[] getTokenBytes() {
+                return cachedBytes;
+            }
+
+            @Override
+            public String getToken() {
+                throw new AssertionError("The hex token should not be needed");
+            }
+
+            @Override
+            public String getPlatform() {
+                return TEST_PLATFORM;
+            }
+        };
+        @SuppressWarnings("unchecked")
+        ClientTokenService<ClientToken<String, String>, String, String, String> service = mock(ClientTokenService.class);
+        List<ClientToken<String, String>> tokens = new ArrayList<>();
+        tokens.add(binaryToken);
+        tokens.add(tokenA);
+        when(service.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        ApplePushNotificationServicePusher<ClientToken<String, String>, String, String> binaryPusher = new ApplePushNotificationServicePusher<>(apnsService, service, null,
+                TEST_PLATFORM);
+
+        binaryPusher.sendPush(new PushPayload.Builder().withMessage("message").build());
+
+        verify(apnsService).push(tokenIdsCaptor.capture(), any(byte[].class));
+        assertThat(tokenIdsCaptor.getValue().iterator().next() == cachedBytes, is(true));
+        assertThat(hex(tokenIdsCaptor.getValue()), is(Arrays.asList("cc03", "aa01")));
+    }
+
+    @Test
+    public void test_sendPush_skipsTokensThatAreNotHex() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher = new ApplePushNotificationServicePusher<>(apnsService, clientTokenService, clientTokenFactory, TEST_PLATFORM, metrics);
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, new TestClientToken("token2"), tokenB));
+
+        pusher.sendPush(new PushPayload.Builder().withMessage("message").build());
+
+        verify(apnsService).push(tokenIdsCaptor.capture(), any(byte[].class));
+        assertThat(hex(tokenIdsCaptor.getValue()), is(Arrays.asList("aa01", "bb02")));
+        verify(metrics).increment(PushMetricNames.TOKENS_FAILED, 1, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+    }
+
+    private static List<String> hex(final Collection<byte[]> tokens) {
+        List<String> hex = new ArrayList<>();
+        for (byte[] token : tokens) {
+            hex.add(BaseEncoding.base16().lowerCase().encode(token));
+        }
+        return hex;
+    }
+
+    private static String utf8(final byte[] payload) {
+        return new String(payload, Charsets.UTF_8);
     }
 
     private static class TestClientToken implements ClientToken<String, String> {
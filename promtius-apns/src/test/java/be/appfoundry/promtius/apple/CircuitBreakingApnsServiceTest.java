@@ -0,0 +1,92 @@
+package be.appfoundry.promtius.apple;
+
+import be.appfoundry.promtius.CircuitBreaker;
+import be.appfoundry.promtius.exception.CircuitOpenException;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.exceptions.NetworkIOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CircuitBreakingApnsServiceTest {
+    @Mock
+    private ApnsService delegate;
+
+    private final Collection<byte[]> tokens = Collections.singletonList(new byte[]{1});
+    private final byte[] payload = {2};
+    private CircuitBreaker circuitBreaker;
+    private CircuitBreakingApnsService service;
+
+    @Before
+    public void setUp() throws Exception {
+        circuitBreaker = new CircuitBreaker.Builder().withName("APNs").withFailureThreshold(2).build();
+        service = new CircuitBreakingApnsService(delegate, circuitBreaker);
+    }
+
+    @Test
+    public void test_push_failsFastWithoutCallingServiceOnceOpen() throws Exception {
+        when(delegate.push(tokens, payload)).thenThrow(new NetworkIOException());
+        pushIgnoringFailure();
+        pushIgnoringFailure();
+
+        try {
+            service.push(tokens, payload, 60);
+            fail("The circuit should be open");
+        } catch (CircuitOpenException expected) {
+            // APNs is not called
+        }
+
+        verify(delegate, times(2)).push(anyCollectionOf(byte[].class), any(byte[].class));
+        verify(delegate, never()).push(anyCollectionOf(byte[].class), any(byte[].class), anyInt());
+    }
+
+    @Test
+    public void test_push_successResetsFailures() throws Exception {
+        when(delegate.push(tokens, payload)).thenThrow(new NetworkIOException()).thenReturn(null).thenThrow(new NetworkIOException());
+
+        pushIgnoringFailure();
+        service.push(tokens, payload);
+        pushIgnoringFailure();
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void test_feedbackIsReadWhileOpen() throws Exception {
+        when(delegate.push(tokens, payload)).thenThrow(new NetworkIOException());
+        pushIgnoringFailure();
+        pushIgnoringFailure();
+
+        service.getInactiveDevices();
+
+        verify(delegate).getInactiveDevices();
+    }
+
+    private void pushIgnoringFailure() {
+        try {
+            service.push(tokens, payload);
+        } catch (NetworkIOException expected) {
+            // counted by the circuit
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.promtius.ParallelPushAggregator;
+import be.appfoundry.promtius.PushAggregatorResult;
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.Pusher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the {@link ParallelPushAggregator} itself: handing a push to pushers that return right away, and collecting
+ * their results.
+ *
+ * @author Mike Seghers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregatorFanOutBenchmark {
+    @Param({"1", "4", "16"})
+    private int pushers;
+
+    private ParallelPushAggregator<String, String> aggregator;
+    private PushPayload payload;
+
+    @Setup
+    public void setUp() {
+        Set<Pusher<String, String>> registry = new HashSet<>();
+        for (int i = 0; i < pushers; i++) {
+            registry.add(Stubs.noOpPusher("platform-" + i));
+        }
+        aggregator = new ParallelPushAggregator<>(registry);
+        payload = Stubs.payload();
+    }
+
+    @TearDown
+    public void tearDown() {
+        aggregator.close();
+    }
+
+    @Benchmark
+    public PushAggregatorResult<String> sendPush() throws InterruptedException, ExecutionException {
+        return aggregator.sendPushAsync(payload).get();
+    }
+}
@@ -0,0 +1,28 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.promtius.ClientToken;
+
+/**
+ * Client token used by the benchmarks, both tokens and platforms are plain Strings.
+ *
+ * @author Mike Seghers
+ */
+public final class BenchmarkClientToken implements ClientToken<String, String> {
+    private final String token;
+    private final String platform;
+
+    public BenchmarkClientToken(final String token, final String platform) {
+        this.token = token;
+        this.platform = platform;
+    }
+
+    @Override
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public String getPlatform() {
+        return platform;
+    }
+}
@@ -0,0 +1,65 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.custom.google.android.gcm.server.HttpTransport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Transport answering every request with the same GCM response, without touching the network. The request body is written to a
+ * stream discarding the bytes, so its serialization is still measured.
+ *
+ * @author Mike Seghers
+ */
+public final class CannedResponseTransport implements HttpTransport {
+    private final byte[] responseBody;
+    private long bytesWritten;
+
+    public CannedResponseTransport(final byte[] responseBody) {
+        this.responseBody = responseBody;
+    }
+
+    @Override
+    public Response post(final String url, final Map<String, String> headers, final RequestBody body) throws IOException {
+        body.writeTo(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                bytesWritten += len;
+            }
+        });
+        return new Response() {
+            @Override
+            public int getStatus() {
+                return 200;
+            }
+
+            @Override
+            public InputStream getContent() {
+                return new ByteArrayInputStream(responseBody);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Gets the number of request bytes written so far, so the JIT cannot drop the serialization.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,69 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.promtius.google.GoogleCloudMessagingPusher;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the {@link GoogleCloudMessagingPusher} slices an audience into multicast batches and hands them out, with a sender that
+ * accepts every batch right away.
+ *
+ * @author Mike Seghers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GcmBatchingBenchmark {
+    @Param({"1000", "10000", "100000"})
+    private int tokens;
+
+    @Param({"1", "4"})
+    private int maxConcurrentBatches;
+
+    private ExecutorService batchExecutor;
+    private GoogleCloudMessagingPusher<BenchmarkClientToken, String, String> pusher;
+
+    @Setup
+    public void setUp() {
+        GoogleCloudMessagingPusher.Builder<BenchmarkClientToken, String, String> builder = new GoogleCloudMessagingPusher.Builder<>(
+                Stubs.googleSenderWrapper(), new StubClientTokenService(Stubs.GCM_PLATFORM, tokens), Stubs.clientTokenFactory(),
+                Stubs.GCM_PLATFORM);
+        if (maxConcurrentBatches > 1) {
+            batchExecutor = Executors.newFixedThreadPool(maxConcurrentBatches);
+            builder.withBatchExecutor(batchExecutor).withMaxConcurrentBatches(maxConcurrentBatches);
+        } else {
+            builder.withBatchExecutor(MoreExecutors.sameThreadExecutor());
+        }
+        pusher = builder.build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void sendPush() {
+        pusher.sendPush(Stubs.payload());
+    }
+}
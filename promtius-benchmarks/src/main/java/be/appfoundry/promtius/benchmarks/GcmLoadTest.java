@@ -0,0 +1,176 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.custom.google.android.gcm.server.GcmStubServer;
+import be.appfoundry.custom.google.android.gcm.server.Message;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.custom.google.android.gcm.server.PoolingHttpTransport;
+import be.appfoundry.custom.google.android.gcm.server.Sender;
+import be.appfoundry.promtius.google.GoogleCloudMessagingPusher;
+import be.appfoundry.promtius.google.GoogleSenderWrapper;
+import be.appfoundry.promtius.google.GoogleSenderWrapperDefaultImpl;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test pushing a synthetic audience through the {@link GoogleCloudMessagingPusher} and the {@link Sender}, to a
+ * {@link GcmStubServer} over real sockets. It reports the throughput, the latency of the multicast batches, and the allocation rate of the
+ * pushing thread and the batch threads. The stub server runs in the same JVM, its allocations are left out.
+ * <p/>
+ * The run is configured with system properties, e.g.
+ * <pre>
+ * java -Dtokens=5000000 -DlatencyMillis=50 -Dconcurrency=16 -DnotRegisteredRatio=0.02 \
+ *      -cp promtius-benchmarks/target/benchmarks.jar be.appfoundry.promtius.benchmarks.GcmLoadTest
+ * </pre>
+ * Other properties are {@code canonicalIdRatio}, {@code unavailableRatio}, {@code unavailableStatusRatio} and
+ * {@code tooManyRequestsStatusRatio}; see {@link GcmStubServer.Builder}.
+ *
+ * @author Mike Seghers
+ */
+public final class GcmLoadTest {
+
+    private GcmLoadTest() {
+        throw new UnsupportedOperationException("Main class");
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int tokens = Integer.getInteger("tokens", 1000000);
+        int concurrency = Integer.getInteger("concurrency", 8);
+        GcmStubServer server = new GcmStubServer.Builder()
+                .withLatencyMillis(Long.getLong("latencyMillis", 20))
+                .withThreads(concurrency)
+                .withNotRegisteredRatio(doubleProperty("notRegisteredRatio", 0.01))
+                .withCanonicalIdRatio(doubleProperty("canonicalIdRatio", 0.01))
+                .withUnavailableRatio(doubleProperty("unavailableRatio", 0))
+                .withUnavailableStatusRatio(doubleProperty("unavailableStatusRatio", 0))
+                .withTooManyRequestsStatusRatio(doubleProperty("tooManyRequestsStatusRatio", 0))
+                .start();
+        PoolingHttpTransport transport = new PoolingHttpTransport.Builder()
+                .maxConnectionsPerRoute(concurrency)
+                .maxConnectionsTotal(concurrency)
+                .build();
+        final List<Thread> pusherThreads = new CopyOnWriteArrayList<>();
+        pusherThreads.add(Thread.currentThread());
+        final ThreadFactory batchThreadFactory = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("load-test-batch-%d").build();
+        ExecutorService batchExecutor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = batchThreadFactory.newThread(runnable);
+                pusherThreads.add(thread);
+                return thread;
+            }
+        });
+        try {
+            LatencyRecordingSenderWrapper senderWrapper = new LatencyRecordingSenderWrapper(
+                    new GoogleSenderWrapperDefaultImpl(new Sender("load-test-key", transport, server.getUrl())));
+            SyntheticClientTokenService clientTokenService = new SyntheticClientTokenService(Stubs.GCM_PLATFORM, tokens);
+            GoogleCloudMessagingPusher<BenchmarkClientToken, String, String> pusher = new GoogleCloudMessagingPusher.Builder<>(
+                    senderWrapper, clientTokenService, Stubs.clientTokenFactory(), Stubs.GCM_PLATFORM)
+                    .withBatchExecutor(batchExecutor)
+                    .withMaxConcurrentBatches(concurrency)
+                    .build();
+
+            System.out.printf(Locale.ROOT, "Pushing %,d tokens in batches of %d, %d batches at a time%n", tokens,
+                    GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE, concurrency);
+            long allocatedBefore = allocatedBytes(pusherThreads);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            pusher.sendPush(Stubs.payload());
+            long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            long allocatedMegabytes = (allocatedBytes(pusherThreads) - allocatedBefore) / (1024 * 1024);
+
+            double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+            System.out.printf(Locale.ROOT, "Elapsed:        %,d ms%n", elapsedMillis);
+            System.out.printf(Locale.ROOT, "Throughput:     %,.0f tokens/s%n", tokens / seconds);
+            senderWrapper.printLatencies();
+            if (allocatedMegabytes >= 0) {
+                System.out.printf(Locale.ROOT, "Allocated:      %,d MB (%,.0f MB/s) by the pusher threads%n", allocatedMegabytes, allocatedMegabytes / seconds);
+            }
+            System.out.printf(Locale.ROOT, "Server:         %,d requests, %,d refused, %,d errors, %,d canonical ids%n",
+                    server.getRequests(), server.getRefusedRequests(), server.getErrorResults(), server.getCanonicalIdResults());
+            System.out.printf(Locale.ROOT, "Token feedback: %,d unregistered, %,d changed%n", clientTokenService.getUnregisteredTokens(),
+                    clientTokenService.getChangedTokens());
+        } finally {
+            batchExecutor.shutdownNow();
+            transport.close();
+            server.close();
+        }
+    }
+
+    private static double doubleProperty(final String name, final double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Sums the bytes allocated by the given threads, or returns -1 if the JVM can't tell. Batch threads are only created during the run, and
+     * live until the executor is shut down, so none of their allocations are missed.
+     */
+    private static long allocatedBytes(final List<Thread> threads) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long total = 0;
+        for (Thread thread : threads) {
+            long allocated = ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(thread.getId());
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Records the latency of every multicast batch, retries included.
+     */
+    private static final class LatencyRecordingSenderWrapper implements GoogleSenderWrapper {
+        private final GoogleSenderWrapper delegate;
+        private final List<Long> latenciesMicros = Collections.synchronizedList(new ArrayList<Long>());
+
+        private LatencyRecordingSenderWrapper(final GoogleSenderWrapper delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MulticastResult send(final Message message, final List<String> deviceRegistrationIds, final int numberOfRetries)
+                throws IOException {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            try {
+                return delegate.send(message, deviceRegistrationIds, numberOfRetries);
+            } finally {
+                latenciesMicros.add(stopwatch.elapsed(TimeUnit.MICROSECONDS));
+            }
+        }
+
+        void printLatencies() {
+            List<Long> sorted;
+            synchronized (latenciesMicros) {
+                sorted = new ArrayList<>(latenciesMicros);
+            }
+            if (sorted.isEmpty()) {
+                return;
+            }
+            Collections.sort(sorted);
+            System.out.printf(Locale.ROOT, "Batch latency:  p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms (%,d batches)%n",
+                    percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted.get(sorted.size() - 1) / 1000.0,
+                    sorted.size());
+        }
+
+        private static double percentile(final List<Long> sorted, final int percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(index, 0)) / 1000.0;
+        }
+    }
+}
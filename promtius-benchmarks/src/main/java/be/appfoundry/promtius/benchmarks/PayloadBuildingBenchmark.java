@@ -0,0 +1,59 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.apple.ApplePushNotificationServicePusher;
+import be.appfoundry.promtius.google.GoogleCloudMessagingPusher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning a {@link PushPayload} into a platform specific message: a GCM {@code Message}, or an APNs payload built by its
+ * {@code PayloadBuilder}. Each push goes to a single token, so the cost is dominated by building the payload.
+ *
+ * @author Mike Seghers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBuildingBenchmark {
+    private GoogleCloudMessagingPusher<BenchmarkClientToken, String, String> gcmPusher;
+    private ApplePushNotificationServicePusher<BenchmarkClientToken, String, String> apnsPusher;
+    private PushPayload payload;
+
+    @Setup
+    public void setUp() {
+        gcmPusher = new GoogleCloudMessagingPusher<>(Stubs.googleSenderWrapper(),
+                new StubClientTokenService(Stubs.GCM_PLATFORM, 1), Stubs.clientTokenFactory(), Stubs.GCM_PLATFORM);
+        apnsPusher = new ApplePushNotificationServicePusher<>(Stubs.apnsService(),
+                new StubClientTokenService(Stubs.APNS_PLATFORM, 1), Stubs.clientTokenFactory(), Stubs.APNS_PLATFORM);
+        payload = Stubs.payload();
+    }
+
+    @Benchmark
+    public PushPayload pushPayload() {
+        return Stubs.payload();
+    }
+
+    @Benchmark
+    public void gcmMessage() {
+        gcmPusher.sendPush(payload);
+    }
+
+    @Benchmark
+    public void apnsPayload() {
+        apnsPusher.sendPush(payload);
+    }
+}
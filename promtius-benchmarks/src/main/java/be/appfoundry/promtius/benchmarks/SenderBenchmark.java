@@ -0,0 +1,106 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.custom.google.android.gcm.server.Message;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.custom.google.android.gcm.server.Sender;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one multicast request through the GCM {@link Sender}: serializing the request and parsing the response, against a transport
+ * answering in-process.
+ *
+ * @author Mike Seghers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SenderBenchmark {
+    @Param({"1", "100", "1000"})
+    private int registrationIds;
+
+    /**
+     * Percentage of the registration ids answered with an error, the others are answered with a message id.
+     */
+    @Param({"0", "10"})
+    private int failurePercentage;
+
+    private Sender sender;
+    private CannedResponseTransport transport;
+    private Message message;
+    private List<String> regIds;
+
+    @Setup
+    public void setUp() {
+        regIds = new ArrayList<>(registrationIds);
+        for (int i = 0; i < registrationIds; i++) {
+            regIds.add(StubClientTokenService.generateToken(i));
+        }
+        transport = new CannedResponseTransport(buildResponse().getBytes(Charsets.UTF_8));
+        sender = new Sender("benchmark-key", transport);
+        message = buildMessage();
+    }
+
+    private String buildResponse() {
+        int failures = registrationIds * failurePercentage / 100;
+        StringBuilder json = new StringBuilder("{\"multicast_id\":5519432419472834,\"success\":").append(registrationIds - failures)
+                .append(",\"failure\":").append(failures).append(",\"canonical_ids\":0,\"results\":[");
+        for (int i = 0; i < registrationIds; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            if (i < failures) {
+                json.append("{\"error\":\"NotRegistered\"}");
+            } else {
+                json.append("{\"message_id\":\"0:1414412380412345%921c249af9fd7ecd\"}");
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    private static Message buildMessage() {
+        return new Message.Builder()
+                .addData("message", "Your order has been shipped and will be delivered tomorrow")
+                .addData("sound", "default")
+                .addData("data", ImmutableMap.of("orderId", "20141104-1234", "deepLink", "app://orders/20141104-1234"))
+                .collapseKey("orders")
+                .timeToLive(3600)
+                .priority(Message.Priority.NORMAL)
+                .build();
+    }
+
+    /**
+     * Sends a message that was sent before, as every batch but the first of a broadcast does.
+     */
+    @Benchmark
+    public MulticastResult sendNoRetry() throws IOException {
+        return sender.sendNoRetry(message, regIds);
+    }
+
+    /**
+     * Sends a new message, as the first batch of a broadcast does.
+     */
+    @Benchmark
+    public MulticastResult sendNoRetryNewMessage() throws IOException {
+        return sender.sendNoRetry(buildMessage(), regIds);
+    }
+}
@@ -0,0 +1,70 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.promtius.ClientTokenVisitor;
+import be.appfoundry.promtius.StreamingClientTokenService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory client token service, handing out a fixed audience of generated tokens. Feedback from the pushers is ignored, so every
+ * invocation pushes to the same audience.
+ *
+ * @author Mike Seghers
+ */
+public final class StubClientTokenService implements StreamingClientTokenService<BenchmarkClientToken, String, String, String> {
+    private final List<BenchmarkClientToken> clientTokens;
+
+    public StubClientTokenService(final String platform, final int numberOfTokens) {
+        List<BenchmarkClientToken> tokens = new ArrayList<>(numberOfTokens);
+        for (int i = 0; i < numberOfTokens; i++) {
+            tokens.add(new BenchmarkClientToken(generateToken(i), platform));
+        }
+        clientTokens = Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * Generates a token of a realistic length, GCM registration ids are about 150 characters long.
+     */
+    static String generateToken(final int index) {
+        StringBuilder builder = new StringBuilder(152);
+        builder.append("token-").append(index).append('-');
+        while (builder.length() < 152) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public List<BenchmarkClientToken> findClientTokensForOperatingSystem(final String platform) {
+        return clientTokens;
+    }
+
+    @Override
+    public List<BenchmarkClientToken> findClientTokensForOperatingSystem(final String platform, final Collection<String> groups) {
+        return clientTokens;
+    }
+
+    @Override
+    public void visitClientTokensForOperatingSystem(final String platform, final ClientTokenVisitor<? super BenchmarkClientToken> visitor) {
+        for (BenchmarkClientToken clientToken : clientTokens) {
+            visitor.visit(clientToken);
+        }
+    }
+
+    @Override
+    public void visitClientTokensForOperatingSystem(final String platform, final Collection<String> groups,
+                                                    final ClientTokenVisitor<? super BenchmarkClientToken> visitor) {
+        visitClientTokensForOperatingSystem(platform, visitor);
+    }
+
+    @Override
+    public void unregisterClientToken(final BenchmarkClientToken clientToken) {
+    }
+
+    @Override
+    public void changeClientToken(final BenchmarkClientToken clientToken, final String newTokenValue) {
+    }
+}
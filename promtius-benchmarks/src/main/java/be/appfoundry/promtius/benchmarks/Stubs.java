@@ -0,0 +1,105 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.custom.google.android.gcm.server.Message;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.Pusher;
+import be.appfoundry.promtius.google.GoogleSenderWrapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.notnoop.apns.ApnsService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-process stand-ins for the push services, so the benchmarks only measure Promtius itself.
+ *
+ * @author Mike Seghers
+ */
+public final class Stubs {
+    public static final String GCM_PLATFORM = "android";
+    public static final String APNS_PLATFORM = "ios";
+
+    private Stubs() {
+        throw new UnsupportedOperationException("Utility class");
+    }
+
+    /**
+     * Creates a sender wrapper that accepts every batch without reporting anything back, as if every message was delivered.
+     */
+    public static GoogleSenderWrapper googleSenderWrapper() {
+        return new GoogleSenderWrapper() {
+            @Override
+            public MulticastResult send(final Message message, final List<String> deviceRegistrationIds, final int numberOfRetries) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates an APNs service that accepts every push and never reports inactive devices.
+     */
+    public static ApnsService apnsService() {
+        return (ApnsService) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{ApnsService.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getInactiveDevices".equals(method.getName())) {
+                    return Collections.emptyMap();
+                }
+                if (Collection.class.isAssignableFrom(method.getReturnType())) {
+                    return Collections.emptyList();
+                }
+                return null;
+            }
+        });
+    }
+
+    public static ClientTokenFactory<BenchmarkClientToken, String, String> clientTokenFactory() {
+        return new ClientTokenFactory<BenchmarkClientToken, String, String>() {
+            @Override
+            public BenchmarkClientToken createClientToken(final String token, final String platform) {
+                return new BenchmarkClientToken(token, platform);
+            }
+        };
+    }
+
+    /**
+     * Creates a pusher for the given platform that returns right away.
+     */
+    public static Pusher<String, String> noOpPusher(final String platform) {
+        final Set<String> platforms = ImmutableSet.of(platform);
+        return new Pusher<String, String>() {
+            @Override
+            public void sendPush(final PushPayload payload) {
+            }
+
+            @Override
+            public void sendPush(final PushPayload payload, final Collection<String> groups) {
+            }
+
+            @Override
+            public Set<String> getPlatforms() {
+                return platforms;
+            }
+        };
+    }
+
+    /**
+     * Creates a payload resembling a typical notification, with a few custom fields.
+     */
+    public static PushPayload payload() {
+        return new PushPayload.Builder()
+                .withMessage("Your order has been shipped and will be delivered tomorrow")
+                .withTimeToLive(60)
+                .withCustomFields(ImmutableMap.of("orderId", "20141104-1234", "deepLink", "app://orders/20141104-1234"))
+                .withDiscriminator("orders")
+                .build();
+    }
+}
@@ -0,0 +1,74 @@
+package be.appfoundry.promtius.benchmarks;
+
+import be.appfoundry.promtius.ClientTokenVisitor;
+import be.appfoundry.promtius.StreamingClientTokenService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Client token service generating its audience while it is visited, so millions of tokens can be pushed without holding them in
+ * memory. Feedback from the pushers is counted, but otherwise ignored.
+ *
+ * @author Mike Seghers
+ */
+public final class SyntheticClientTokenService implements StreamingClientTokenService<BenchmarkClientToken, String, String, String> {
+    private final String platform;
+    private final int numberOfTokens;
+    private int unregisteredTokens;
+    private int changedTokens;
+
+    public SyntheticClientTokenService(final String platform, final int numberOfTokens) {
+        this.platform = platform;
+        this.numberOfTokens = numberOfTokens;
+    }
+
+    @Override
+    public void visitClientTokensForOperatingSystem(final String platform, final ClientTokenVisitor<? super BenchmarkClientToken> visitor) {
+        for (int i = 0; i < numberOfTokens; i++) {
+            visitor.visit(new BenchmarkClientToken(StubClientTokenService.generateToken(i), this.platform));
+        }
+    }
+
+    @Override
+    public void visitClientTokensForOperatingSystem(final String platform, final Collection<String> groups,
+                                                    final ClientTokenVisitor<? super BenchmarkClientToken> visitor) {
+        visitClientTokensForOperatingSystem(platform, visitor);
+    }
+
+    @Override
+    public List<BenchmarkClientToken> findClientTokensForOperatingSystem(final String platform) {
+        final List<BenchmarkClientToken> clientTokens = new ArrayList<>(numberOfTokens);
+        visitClientTokensForOperatingSystem(platform, new ClientTokenVisitor<BenchmarkClientToken>() {
+            @Override
+            public void visit(final BenchmarkClientToken clientToken) {
+                clientTokens.add(clientToken);
+            }
+        });
+        return clientTokens;
+    }
+
+    @Override
+    public List<BenchmarkClientToken> findClientTokensForOperatingSystem(final String platform, final Collection<String> groups) {
+        return findClientTokensForOperatingSystem(platform);
+    }
+
+    @Override
+    public synchronized void unregisterClientToken(final BenchmarkClientToken clientToken) {
+        unregisteredTokens++;
+    }
+
+    @Override
+    public synchronized void changeClientToken(final BenchmarkClientToken clientToken, final String newTokenValue) {
+        changedTokens++;
+    }
+
+    public synchronized int getUnregisteredTokens() {
+        return unregisteredTokens;
+    }
+
+    public synchronized int getChangedTokens() {
+        return changedTokens;
+    }
+}
@@ -0,0 +1,27 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link HttpTransport.RequestBody} holding the complete body in memory.
+ *
+ * @author Mike Seghers
+ */
+public final class ByteArrayRequestBody implements HttpTransport.RequestBody {
+    private final byte[] bytes;
+
+    public ByteArrayRequestBody(final byte[] bytes) {
+        this.bytes = Sender.nonNull(bytes);
+    }
+
+    @Override
+    public long getContentLength() {
+        return bytes.length;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+}
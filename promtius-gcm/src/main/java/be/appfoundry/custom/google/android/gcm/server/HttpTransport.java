@@ -0,0 +1,59 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Transport used by the {@link Sender} to post requests to GCM.
+ * <p/>
+ * By default the sender uses {@link java.net.HttpURLConnection}. Plug in another implementation, such as {@link PoolingHttpTransport}, through
+ * {@link Sender#Sender(String, HttpTransport)}.
+ *
+ * @author Mike Seghers
+ */
+public interface HttpTransport extends Closeable {
+
+    /**
+     * Posts the given body to the given URL.
+     *
+     * @param url     endpoint to post the request.
+     * @param headers request headers, including the content type.
+     * @param body    body of the request.
+     * @return the response, which should be closed by the caller.
+     * @throws IOException if the request could not be sent.
+     */
+    Response post(String url, Map<String, String> headers, RequestBody body) throws IOException;
+
+    /**
+     * Body of a request, written straight to the transport's output stream.
+     */
+    interface RequestBody {
+        /**
+         * Gets the number of bytes {@link #writeTo(OutputStream)} will write, or -1 if unknown.
+         */
+        long getContentLength();
+
+        /**
+         * Writes the body to the given stream, without closing it.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Response to a posted request. Closing it releases the underlying connection, so it can be reused.
+     */
+    interface Response extends Closeable {
+        /**
+         * Gets the HTTP status code.
+         */
+        int getStatus() throws IOException;
+
+        /**
+         * Gets the response body, or the error body when the status is not 200. May be {@literal null} when there is no body.
+         */
+        InputStream getContent() throws IOException;
+    }
+}
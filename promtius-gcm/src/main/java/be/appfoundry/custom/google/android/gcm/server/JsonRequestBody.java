@@ -0,0 +1,209 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import com.google.common.base.Charsets;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BADGE;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_CLICK_ACTION;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_COLOR;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_ICON;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_SOUND;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TAG;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_PAYLOAD;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_TO;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_DRY_RUN;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_PRIORITY;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
+import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_TIME_TO_LIVE;
+
+/**
+ * JSON body of a GCM send request, written straight to the transport's output stream.
+ * <p/>
+ * No intermediate map or String of the request is built. The fields of the message are encoded once, and cached by the {@link Message}
+ * itself (see {@link Message#getEncodedFields()}), so every batch and every retry sending the same message only serializes its own
+ * recipients. The body can be written more than once, so a retry or a repeatable transport entity writes the same request again.
+ *
+ * @author Mike Seghers
+ */
+final class JsonRequestBody implements HttpTransport.RequestBody {
+    private static final byte[] NO_FIELDS = new byte[0];
+
+    private final Message message;
+    private final String to;
+    private final List<String> registrationIds;
+
+    private JsonRequestBody(final Message message, final String to, final List<String> registrationIds) {
+        this.message = message;
+        this.to = to;
+        this.registrationIds = registrationIds;
+    }
+
+    /**
+     * Creates the body of a request sending the message to a single device, group or topic.
+     */
+    static JsonRequestBody to(final Message message, final String to) {
+        return new JsonRequestBody(message, to, null);
+    }
+
+    /**
+     * Creates the body of a request sending the message to multiple devices.
+     */
+    static JsonRequestBody toRegistrationIds(final Message message, final List<String> registrationIds) {
+        return new JsonRequestBody(message, null, registrationIds);
+    }
+
+    /**
+     * Encodes the fields of the message as the UTF-8 members of a JSON object, without the enclosing braces.
+     */
+    static byte[] encodeFields(final Message message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+        try {
+            writeMessage(new JsonObjectWriter(writer, false), message);
+            writer.flush();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The length is unknown until the body is written, so transports should stream it in chunks.
+     */
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        byte[] messageFields = message == null ? NO_FIELDS : message.getEncodedFields();
+        out.write('{');
+        out.write(messageFields);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+        writeRecipients(new JsonObjectWriter(writer, messageFields.length > 0));
+        writer.write('}');
+        // flush, but don't close: the stream is owned by the transport
+        writer.flush();
+    }
+
+    private void writeRecipients(final JsonObjectWriter request) throws IOException {
+        if (to != null) {
+            request.field(JSON_TO, to);
+        }
+        if (registrationIds != null) {
+            Writer writer = request.writer;
+            request.name(JSON_REGISTRATION_IDS);
+            writer.write('[');
+            for (int i = 0; i < registrationIds.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                JSONValue.writeJSONString(registrationIds.get(i), writer);
+            }
+            writer.write(']');
+        }
+    }
+
+    private static void writeMessage(final JsonObjectWriter request, final Message message) throws IOException {
+        request.field(PARAM_PRIORITY, message.getPriority());
+        request.field(PARAM_TIME_TO_LIVE, message.getTimeToLive());
+        request.field(PARAM_COLLAPSE_KEY, message.getCollapseKey());
+        request.field(PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
+        request.field(PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+        request.field(PARAM_DRY_RUN, message.isDryRun());
+        if (!message.getData().isEmpty()) {
+            request.field(JSON_PAYLOAD, message.getData());
+        }
+        Notification notification = message.getNotification();
+        if (notification != null) {
+            request.name(JSON_NOTIFICATION);
+            request.writer.write('{');
+            JsonObjectWriter n = new JsonObjectWriter(request.writer, false);
+            if (notification.getBadge() != null) {
+                n.field(JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
+            }
+            n.field(JSON_NOTIFICATION_BODY, notification.getBody());
+            n.field(JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
+            n.field(JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
+            n.field(JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
+            n.field(JSON_NOTIFICATION_COLOR, notification.getColor());
+            n.field(JSON_NOTIFICATION_ICON, notification.getIcon());
+            n.field(JSON_NOTIFICATION_SOUND, notification.getSound());
+            n.field(JSON_NOTIFICATION_TAG, notification.getTag());
+            n.field(JSON_NOTIFICATION_TITLE, notification.getTitle());
+            n.field(JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
+            n.field(JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
+            request.writer.write('}');
+        }
+    }
+
+    /**
+     * Renders the body, for logging purposes.
+     */
+    @Override
+    public String toString() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+
+    /**
+     * Writes the members of one JSON object, separating them with commas. The braces are written by the caller.
+     */
+    private static final class JsonObjectWriter {
+        private final Writer writer;
+        private boolean hasMembers;
+
+        private JsonObjectWriter(final Writer writer, final boolean hasMembers) {
+            this.writer = writer;
+            this.hasMembers = hasMembers;
+        }
+
+        /**
+         * Writes a field, but only if the value is not {@literal null}.
+         */
+        void field(final String name, final Object value) throws IOException {
+            if (value != null) {
+                name(name);
+                JSONValue.writeJSONString(value, writer);
+            }
+        }
+
+        /**
+         * Writes the name of a field, whose value should be written next.
+         */
+        void name(final String name) throws IOException {
+            if (hasMembers) {
+                writer.write(',');
+            }
+            hasMembers = true;
+            JSONValue.writeJSONString(name, writer);
+            writer.write(':');
+        }
+    }
+}
@@ -68,6 +68,7 @@ public final class Message implements Serializable {
     private final String restrictedPackageName;
     private final String priority;
     private final Notification notification;
+    private transient volatile byte[] encodedFields;
 
     public enum Priority {
         NORMAL, HIGH
@@ -245,6 +246,22 @@ public final class Message implements Serializable {
         return notification;
     }
 
+    /**
+     * Gets the fields of this message, encoded as the UTF-8 members of a JSON
+     * request. They are encoded on first use and reused by every request
+     * sending this message, so changes made afterwards to mutable values in
+     * the payload data are not sent.
+     */
+    byte[] getEncodedFields() {
+        byte[] fields = encodedFields;
+        if (fields == null) {
+            // racing threads encode the same bytes, so either result can be kept
+            fields = JsonRequestBody.encodeFields(this);
+            encodedFields = fields;
+        }
+        return fields;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("Message(");
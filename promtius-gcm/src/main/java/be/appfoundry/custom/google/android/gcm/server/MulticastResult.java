@@ -19,10 +19,19 @@ package be.appfoundry.custom.google.android.gcm.server;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Result of a GCM multicast message request .
+ *
+ * <p>
+ * Most messages of a multicast are delivered without anything to report
+ * besides their message id. Those are kept as plain message ids; only the
+ * other results (errors and canonical registration ids) are kept as
+ * {@link Result} objects, see {@link #getExceptionalResults()}. The full list
+ * of {@link #getResults()} is only created when it is asked for.
  */
 public final class MulticastResult implements Serializable {
 
@@ -30,12 +39,16 @@ public final class MulticastResult implements Serializable {
     private final int failure;
     private final int canonicalIds;
     private final long multicastId;
-    private final List<Result> results;
+    // message id of each plain success, null where exceptionalResults holds the result
+    private final String[] messageIds;
+    private final Map<Integer, Result> exceptionalResults;
     private final List<Long> retryMulticastIds;
+    private transient volatile List<Result> results;
 
     public static final class Builder {
 
-        private final List<Result> results = new ArrayList<Result>();
+        private final List<String> messageIds = new ArrayList<String>();
+        private final Map<Integer, Result> exceptionalResults = new LinkedHashMap<Integer, Result>();
 
         // required parameters
         private final int success;
@@ -55,7 +68,21 @@ public final class MulticastResult implements Serializable {
         }
 
         public Builder addResult(Result result) {
-            results.add(result);
+            if (isPlainSuccess(result)) {
+                messageIds.add(result.getMessageId());
+            } else {
+                exceptionalResults.put(messageIds.size(), result);
+                messageIds.add(null);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the result of a message that was delivered without canonical
+         * registration id, without creating a {@link Result} for it.
+         */
+        public Builder addSuccessResult(String messageId) {
+            messageIds.add(Sender.nonNull(messageId));
             return this;
         }
 
@@ -67,6 +94,14 @@ public final class MulticastResult implements Serializable {
         public MulticastResult build() {
             return new MulticastResult(this);
         }
+
+        private static boolean isPlainSuccess(Result result) {
+            return result != null && result.getMessageId() != null
+                    && result.getCanonicalRegistrationId() == null
+                    && result.getErrorCodeName() == null
+                    && result.getSuccess() == null && result.getFailure() == null
+                    && result.getFailedRegistrationIds() == null;
+        }
     }
 
     private MulticastResult(Builder builder) {
@@ -74,7 +109,9 @@ public final class MulticastResult implements Serializable {
         failure = builder.failure;
         canonicalIds = builder.canonicalIds;
         multicastId = builder.multicastId;
-        results = Collections.unmodifiableList(builder.results);
+        messageIds = builder.messageIds.toArray(new String[builder.messageIds.size()]);
+        exceptionalResults = Collections.unmodifiableMap(
+                new LinkedHashMap<Integer, Result>(builder.exceptionalResults));
         List<Long> tmpList = builder.retryMulticastIds;
         if (tmpList == null) {
             tmpList = Collections.emptyList();
@@ -82,6 +119,40 @@ public final class MulticastResult implements Serializable {
         retryMulticastIds = Collections.unmodifiableList(tmpList);
     }
 
+    private MulticastResult(MulticastResult source, int success, int failure,
+                            int canonicalIds) {
+        this.success = success;
+        this.failure = failure;
+        this.canonicalIds = canonicalIds;
+        multicastId = source.multicastId;
+        messageIds = source.messageIds;
+        exceptionalResults = source.exceptionalResults;
+        retryMulticastIds = source.retryMulticastIds;
+    }
+
+    /**
+     * Creates a copy of this result, sharing its results, whose summary is
+     * counted from the results instead of taken from the GCM response.
+     */
+    MulticastResult recount() {
+        int failure = 0, canonicalIds = 0;
+        for (Result result : exceptionalResults.values()) {
+            if (result == null || result.getMessageId() == null) {
+                failure++;
+            } else if (result.getCanonicalRegistrationId() != null) {
+                canonicalIds++;
+            }
+        }
+        return new MulticastResult(this, messageIds.length - failure, failure,
+                canonicalIds);
+    }
+
+    /**
+     * Gets the number of individual results.
+     */
+    int getResultCount() {
+        return messageIds.length;
+    }
     /**
      * Gets the multicast id.
      */
@@ -122,7 +193,46 @@ public final class MulticastResult implements Serializable {
      * Gets the results of each individual message, which is immutable.
      */
     public List<Result> getResults() {
-        return results;
+        List<Result> list = results;
+        if (list == null) {
+            // racing threads create equal lists, so either can be kept
+            list = new ArrayList<Result>(messageIds.length);
+            for (int i = 0; i < messageIds.length; i++) {
+                list.add(messageIds[i] == null ? exceptionalResults.get(i)
+                        : new Result.Builder().messageId(messageIds[i]).build());
+            }
+            list = Collections.unmodifiableList(list);
+            results = list;
+        }
+        return list;
+    }
+
+    /**
+     * Gets the number of messages that failed because GCM was unavailable,
+     * with {@code Unavailable} or {@code InternalServerError}.
+     */
+    public int getUnavailable() {
+        if (failure == 0) {
+            return 0;
+        }
+        int unavailable = 0;
+        for (Result result : exceptionalResults.values()) {
+            String error = result == null ? null : result.getErrorCodeName();
+            if (Constants.ERROR_UNAVAILABLE.equals(error) ||
+                    Constants.ERROR_INTERNAL_SERVER_ERROR.equals(error)) {
+                unavailable++;
+            }
+        }
+        return unavailable;
+    }
+
+    /**
+     * Gets the results that are not a plain success, meaning errors and
+     * canonical registration ids, keyed and ordered by their index in
+     * {@link #getResults()}. The map is immutable.
+     */
+    public Map<Integer, Result> getExceptionalResults() {
+        return exceptionalResults;
     }
 
     /**
@@ -140,8 +250,8 @@ public final class MulticastResult implements Serializable {
                 .append("success=").append(success).append(",")
                 .append("failure=").append(failure).append(",")
                 .append("canonical_ids=").append(canonicalIds).append(",");
-        if (!results.isEmpty()) {
-            builder.append("results: " + results);
+        if (messageIds.length > 0) {
+            builder.append("results: " + getResults());
         }
         return builder.toString();
     }
@@ -0,0 +1,205 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpTransport} backed by Apache HttpClient, keeping a pool of Keep-Alive connections to GCM.
+ * <p/>
+ * Every request reuses an idle pooled connection when one is available, avoiding a TCP and TLS handshake per multicast batch. Idle
+ * connections are evicted by a background thread once they exceeded the idle timeout. Close the transport to release the pool.
+ * <p/>
+ * Apache HttpClient is an optional dependency of this module: add {@code org.apache.httpcomponents:httpclient} to use this transport.
+ *
+ * @author Mike Seghers
+ */
+public final class PoolingHttpTransport implements HttpTransport {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    public static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 20;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+
+    private final CloseableHttpClient client;
+
+    private PoolingHttpTransport(final Builder builder) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(builder.maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(builder.maxConnectionsTotal);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(builder.connectTimeoutMillis)
+                .setConnectionRequestTimeout(builder.connectTimeoutMillis)
+                .setSocketTimeout(builder.readTimeoutMillis)
+                .build();
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(builder.idleTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Creates a transport with the default pool settings.
+     */
+    public PoolingHttpTransport() {
+        this(new Builder());
+    }
+
+    @Override
+    public Response post(final String url, final Map<String, String> headers, final RequestBody body) throws IOException {
+        HttpPost post = new HttpPost(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            post.setHeader(header.getKey(), header.getValue());
+        }
+        post.setEntity(new RequestBodyEntity(body));
+        return new PooledResponse(client.execute(post));
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /**
+     * Response releasing its connection back to the pool when closed.
+     */
+    private static final class PooledResponse implements Response {
+        private final CloseableHttpResponse response;
+
+        private PooledResponse(final CloseableHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatus() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? null : entity.getContent();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // a fully consumed response leaves the connection reusable
+                EntityUtils.consume(response.getEntity());
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    /**
+     * Entity writing a {@link RequestBody} straight to the connection.
+     */
+    private static final class RequestBodyEntity extends AbstractHttpEntity {
+        private final RequestBody body;
+
+        private RequestBodyEntity(final RequestBody body) {
+            this.body = body;
+            setChunked(body.getContentLength() < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.getContentLength();
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("The body can only be written to a stream");
+        }
+
+        @Override
+        public void writeTo(final OutputStream outstream) throws IOException {
+            body.writeTo(outstream);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    public static final class Builder {
+        private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+        private int maxConnectionsTotal = DEFAULT_MAX_CONNECTIONS_TOTAL;
+        private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+        private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+        /**
+         * Sets the maximum number of pooled connections to a single host. Defaults to {@value #DEFAULT_MAX_CONNECTIONS_PER_ROUTE}.
+         */
+        public Builder maxConnectionsPerRoute(final int value) {
+            maxConnectionsPerRoute = value;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of pooled connections over all hosts. Defaults to {@value #DEFAULT_MAX_CONNECTIONS_TOTAL}.
+         */
+        public Builder maxConnectionsTotal(final int value) {
+            maxConnectionsTotal = value;
+            return this;
+        }
+
+        /**
+         * Sets the timeout for opening a connection, or leasing one from the pool. Defaults to {@value #DEFAULT_CONNECT_TIMEOUT_MILLIS}
+         * milliseconds.
+         */
+        public Builder connectTimeoutMillis(final int value) {
+            connectTimeoutMillis = value;
+            return this;
+        }
+
+        /**
+         * Sets the timeout for waiting on response data. Defaults to {@value #DEFAULT_READ_TIMEOUT_MILLIS} milliseconds.
+         */
+        public Builder readTimeoutMillis(final int value) {
+            readTimeoutMillis = value;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may stay idle in the pool before it is evicted. Defaults to {@value #DEFAULT_IDLE_TIMEOUT_MILLIS}
+         * milliseconds.
+         */
+        public Builder idleTimeoutMillis(final long value) {
+            idleTimeoutMillis = value;
+            return this;
+        }
+
+        public PoolingHttpTransport build() {
+            if (maxConnectionsPerRoute <= 0 || maxConnectionsTotal < maxConnectionsPerRoute) {
+                throw new IllegalStateException("The pool should allow at least one connection per route, and no more per route than in total");
+            }
+            if (connectTimeoutMillis < 0 || readTimeoutMillis < 0 || idleTimeoutMillis <= 0) {
+                throw new IllegalStateException("Timeouts should not be negative, the idle timeout should be positive");
+            }
+            return new PoolingHttpTransport(this);
+        }
+    }
+}
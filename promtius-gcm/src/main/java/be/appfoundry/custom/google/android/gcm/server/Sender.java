@@ -22,36 +22,19 @@ import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_ERRO
 import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_FAILURE;
 import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_MESSAGE_ID;
 import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_MULTICAST_ID;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BADGE;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_ARGS;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_BODY_LOC_KEY;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_CLICK_ACTION;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_COLOR;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_ICON;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_SOUND;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TAG;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_ARGS;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_NOTIFICATION_TITLE_LOC_KEY;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_PAYLOAD;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_REGISTRATION_IDS;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_TO;
 import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_RESULTS;
 import static be.appfoundry.custom.google.android.gcm.server.Constants.JSON_SUCCESS;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_COLLAPSE_KEY;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_DELAY_WHILE_IDLE;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_DRY_RUN;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_PRIORITY;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_RESTRICTED_PACKAGE_NAME;
-import static be.appfoundry.custom.google.android.gcm.server.Constants.PARAM_TIME_TO_LIVE;
 import static be.appfoundry.custom.google.android.gcm.server.Constants.TOKEN_CANONICAL_REG_ID;
 import static be.appfoundry.custom.google.android.gcm.server.Constants.TOPIC_PREFIX;
 
+import be.appfoundry.promtius.metrics.NoOpPushMetrics;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -61,13 +44,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -86,20 +75,82 @@ public class Sender {
      * Maximum delay before a retry.
      */
     protected static final int MAX_BACKOFF_DELAY = 1024000;
+    /**
+     * Timeout for opening a connection through {@link #getConnection(String)},
+     * in milliseconds.
+     */
+    protected static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    /**
+     * Timeout for waiting on response data on a connection obtained through
+     * {@link #getConnection(String)}, in milliseconds.
+     */
+    protected static final int READ_TIMEOUT_MILLIS = 30000;
+    /**
+     * Value of the {@link PushMetricNames#TAG_SERVICE} tag of the metrics
+     * reported by a sender.
+     */
+    public static final String METRICS_SERVICE = "gcm";
 
     protected final Random random = new Random();
     protected static final Logger logger =
             Logger.getLogger(Sender.class.getName());
 
     private final String key;
+    // null when posting through getConnection(String)
+    private final HttpTransport transport;
+    private final String endpoint;
+    private final PushMetrics metrics;
 
     /**
-     * Default constructor.
+     * Default constructor, posting requests through {@link HttpURLConnection}.
      *
      * @param key API key obtained through the Google API Console.
      */
     public Sender(String key) {
         this.key = nonNull(key);
+        this.transport = null;
+        this.endpoint = GCM_SEND_ENDPOINT;
+        this.metrics = NoOpPushMetrics.INSTANCE;
+    }
+
+    /**
+     * Creates a sender posting requests through the given transport. The
+     * transport's lifecycle is managed by the caller.
+     *
+     * @param key       API key obtained through the Google API Console.
+     * @param transport transport used to post requests to GCM.
+     */
+    public Sender(String key, HttpTransport transport) {
+        this(key, transport, GCM_SEND_ENDPOINT);
+    }
+
+    /**
+     * Creates a sender posting requests through the given transport to
+     * another endpoint than GCM's, such as a local stub or a proxy.
+     *
+     * @param key       API key obtained through the Google API Console.
+     * @param transport transport used to post requests.
+     * @param endpoint  URL the requests are posted to.
+     */
+    public Sender(String key, HttpTransport transport, String endpoint) {
+        this(key, transport, endpoint, NoOpPushMetrics.INSTANCE);
+    }
+
+    /**
+     * Creates a sender posting requests through the given transport, and
+     * reporting the latency of every request, the number of retries and the
+     * back-off before them to the given metrics.
+     *
+     * @param key       API key obtained through the Google API Console.
+     * @param transport transport used to post requests.
+     * @param endpoint  URL the requests are posted to.
+     * @param metrics   metrics the requests are reported to.
+     */
+    public Sender(String key, HttpTransport transport, String endpoint, PushMetrics metrics) {
+        this.key = nonNull(key);
+        this.transport = nonNull(transport);
+        this.endpoint = nonNull(endpoint);
+        this.metrics = nonNull(metrics);
     }
 
     /**
@@ -134,6 +185,7 @@ public class Sender {
             tryAgain = result == null && attempt <= retries;
             if (tryAgain) {
                 int sleepTime = backoff / 2 + random.nextInt(backoff);
+                recordRetry(sleepTime);
                 sleep(sleepTime);
                 if (2 * backoff < MAX_BACKOFF_DELAY) {
                     backoff *= 2;
@@ -159,10 +211,7 @@ public class Sender {
      */
     public Result sendNoRetry(Message message, String to) throws IOException {
         nonNull(to);
-        Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-        messageToMap(message, jsonRequest);
-        jsonRequest.put(JSON_TO, to);
-        String responseBody = makeGcmHttpRequest(jsonRequest);
+        String responseBody = makeGcmHttpRequest(JsonRequestBody.to(message, to));
         if (responseBody == null) {
             return null;
         }
@@ -268,6 +317,10 @@ public class Sender {
                 // no need for WARNING since exception might be already logged
                 logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
             }
+            if (multicastResult != null && attempt == 1
+                    && isResolved(regIds, multicastResult)) {
+                return multicastResult.recount();
+            }
             if (multicastResult != null) {
                 long multicastId = multicastResult.getMulticastId();
                 logger.fine("multicast_id on attempt # " + attempt + ": " +
@@ -280,12 +333,25 @@ public class Sender {
             }
             if (tryAgain) {
                 int sleepTime = backoff / 2 + random.nextInt(backoff);
+                recordRetry(sleepTime);
                 sleep(sleepTime);
                 if (2 * backoff < MAX_BACKOFF_DELAY) {
                     backoff *= 2;
                 }
             }
         } while (tryAgain);
+        return buildMulticastResult(regIds, results, multicastIds, attempt);
+    }
+
+    /**
+     * Combines the results of all attempts of a multicast send into one
+     * {@link MulticastResult}, in the same order as the given registration ids.
+     *
+     * @throws IOException if none of the attempts reached GCM.
+     */
+    private MulticastResult buildMulticastResult(List<String> regIds,
+                                                 Map<String, Result> results, List<Long> multicastIds, int attempt)
+            throws IOException {
         if (multicastIds.isEmpty()) {
             // all JSON posts failed due to GCM unavailability
             throw new IOException("Could not post JSON requests to GCM after "
@@ -315,6 +381,187 @@ public class Sender {
         return builder.build();
     }
 
+    /**
+     * Sends a message to one device, retrying in case of unavailability, without
+     * blocking the calling thread.
+     * <p/>
+     * <p/>
+     * Each attempt runs on the given scheduler, and the exponential back-off
+     * between attempts is handed to the scheduler instead of sleeping, so a few
+     * threads can serve many messages that are backing off. The future fails
+     * with the exceptions {@link #send(Message, String, int)} would throw.
+     * Cancelling the future stops further attempts.
+     *
+     * @param message   message to be sent, including the device's registration id.
+     * @param to        registration token, notification key, or topic where the message will be sent.
+     * @param retries   number of retries in case of service unavailability errors.
+     * @param scheduler executor running the attempts.
+     * @return future result of the request.
+     * @throws IllegalArgumentException if to or scheduler is {@literal null}.
+     */
+    public ListenableFuture<Result> sendAsync(final Message message, final String to, int retries,
+                                              ScheduledExecutorService scheduler) {
+        nonNull(to);
+        AsyncSend<Result> send = new AsyncSend<Result>(retries, nonNull(scheduler)) {
+            private Result result;
+
+            @Override
+            protected boolean attempt(int attempt) throws IOException {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Attempt #" + attempt + " to send message " +
+                            message + " to regIds " + to);
+                }
+                result = sendNoRetry(message, to);
+                return result == null;
+            }
+
+            @Override
+            protected Result result(int attempt) throws IOException {
+                if (result == null) {
+                    throw new IOException("Could not send message after " + attempt +
+                            " attempts");
+                }
+                return result;
+            }
+        };
+        send.scheduleAttempt(0);
+        return send.future;
+    }
+
+    /**
+     * Sends a message to many devices, retrying in case of unavailability,
+     * without blocking the calling thread.
+     * <p/>
+     * <p/>
+     * Each attempt runs on the given scheduler, and the exponential back-off
+     * between attempts is handed to the scheduler instead of sleeping, so a few
+     * threads can serve many batches that are backing off. The future fails
+     * with the exceptions {@link #send(Message, List, int)} would throw.
+     * Cancelling the future stops further attempts.
+     *
+     * @param message   message to be sent.
+     * @param regIds    registration id of the devices that will receive
+     *                  the message.
+     * @param retries   number of retries in case of service unavailability errors.
+     * @param scheduler executor running the attempts.
+     * @return future combined result of all requests made.
+     * @throws IllegalArgumentException if registrationIds or scheduler is
+     *                                  {@literal null}.
+     */
+    public ListenableFuture<MulticastResult> sendAsync(final Message message, final List<String> regIds,
+                                                       int retries, ScheduledExecutorService scheduler) {
+        nonNull(regIds);
+        AsyncSend<MulticastResult> send = new AsyncSend<MulticastResult>(retries, nonNull(scheduler)) {
+            // Map of results by registration id, it will be updated after each attempt
+            // to send the messages
+            private final Map<String, Result> results = new HashMap<String, Result>();
+            private final List<Long> multicastIds = new ArrayList<Long>();
+            private List<String> unsentRegIds = new ArrayList<String>(regIds);
+            private MulticastResult firstResult;
+
+            @Override
+            protected boolean attempt(int attempt) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Attempt #" + attempt + " to send message " +
+                            message + " to regIds " + unsentRegIds);
+                }
+                MulticastResult multicastResult = null;
+                try {
+                    multicastResult = sendNoRetry(message, unsentRegIds);
+                } catch (IOException e) {
+                    // no need for WARNING since exception might be already logged
+                    logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
+                }
+                if (multicastResult == null) {
+                    return true;
+                }
+                if (attempt == 1 && isResolved(regIds, multicastResult)) {
+                    firstResult = multicastResult;
+                    return false;
+                }
+                long multicastId = multicastResult.getMulticastId();
+                logger.fine("multicast_id on attempt # " + attempt + ": " +
+                        multicastId);
+                multicastIds.add(multicastId);
+                unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
+                return !unsentRegIds.isEmpty();
+            }
+
+            @Override
+            protected MulticastResult result(int attempt) throws IOException {
+                if (firstResult != null) {
+                    return firstResult.recount();
+                }
+                return buildMulticastResult(regIds, results, multicastIds, attempt);
+            }
+        };
+        send.scheduleAttempt(0);
+        return send.future;
+    }
+
+    /**
+     * Drives the attempts of an asynchronous send. Attempts run one after
+     * another on the scheduler, the delay between them grows exponentially,
+     * just like the blocking variants.
+     */
+    private abstract class AsyncSend<T> implements Runnable {
+        private final int retries;
+        private final ScheduledExecutorService scheduler;
+        private final SettableFuture<T> future = SettableFuture.create();
+        private int attempt;
+        private int backoff = BACKOFF_INITIAL_DELAY;
+
+        AsyncSend(int retries, ScheduledExecutorService scheduler) {
+            this.retries = retries;
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * Makes one attempt.
+         *
+         * @return whether another attempt is needed.
+         */
+        protected abstract boolean attempt(int attempt) throws IOException;
+
+        /**
+         * Gets the overall result once no more attempts will be made.
+         */
+        protected abstract T result(int attempt) throws IOException;
+
+        @Override
+        public void run() {
+            if (future.isCancelled()) {
+                return;
+            }
+            attempt++;
+            try {
+                boolean tryAgain = attempt(attempt) && attempt <= retries;
+                if (tryAgain) {
+                    int sleepTime = backoff / 2 + random.nextInt(backoff);
+                    recordRetry(sleepTime);
+                    if (2 * backoff < MAX_BACKOFF_DELAY) {
+                        backoff *= 2;
+                    }
+                    scheduleAttempt(sleepTime);
+                } else {
+                    future.set(result(attempt));
+                }
+            } catch (IOException e) {
+                future.setException(e);
+            } catch (RuntimeException e) {
+                future.setException(e);
+            }
+        }
+
+        void scheduleAttempt(long delayMillis) {
+            try {
+                scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                future.setException(e);
+            }
+        }
+    }
+
     /**
      * Updates the status of the messages sent to devices and the list of devices
      * that should be retried.
@@ -337,15 +584,38 @@ public class Sender {
             String regId = unsentRegIds.get(i);
             Result result = results.get(i);
             allResults.put(regId, result);
-            String error = result.getErrorCodeName();
-            if (error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
-                    || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
+            if (isRetriable(result)) {
                 newUnsentRegIds.add(regId);
             }
         }
         return newUnsentRegIds;
     }
 
+    /**
+     * Checks whether the first attempt of a multicast got a final result for
+     * every registration id, in which case its results are the overall results
+     * and don't need to be merged by registration id. Only the exceptional
+     * results need to be checked, a plain success is final.
+     */
+    private boolean isResolved(List<String> regIds, MulticastResult multicastResult) {
+        if (multicastResult.getResultCount() != regIds.size()) {
+            // let updateStatus report the mismatch
+            return false;
+        }
+        for (Result result : multicastResult.getExceptionalResults().values()) {
+            if (isRetriable(result)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isRetriable(Result result) {
+        String error = result.getErrorCodeName();
+        return error != null && (error.equals(Constants.ERROR_UNAVAILABLE)
+                || error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR));
+    }
+
     /**
      * Sends a message without retrying in case of service unavailability. See
      * {@link #send(Message, List, int)} for more info.
@@ -362,123 +632,299 @@ public class Sender {
         if (nonNull(registrationIds).isEmpty()) {
             throw new IllegalArgumentException("registrationIds cannot be empty");
         }
-        Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-        messageToMap(message, jsonRequest);
-        jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-        String responseBody = makeGcmHttpRequest(jsonRequest);
-        if (responseBody == null) {
+        HttpTransport.Response response = postGcmHttpRequest(
+                JsonRequestBody.toRegistrationIds(message, registrationIds));
+        if (response == null) {
             return null;
         }
-        JSONParser parser = new JSONParser();
-        JSONObject jsonResponse;
         try {
-            jsonResponse = (JSONObject) parser.parse(responseBody);
-            int success = getNumber(jsonResponse, JSON_SUCCESS).intValue();
-            int failure = getNumber(jsonResponse, JSON_FAILURE).intValue();
-            int canonicalIds = getNumber(jsonResponse, JSON_CANONICAL_IDS).intValue();
-            long multicastId = getNumber(jsonResponse, JSON_MULTICAST_ID).longValue();
-            MulticastResult.Builder builder = new MulticastResult.Builder(success,
-                    failure, canonicalIds, multicastId);
-            @SuppressWarnings("unchecked")
-            List<Map<String, Object>> results =
-                    (List<Map<String, Object>>) jsonResponse.get(JSON_RESULTS);
-            if (results != null) {
-                for (Map<String, Object> jsonResult : results) {
-                    String messageId = (String) jsonResult.get(JSON_MESSAGE_ID);
-                    String canonicalRegId =
-                            (String) jsonResult.get(TOKEN_CANONICAL_REG_ID);
-                    String error = (String) jsonResult.get(JSON_ERROR);
-                    Result result = new Result.Builder()
+            return parseMulticastResult(response.getContent());
+        } finally {
+            close(response);
+        }
+    }
+
+    /**
+     * Parses a multicast response while it is read, building the results
+     * without an intermediate String or JSON tree. The response is only read
+     * into a String when FINEST logging is enabled, so it can be logged.
+     *
+     * @return the multicast result, or {@literal null} if the response could
+     * not be read.
+     */
+    private MulticastResult parseMulticastResult(InputStream content) throws IOException {
+        Reader reader;
+        String responseBody = null;
+        if (logger.isLoggable(Level.FINEST)) {
+            try {
+                responseBody = getAndClose(content);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "IOException reading response", e);
+                return null;
+            }
+            logger.finest("JSON response: " + responseBody);
+            reader = new StringReader(responseBody);
+        } else if (content == null) {
+            reader = new StringReader("");
+        } else {
+            reader = new InputStreamReader(content, UTF8);
+        }
+        MulticastResultHandler handler = new MulticastResultHandler();
+        try {
+            new JSONParser().parse(reader, handler);
+            return handler.build();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "IOException reading response", e);
+            return null;
+        } catch (ParseException e) {
+            throw newIoException(describeResponse(responseBody, handler), e);
+        } catch (CustomParserException e) {
+            throw newIoException(describeResponse(responseBody, handler), e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static String describeResponse(String responseBody, MulticastResultHandler handler) {
+        return responseBody != null ? responseBody : "streamed, " + handler.messageIds.size() + " results parsed";
+    }
+
+    /**
+     * Collects the counters and the results of a multicast response from the
+     * events of a streaming {@link JSONParser}.
+     */
+    private final class MulticastResultHandler implements ContentHandler {
+        // message id of each plain success, null for the exceptional results
+        private final List<String> messageIds = new ArrayList<String>();
+        private final Map<Integer, Result> exceptionalResults = new HashMap<Integer, Result>();
+        // nesting of objects and arrays, the response object being 1
+        private int depth;
+        private boolean inResults;
+        private String responseField;
+        private String resultField;
+        private Object success;
+        private Object failure;
+        private Object canonicalIds;
+        private Object multicastId;
+        private String messageId;
+        private String canonicalRegId;
+        private String error;
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            if (inResults && depth == 3) {
+                messageId = null;
+                canonicalRegId = null;
+                error = null;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            if (inResults && depth == 3) {
+                if (messageId != null && canonicalRegId == null && error == null) {
+                    messageIds.add(messageId);
+                } else {
+                    exceptionalResults.put(messageIds.size(), new Result.Builder()
                             .messageId(messageId)
                             .canonicalRegistrationId(canonicalRegId)
                             .errorCode(error)
-                            .build();
-                    builder.addResult(result);
+                            .build());
+                    messageIds.add(null);
+                }
+            }
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            if (depth == 1) {
+                responseField = key;
+            } else if (inResults && depth == 3) {
+                resultField = key;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            if (depth == 1) {
+                responseField = null;
+            } else if (inResults && depth == 3) {
+                resultField = null;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            depth++;
+            if (depth == 2 && JSON_RESULTS.equals(responseField)) {
+                inResults = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            if (depth == 2) {
+                inResults = false;
+            }
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (depth == 1 && responseField != null) {
+                if (JSON_SUCCESS.equals(responseField)) {
+                    success = value;
+                } else if (JSON_FAILURE.equals(responseField)) {
+                    failure = value;
+                } else if (JSON_CANONICAL_IDS.equals(responseField)) {
+                    canonicalIds = value;
+                } else if (JSON_MULTICAST_ID.equals(responseField)) {
+                    multicastId = value;
+                }
+            } else if (inResults && depth == 3 && resultField != null) {
+                if (JSON_MESSAGE_ID.equals(resultField)) {
+                    messageId = getString(resultField, value);
+                } else if (TOKEN_CANONICAL_REG_ID.equals(resultField)) {
+                    canonicalRegId = getString(resultField, value);
+                } else if (JSON_ERROR.equals(resultField)) {
+                    error = getString(resultField, value);
+                }
+            }
+            return true;
+        }
+
+        MulticastResult build() {
+            MulticastResult.Builder builder = new MulticastResult.Builder(
+                    getNumber(JSON_SUCCESS, success).intValue(),
+                    getNumber(JSON_FAILURE, failure).intValue(),
+                    getNumber(JSON_CANONICAL_IDS, canonicalIds).intValue(),
+                    getNumber(JSON_MULTICAST_ID, multicastId).longValue());
+            for (int i = 0; i < messageIds.size(); i++) {
+                String id = messageIds.get(i);
+                if (id != null) {
+                    builder.addSuccessResult(id);
+                } else {
+                    builder.addResult(exceptionalResults.get(i));
                 }
             }
             return builder.build();
-        } catch (ParseException e) {
-            throw newIoException(responseBody, e);
-        } catch (CustomParserException e) {
-            throw newIoException(responseBody, e);
+        }
+
+        private String getString(String field, Object value) {
+            if (value != null && !(value instanceof String)) {
+                throw new CustomParserException("Field " + field +
+                        " does not contain a string: " + value);
+            }
+            return (String) value;
         }
     }
 
-    private String makeGcmHttpRequest(Map<Object, Object> jsonRequest) throws InvalidRequestException {
-        String requestBody = JSONValue.toJSONString(jsonRequest);
-        logger.finest("JSON request: " + requestBody);
-        HttpURLConnection conn;
+    private String makeGcmHttpRequest(JsonRequestBody requestBody) throws InvalidRequestException {
+        HttpTransport.Response response = postGcmHttpRequest(requestBody);
+        if (response == null) {
+            return null;
+        }
+        try {
+            String responseBody;
+            try {
+                responseBody = getAndClose(response.getContent());
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "IOException reading response", e);
+                return null;
+            }
+            logger.finest("JSON response: " + responseBody);
+            return responseBody;
+        } finally {
+            close(response);
+        }
+    }
+
+    /**
+     * Posts a request to GCM.
+     *
+     * @return the response, with a 200 status, which should be closed by the
+     * caller; or {@literal null} if posting failed.
+     * @throws InvalidRequestException if GCM didn't returned a 200 status.
+     */
+    private HttpTransport.Response postGcmHttpRequest(JsonRequestBody requestBody)
+            throws InvalidRequestException {
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("JSON request: " + requestBody);
+        }
+        HttpTransport.Response response;
         int status;
+        long start = System.nanoTime();
         try {
-            conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
-            status = conn.getResponseCode();
+            response = postRequest(endpoint, newRequestHeaders("application/json"), requestBody);
         } catch (IOException e) {
             logger.log(Level.FINE, "IOException posting to GCM", e);
+            recordLatency(start, PushMetricNames.STATUS_IO_ERROR);
             return null;
         }
-        String responseBody;
+        try {
+            status = response.getStatus();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "IOException posting to GCM", e);
+            recordLatency(start, PushMetricNames.STATUS_IO_ERROR);
+            close(response);
+            return null;
+        }
+        recordLatency(start, String.valueOf(status));
         if (status != 200) {
+            String responseBody;
             try {
-                responseBody = getAndClose(conn.getErrorStream());
+                responseBody = getAndClose(response.getContent());
                 logger.finest("JSON error response: " + responseBody);
             } catch (IOException e) {
                 // ignore the exception since it will thrown an InvalidRequestException
                 // anyways
                 responseBody = "N/A";
                 logger.log(Level.FINE, "Exception reading response: ", e);
+            } finally {
+                close(response);
             }
             throw new InvalidRequestException(status, responseBody);
         }
-        try {
-            responseBody = getAndClose(conn.getInputStream());
-        } catch (IOException e) {
-            logger.log(Level.WARNING, "IOException reading response", e);
-            return null;
-        }
-        logger.finest("JSON response: " + responseBody);
-        return responseBody;
+        return response;
+    }
+
+    private void recordLatency(long startNanos, String status) {
+        metrics.recordTime(PushMetricNames.HTTP_LATENCY, System.nanoTime() - startNanos,
+                TimeUnit.NANOSECONDS, PushMetricNames.TAG_SERVICE, METRICS_SERVICE,
+                PushMetricNames.TAG_STATUS, status);
+    }
+
+    private void recordRetry(int sleepTime) {
+        metrics.increment(PushMetricNames.RETRIES, 1,
+                PushMetricNames.TAG_SERVICE, METRICS_SERVICE);
+        metrics.recordTime(PushMetricNames.RETRY_BACKOFF, sleepTime,
+                TimeUnit.MILLISECONDS, PushMetricNames.TAG_SERVICE, METRICS_SERVICE);
     }
 
     /**
-     * Populate Map with message.
-     *
-     * @param message    Message used to populate Map.
-     * @param mapRequest Map populated by Message.
-     */
-    private void messageToMap(Message message, Map<Object, Object> mapRequest) {
-        if (message == null || mapRequest == null) {
-            return;
-        }
-        setJsonField(mapRequest, PARAM_PRIORITY, message.getPriority());
-        setJsonField(mapRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-        setJsonField(mapRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-        setJsonField(mapRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-        setJsonField(mapRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
-        setJsonField(mapRequest, PARAM_DRY_RUN, message.isDryRun());
-        Map<String, Object
-                > payload = message.getData();
-        if (!payload.isEmpty()) {
-            mapRequest.put(JSON_PAYLOAD, payload);
-        }
-        if (message.getNotification() != null) {
-            Notification notification = message.getNotification();
-            Map<Object, Object> nMap = new HashMap<Object, Object>();
-            if (notification.getBadge() != null) {
-                setJsonField(nMap, JSON_NOTIFICATION_BADGE, notification.getBadge().toString());
-            }
-            setJsonField(nMap, JSON_NOTIFICATION_BODY, notification.getBody());
-            setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_ARGS, notification.getBodyLocArgs());
-            setJsonField(nMap, JSON_NOTIFICATION_BODY_LOC_KEY, notification.getBodyLocKey());
-            setJsonField(nMap, JSON_NOTIFICATION_CLICK_ACTION, notification.getClickAction());
-            setJsonField(nMap, JSON_NOTIFICATION_COLOR, notification.getColor());
-            setJsonField(nMap, JSON_NOTIFICATION_ICON, notification.getIcon());
-            setJsonField(nMap, JSON_NOTIFICATION_SOUND, notification.getSound());
-            setJsonField(nMap, JSON_NOTIFICATION_TAG, notification.getTag());
-            setJsonField(nMap, JSON_NOTIFICATION_TITLE, notification.getTitle());
-            setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_ARGS, notification.getTitleLocArgs());
-            setJsonField(nMap, JSON_NOTIFICATION_TITLE_LOC_KEY, notification.getTitleLocKey());
-            mapRequest.put(JSON_NOTIFICATION, nMap);
-        }
+     * Creates the headers of a request to GCM.
+     */
+    private Map<String, String> newRequestHeaders(String contentType) {
+        Map<String, String> headers = new LinkedHashMap<String, String>(2);
+        headers.put("Content-Type", contentType);
+        headers.put("Authorization", "key=" + key);
+        return headers;
     }
 
     private IOException newIoException(String responseBody, Exception e) {
@@ -500,18 +946,11 @@ public class Sender {
         }
     }
 
-    /**
-     * Sets a JSON field, but only if the value is not {@literal null}.
-     */
-    private void setJsonField(Map<Object, Object> json, String field,
-                              Object value) {
-        if (value != null) {
-            json.put(field, value);
-        }
+    private Number getNumber(Map<?, ?> json, String field) {
+        return getNumber(field, json.get(field));
     }
 
-    private Number getNumber(Map<?, ?> json, String field) {
-        Object value = json.get(field);
+    private Number getNumber(String field, Object value) {
         if (value == null) {
             throw new CustomParserException("Missing field: " + field);
         }
@@ -562,22 +1001,68 @@ public class Sender {
         logger.fine("Sending POST to " + url);
         logger.finest("POST body: " + body);
         byte[] bytes = body.getBytes(UTF8);
+        return post(url, newRequestHeaders(contentType), new ByteArrayRequestBody(bytes));
+    }
+
+    /**
+     * Makes an HTTP POST request through a connection obtained from
+     * {@link #getConnection(String)}, writing the body straight to the
+     * connection's output stream.
+     */
+    private HttpURLConnection post(String url, Map<String, String> headers,
+                                   HttpTransport.RequestBody body) throws IOException {
         HttpURLConnection conn = getConnection(url);
         conn.setDoOutput(true);
         conn.setUseCaches(false);
-        conn.setFixedLengthStreamingMode(bytes.length);
+        long contentLength = body.getContentLength();
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            conn.setFixedLengthStreamingMode((int) contentLength);
+        } else {
+            conn.setChunkedStreamingMode(0);
+        }
         conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", contentType);
-        conn.setRequestProperty("Authorization", "key=" + key);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
         OutputStream out = conn.getOutputStream();
         try {
-            out.write(bytes);
+            body.writeTo(out);
         } finally {
             close(out);
         }
         return conn;
     }
 
+    /**
+     * Posts a request through the configured transport or, when none was
+     * given, through a connection obtained from {@link #getConnection(String)}.
+     * Such connections are never disconnected, so the JDK can reuse them
+     * through Keep-Alive.
+     */
+    private HttpTransport.Response postRequest(String url, Map<String, String> headers,
+                                               HttpTransport.RequestBody body) throws IOException {
+        if (transport != null) {
+            return transport.post(url, headers, body);
+        }
+        final HttpURLConnection conn = post(url, headers, body);
+        return new HttpTransport.Response() {
+            @Override
+            public int getStatus() throws IOException {
+                return conn.getResponseCode();
+            }
+
+            @Override
+            public InputStream getContent() throws IOException {
+                return getStatus() == 200 ? conn.getInputStream() : conn.getErrorStream();
+            }
+
+            @Override
+            public void close() {
+                // streams are closed by the reader, the connection is kept alive
+            }
+        };
+    }
+
     /**
      * Creates a map with just one key-value pair.
      */
@@ -613,10 +1098,20 @@ public class Sender {
     }
 
     /**
-     * Gets an {@link HttpURLConnection} given an URL.
+     * Gets an {@link HttpURLConnection} given an URL, with a connect timeout of
+     * {@value #CONNECT_TIMEOUT_MILLIS} and a read timeout of
+     * {@value #READ_TIMEOUT_MILLIS} milliseconds.
+     * <p/>
+     * Blocking socket I/O ignores interrupts, so these timeouts are what frees
+     * a thread stuck on a connection that never answers, even once the push
+     * it belongs to was cancelled.
      */
     protected HttpURLConnection getConnection(String url) throws IOException {
-        return (HttpURLConnection) new URL(url).openConnection();
+        HttpURLConnection conn =
+                (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return conn;
     }
 
     /**
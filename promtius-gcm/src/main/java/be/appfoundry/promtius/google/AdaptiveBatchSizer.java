@@ -0,0 +1,171 @@
+package be.appfoundry.promtius.google;
+
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the size of the GCM batches and the number of batches in flight to how well GCM is doing, additive increase, multiplicative decrease (AIMD) style.
+ * <p/>
+ * A batch is degraded when it could not be sent at all, when its response, including the retries of the sender, took longer than the latency threshold, or when more than
+ * the error rate threshold of its tokens still failed with {@code Unavailable} or {@code InternalServerError}. Every degraded batch halves the batch size and the number of
+ * batches in flight, down to the minimum batch size and a single batch. Every healthy batch grows the batch size by a fixed step and allows one more batch in flight, up to
+ * the maximums. Smaller batches fail cheaper on a bad day, while on a good day the sizes quickly return to the maximum.
+ * <p/>
+ * Batches that were in flight together tend to fail together, so a degraded batch that is larger than the current batch size, which was sent before the last decrease,
+ * does not decrease the sizes again. An instance keeps adapting across pushes, and is meant to be used by a single {@link GoogleCloudMessagingPusher}.
+ *
+ * @author Mike Seghers
+ */
+public final class AdaptiveBatchSizer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    public static final int DEFAULT_MIN_BATCH_SIZE = 100;
+    public static final int DEFAULT_BATCH_SIZE_STEP = 100;
+    public static final long DEFAULT_LATENCY_THRESHOLD_MILLIS = 5000;
+    public static final double DEFAULT_ERROR_RATE_THRESHOLD = 0.1;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int batchSizeStep;
+    private final int maxConcurrentBatches;
+    private final long latencyThresholdNanos;
+    private final double errorRateThreshold;
+    private volatile int batchSize;
+    private volatile int concurrentBatches;
+
+    private AdaptiveBatchSizer(final Builder builder) {
+        this.minBatchSize = builder.minBatchSize;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.batchSizeStep = builder.batchSizeStep;
+        this.maxConcurrentBatches = builder.maxConcurrentBatches;
+        this.latencyThresholdNanos = builder.latencyThresholdNanos;
+        this.errorRateThreshold = builder.errorRateThreshold;
+        this.batchSize = builder.maxBatchSize;
+        this.concurrentBatches = builder.maxConcurrentBatches;
+    }
+
+    /**
+     * Gets the number of tokens the next batch should have.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Gets the number of batches that may be in flight at once.
+     */
+    public int getConcurrentBatches() {
+        return concurrentBatches;
+    }
+
+    /**
+     * Records a batch that GCM responded to, after the given time. The result may be {@literal null} when the sender did not return one.
+     */
+    void recordBatch(final int size, final long latencyNanos, final MulticastResult result) {
+        int unavailable = result == null ? 0 : result.getUnavailable();
+        if (latencyNanos > latencyThresholdNanos) {
+            decrease(size, "took " + TimeUnit.NANOSECONDS.toMillis(latencyNanos) + " ms");
+        } else if (unavailable > errorRateThreshold * size) {
+            decrease(size, "had " + unavailable + " unavailable tokens");
+        } else {
+            increase();
+        }
+    }
+
+    /**
+     * Records a batch that could not be sent at all.
+     */
+    void recordFailedBatch(final int size) {
+        decrease(size, "failed");
+    }
+
+    private synchronized void increase() {
+        batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+        concurrentBatches = Math.min(maxConcurrentBatches, concurrentBatches + 1);
+    }
+
+    private synchronized void decrease(final int size, final String reason) {
+        if (size > batchSize) {
+            return;
+        }
+        batchSize = Math.max(minBatchSize, batchSize / 2);
+        concurrentBatches = Math.max(1, concurrentBatches / 2);
+        LOGGER.debug("Batch of {} tokens {}, continuing with batches of {} tokens and {} in flight", size, reason, batchSize, concurrentBatches);
+    }
+
+    /**
+     * Builds an {@link AdaptiveBatchSizer}, starting at the maximum batch size and number of batches in flight.
+     */
+    public static class Builder {
+        private int minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+        private int maxBatchSize = GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE;
+        private int batchSizeStep = DEFAULT_BATCH_SIZE_STEP;
+        private int maxConcurrentBatches = 1;
+        private long latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_THRESHOLD_MILLIS);
+        private double errorRateThreshold = DEFAULT_ERROR_RATE_THRESHOLD;
+
+        /**
+         * The smallest batch size to shrink to. Defaults to {@value #DEFAULT_MIN_BATCH_SIZE}.
+         */
+        public Builder withMinBatchSize(final int minBatchSize) {
+            this.minBatchSize = minBatchSize;
+            return this;
+        }
+
+        /**
+         * The largest batch size to grow to, at most {@link GoogleCloudMessagingPusher#MAX_MULTICAST_SIZE}, which is the default.
+         */
+        public Builder withMaxBatchSize(final int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * The number of tokens a healthy batch adds to the batch size. Defaults to {@value #DEFAULT_BATCH_SIZE_STEP}.
+         */
+        public Builder withBatchSizeStep(final int batchSizeStep) {
+            this.batchSizeStep = batchSizeStep;
+            return this;
+        }
+
+        /**
+         * The largest number of batches in flight to grow to. Defaults to 1. The max concurrent batches of the pusher remain the upper bound, so set them at least as high.
+         */
+        public Builder withMaxConcurrentBatches(final int maxConcurrentBatches) {
+            this.maxConcurrentBatches = maxConcurrentBatches;
+            return this;
+        }
+
+        /**
+         * The response time above which a batch is degraded. Defaults to {@value #DEFAULT_LATENCY_THRESHOLD_MILLIS} milliseconds.
+         */
+        public Builder withLatencyThreshold(final long latencyThreshold, final TimeUnit unit) {
+            this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+            return this;
+        }
+
+        /**
+         * The fraction of tokens of a batch that may fail with {@code Unavailable} or {@code InternalServerError} before the batch is degraded. Defaults to {@value
+         * #DEFAULT_ERROR_RATE_THRESHOLD}.
+         */
+        public Builder withErrorRateThreshold(final double errorRateThreshold) {
+            this.errorRateThreshold = errorRateThreshold;
+            return this;
+        }
+
+        public AdaptiveBatchSizer build() {
+            Preconditions.checkState(minBatchSize > 0, "The min batch size should be positive");
+            Preconditions.checkState(maxBatchSize >= minBatchSize && maxBatchSize <= GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE,
+                    "The max batch size should be between the min batch size and " + GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE);
+            Preconditions.checkState(batchSizeStep > 0, "The batch size step should be positive");
+            Preconditions.checkState(maxConcurrentBatches > 0, "The number of concurrent batches should be positive");
+            Preconditions.checkState(latencyThresholdNanos > 0, "The latency threshold should be positive");
+            Preconditions.checkState(errorRateThreshold >= 0 && errorRateThreshold <= 1, "The error rate threshold should be between 0 and 1");
+            return new AdaptiveBatchSizer(this);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package be.appfoundry.promtius.google;
+
+import be.appfoundry.custom.google.android.gcm.server.Message;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A {@link GoogleSenderWrapper} that can also send without blocking the calling thread, waiting out the back-off between retries on a scheduler instead.
+ *
+ * @author Mike Seghers
+ */
+public interface AsyncGoogleSenderWrapper extends GoogleSenderWrapper {
+    /**
+     * Sends the message like {@link #send(Message, List, int)}, running the attempts on the given scheduler. The future fails with the {@link java.io.IOException} the
+     * blocking send would throw.
+     */
+    ListenableFuture<MulticastResult> sendAsync(Message message, List<String> deviceRegistrationIds, int numberOfRetries, ScheduledExecutorService scheduler);
+}
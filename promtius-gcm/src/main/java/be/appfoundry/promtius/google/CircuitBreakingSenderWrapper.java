@@ -0,0 +1,86 @@
+package be.appfoundry.promtius.google;
+
+import be.appfoundry.custom.google.android.gcm.server.Message;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.promtius.CircuitBreaker;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Decorates a {@link GoogleSenderWrapper} with a {@link CircuitBreaker}, so batches fail right away with a {@link be.appfoundry.promtius.exception.CircuitOpenException}
+ * while GCM is down, instead of going through all retries of the sender.
+ * <p/>
+ * A batch fails when the sender throws, or when every one of its tokens failed with {@code Unavailable} or {@code InternalServerError}. Sending asynchronously needs a
+ * delegate that is an {@link AsyncGoogleSenderWrapper}, the outcome is then recorded once the returned future completes.
+ *
+ * @author Mike Seghers
+ */
+public class CircuitBreakingSenderWrapper implements AsyncGoogleSenderWrapper {
+    private final GoogleSenderWrapper delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    public CircuitBreakingSenderWrapper(final GoogleSenderWrapper delegate, final CircuitBreaker circuitBreaker) {
+        this.delegate = Preconditions.checkNotNull(delegate, "A sender wrapper is needed");
+        this.circuitBreaker = Preconditions.checkNotNull(circuitBreaker, "A circuit breaker is needed");
+    }
+
+    @Override
+    public MulticastResult send(final Message message, final List<String> deviceRegistrationIds, final int numberOfRetries) throws IOException {
+        long permission = circuitBreaker.acquirePermission();
+        boolean succeeded = false;
+        try {
+            MulticastResult result = delegate.send(message, deviceRegistrationIds, numberOfRetries);
+            succeeded = isSuccess(deviceRegistrationIds, result);
+            return result;
+        } finally {
+            record(permission, succeeded);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException when the delegate can't send asynchronously.
+     */
+    @Override
+    public ListenableFuture<MulticastResult> sendAsync(final Message message, final List<String> deviceRegistrationIds, final int numberOfRetries,
+                                                       final ScheduledExecutorService scheduler) {
+        Preconditions.checkState(delegate instanceof AsyncGoogleSenderWrapper, "The decorated sender wrapper can't send asynchronously");
+        final long permission = circuitBreaker.acquirePermission();
+        ListenableFuture<MulticastResult> result;
+        try {
+            result = ((AsyncGoogleSenderWrapper) delegate).sendAsync(message, deviceRegistrationIds, numberOfRetries, scheduler);
+        } catch (RuntimeException e) {
+            circuitBreaker.recordFailure(permission);
+            throw e;
+        }
+        Futures.addCallback(result, new FutureCallback<MulticastResult>() {
+            @Override
+            public void onSuccess(final MulticastResult multicastResult) {
+                record(permission, isSuccess(deviceRegistrationIds, multicastResult));
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                circuitBreaker.recordFailure(permission);
+            }
+        });
+        return result;
+    }
+
+    private static boolean isSuccess(final List<String> deviceRegistrationIds, final MulticastResult result) {
+        return deviceRegistrationIds.isEmpty() || result == null || result.getUnavailable() < deviceRegistrationIds.size();
+    }
+
+    private void record(final long permission, final boolean succeeded) {
+        if (succeeded) {
+            circuitBreaker.recordSuccess(permission);
+        } else {
+            circuitBreaker.recordFailure(permission);
+        }
+    }
+}
@@ -6,25 +6,61 @@ import be.appfoundry.custom.google.android.gcm.server.Message.Priority;
 import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
 import be.appfoundry.custom.google.android.gcm.server.Result;
 import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenBatcher;
 import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenFeedback;
 import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.ClientTokenServices;
+import be.appfoundry.promtius.DirectClientTokenFeedback;
 import be.appfoundry.promtius.PushPayload;
 import be.appfoundry.promtius.PushPayload.PushPriority;
+import be.appfoundry.promtius.PushRateLimiter;
 import be.appfoundry.promtius.Pusher;
+import be.appfoundry.promtius.exception.CircuitOpenException;
 import be.appfoundry.promtius.exception.PushFailedException;
-import com.google.common.collect.ImmutableList;
+import be.appfoundry.promtius.journal.JournaledPush;
+import be.appfoundry.promtius.journal.NoOpPushJournal;
+import be.appfoundry.promtius.journal.PushJournal;
+import be.appfoundry.promtius.metrics.NoOpPushMetrics;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * A {@link Pusher} capable of sending payload via Google Cloud Messaging. Tokens are sent in multicast batches of at most {@link #MAX_MULTICAST_SIZE} tokens.
+ * <p/>
+ * By default batches are sent one after another on the pushing thread. Use the {@link Builder} to send several batches concurrently on a given executor. The number of batches
+ * in flight is bounded, reading further tokens blocks until a batch finishes. When sending concurrently, the {@link ClientTokenService} and {@link ClientTokenFactory} are called
+ * from the executor's threads, and should therefore be thread safe.
+ * <p/>
+ * With a retry scheduler and an {@link AsyncGoogleSenderWrapper}, batches that are backing off between retries wait on the scheduler rather than on a thread.
+ * <p/>
+ * Pass an {@link AdaptiveBatchSizer} to shrink the batches and the number of batches in flight while GCM is slow or unavailable, and grow them back once it recovers.
+ *
  * @param <CT> The type of ClientTokens this pusher is using
  * @param <P> The platform identifier type, identifying the platform to which the pusher pushes its messages.
  * @param <G> The type of the group identifier. A group identifier is used to put client tokens in a collection of groups, so that a push can be done to specific groups.
@@ -34,36 +70,103 @@ public final class GoogleCloudMessagingPusher<CT extends ClientToken<String, P>,
     private static final Logger LOGGER = LoggerFactory.getLogger(GoogleCloudMessagingPusher.class);
 
     public static final int MAX_MULTICAST_SIZE = 1000;
+    private static final int RETRIES = 5;
     private final GoogleSenderWrapper senderWrapper;
     private final ClientTokenService<CT, String, P, G> clientTokenService;
     private final P platform;
     private final ClientTokenFactory<CT, String, P> clientTokenFactory;
+    private final Executor batchExecutor;
+    private final int maxConcurrentBatches;
+    private final PushMetrics metrics;
+    private final String platformTag;
+    private final PushJournal journal;
+    private final String journalId;
+    private final ClientTokenFeedback<CT, String> feedback;
+    private final PushRateLimiter rateLimiter;
+    private final AdaptiveBatchSizer batchSizer;
+    private final ScheduledExecutorService retryScheduler;
 
     public GoogleCloudMessagingPusher(final GoogleSenderWrapper senderWrapper, final ClientTokenService<CT, String, P, G> infoService,
                                       final ClientTokenFactory<CT, String, P> clientTokenFactory, final P platform) {
-        this.senderWrapper = senderWrapper;
-        this.clientTokenService = infoService;
-        this.clientTokenFactory = clientTokenFactory;
-        this.platform = platform;
+        this(new Builder<CT, P, G>(senderWrapper, infoService, clientTokenFactory, platform));
+    }
+
+    private GoogleCloudMessagingPusher(final Builder<CT, P, G> builder) {
+        this.senderWrapper = builder.senderWrapper;
+        this.clientTokenService = builder.clientTokenService;
+        this.clientTokenFactory = builder.clientTokenFactory;
+        this.platform = builder.platform;
+        this.batchExecutor = builder.batchExecutor;
+        this.maxConcurrentBatches = builder.maxConcurrentBatches;
+        this.metrics = builder.metrics;
+        this.platformTag = String.valueOf(builder.platform);
+        this.journal = builder.journal;
+        this.journalId = builder.journalId != null ? builder.journalId : platformTag;
+        this.feedback = builder.feedback != null ? builder.feedback : new DirectClientTokenFeedback<>(builder.clientTokenService);
+        this.rateLimiter = builder.rateLimiter;
+        this.batchSizer = builder.batchSizer;
+        this.retryScheduler = builder.retryScheduler;
     }
 
     @Override
     public void sendPush(final PushPayload payload) {
         LOGGER.info("Sending payload ({}) to GCM", payload);
-        List<CT> tokens = clientTokenService.findClientTokensForOperatingSystem(platform);
-        pushPayloadToClientsIdentifiedByTokens(payload, tokens);
+        push(payload, null, journal.pushStarted(journalId, payload, null), Collections.<Integer>emptySet());
         LOGGER.info("GCM push finished", payload);
     }
 
     @Override
     public void sendPush(final PushPayload payload, final Collection<G> groups) {
         LOGGER.info("Sending payload ({}) to groups {}", payload, groups);
-        List<CT> tokens = clientTokenService.findClientTokensForOperatingSystem(platform, groups);
-        pushPayloadToClientsIdentifiedByTokens(payload, tokens);
+        push(payload, groups, journal.pushStarted(journalId, payload, groups), Collections.<Integer>emptySet());
         LOGGER.info("GCM group push finished", payload);
     }
 
-    private void pushPayloadToClientsIdentifiedByTokens(final PushPayload payload, final List<CT> tokens) {
+    /**
+     * Resumes the pushes of this pusher that were started, but never finished according to the journal, e.g. because the JVM died while sending them. Batches that were
+     * acknowledged before are not sent again. A push failing again is logged and left unfinished, and the next one is resumed. Call this once at start-up, before new pushes are sent.
+     */
+    @SuppressWarnings("unchecked")
+    public void resumeUnfinishedPushes() {
+        for (JournaledPush journaledPush : journal.getUnfinishedPushes(journalId)) {
+            LOGGER.info("Resuming push {}, skipping {} acknowledged batches", journaledPush.getId(), journaledPush.getCompletedBatches().size());
+            Collection<G> groups = (Collection<G>) journaledPush.getGroups().orNull();
+            try {
+                push(journaledPush.getPayload(), groups, journaledPush.getId(), journaledPush.getCompletedBatches());
+            } catch (RuntimeException e) {
+                LOGGER.error("Resuming push " + journaledPush.getId() + " failed, resuming the next one", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the payload to all tokens, or only those in the given groups if not {@literal null}, skipping the batches that were completed before. The push is only finished
+     * in the journal once every batch was sent, a failed push stays unfinished so its remaining batches can be resumed.
+     */
+    private void push(final PushPayload payload, final Collection<G> groups, final String pushId, final Set<Integer> completedBatches) {
+        MessageBatcher batcher = new MessageBatcher(buildMessage(payload), pushId, completedBatches);
+        try {
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            if (groups == null) {
+                ClientTokenServices.visitClientTokensForOperatingSystem(clientTokenService, platform, batcher);
+            } else {
+                ClientTokenServices.visitClientTokensForOperatingSystem(clientTokenService, platform, groups, batcher);
+            }
+            batcher.flush();
+            recordTokenLookup(stopwatch, batcher);
+        } finally {
+            batcher.awaitBatchesInFlight();
+        }
+        batcher.throwIfAnyBatchFailed();
+        journal.pushFinished(pushId);
+    }
+
+    private void recordTokenLookup(final Stopwatch stopwatch, final MessageBatcher batcher) {
+        long lookupNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS) - batcher.getBatchProcessingNanos();
+        metrics.recordTime(PushMetricNames.TOKEN_LOOKUP, lookupNanos, TimeUnit.NANOSECONDS, PushMetricNames.TAG_PLATFORM, platformTag);
+    }
+
+    private Message buildMessage(final PushPayload payload) {
         final Priority gcmPriority = (payload.getPushPriority().equals(PushPriority.NORMAL)) ? Priority.NORMAL : Priority.HIGH;
         Message.Builder builder = new Message.Builder().addData("message", payload.getMessage()).addData("sound", payload.getSound()).collapseKey(payload.getDiscriminator()).priority(gcmPriority);
         if (payload.getCustomFields().isPresent()) {
@@ -75,35 +178,101 @@ public final class GoogleCloudMessagingPusher<CT extends ClientToken<String, P>,
             builder.timeToLive(ttl * 60);
 
         }
-        Message message = builder.build();
+        return builder.build();
+    }
 
+    private void sendMessageBatch(final List<String> partialDeviceIds, final Message message) {
+        long start = startBatch(partialDeviceIds);
+        try {
+            batchSent(partialDeviceIds, start, senderWrapper.send(message, partialDeviceIds, RETRIES));
+        } catch (IOException e) {
+            throw batchFailed(partialDeviceIds, message, e);
+        } catch (CircuitOpenException e) {
+            throw batchFailed(partialDeviceIds, message, e);
+        } finally {
+            rateLimiter.release();
+        }
+    }
 
-        List<String> partialDeviceIds = new ArrayList<>();
-        int counter = 0;
-        for (ClientToken<String, P> token : tokens) {
-            partialDeviceIds.add(token.getToken());
-            counter++;
-            if (counter == MAX_MULTICAST_SIZE) {
-                counter = 0;
-                sendMessageBatch(ImmutableList.copyOf(partialDeviceIds), message);
-                partialDeviceIds.clear();
-            }
+    /**
+     * Sends the batch without blocking the calling thread, the sender waits out the back-off between retries on the retry scheduler. The returned future completes once the
+     * result of the batch has been processed.
+     */
+    private ListenableFuture<Void> sendMessageBatchAsync(final List<String> partialDeviceIds, final Message message) {
+        final long start = startBatch(partialDeviceIds);
+        final SettableFuture<Void> processed = SettableFuture.create();
+        ListenableFuture<MulticastResult> sent;
+        try {
+            sent = ((AsyncGoogleSenderWrapper) senderWrapper).sendAsync(message, partialDeviceIds, RETRIES, retryScheduler);
+        } catch (RuntimeException e) {
+            rateLimiter.release();
+            throw batchFailed(partialDeviceIds, message, e);
         }
+        Futures.addCallback(sent, new FutureCallback<MulticastResult>() {
+            @Override
+            public void onSuccess(final MulticastResult result) {
+                try {
+                    batchSent(partialDeviceIds, start, result);
+                    processed.set(null);
+                } catch (RuntimeException e) {
+                    processed.setException(e);
+                } finally {
+                    rateLimiter.release();
+                }
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                try {
+                    processed.setException(batchFailed(partialDeviceIds, message, t));
+                } finally {
+                    rateLimiter.release();
+                }
+            }
+        });
+        return processed;
+    }
+
+    private long startBatch(final List<String> partialDeviceIds) {
+        metrics.recordValue(PushMetricNames.BATCH_SIZE, partialDeviceIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+        metrics.increment(PushMetricNames.TOKENS_ATTEMPTED, partialDeviceIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+        rateLimiter.acquire(partialDeviceIds.size());
+        return System.nanoTime();
+    }
 
-        if (!partialDeviceIds.isEmpty()) {
-            sendMessageBatch(partialDeviceIds, message);
+    private void batchSent(final List<String> partialDeviceIds, final long start, final MulticastResult result) {
+        if (batchSizer != null) {
+            batchSizer.recordBatch(partialDeviceIds.size(), System.nanoTime() - start, result);
+        }
+        recordResult(result);
+        if (resultNeedsProcessing(result)) {
+            processMulticastResult(partialDeviceIds, result);
         }
     }
 
-    private void sendMessageBatch(final List<String> partialDeviceIds, final Message message) {
-        try {
-            MulticastResult result = senderWrapper.send(message, partialDeviceIds, 5);
-            if (resultNeedsProcessing(result)) {
-                processMulticastResult(partialDeviceIds, result);
-            }
+    /**
+     * Reports the whole batch as failed. An open circuit or another runtime exception is passed on as is, any other failure of the sender is wrapped in a
+     * {@link PushFailedException}.
+     */
+    private RuntimeException batchFailed(final List<String> partialDeviceIds, final Message message, final Throwable t) {
+        metrics.increment(PushMetricNames.TOKENS_FAILED, partialDeviceIds.size(), PushMetricNames.TAG_PLATFORM, platformTag);
+        if (t instanceof CircuitOpenException) {
+            return (CircuitOpenException) t;
+        }
+        if (batchSizer != null) {
+            batchSizer.recordFailedBatch(partialDeviceIds.size());
+        }
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        return new PushFailedException("sender threw exception for message " + message, t);
+    }
 
-        } catch (IOException e) {
-            throw new PushFailedException("sender threw exception for message " + message, e);
+    private void recordResult(final MulticastResult result) {
+        if (result != null) {
+            metrics.increment(PushMetricNames.TOKENS_SUCCEEDED, result.getSuccess(), PushMetricNames.TAG_PLATFORM, platformTag);
+            metrics.increment(PushMetricNames.TOKENS_FAILED, result.getFailure(), PushMetricNames.TAG_PLATFORM, platformTag);
+            metrics.increment(PushMetricNames.TOKENS_CANONICALISED, result.getCanonicalIds(), PushMetricNames.TAG_PLATFORM, platformTag);
         }
     }
 
@@ -111,41 +280,308 @@ public final class GoogleCloudMessagingPusher<CT extends ClientToken<String, P>,
         return result != null && (result.getCanonicalIds() > 0 || result.getFailure() > 0);
     }
 
+    /**
+     * Collects the unregistered and changed tokens of the batch, and reports them to the feedback at once.
+     */
     private void processMulticastResult(final List<String> partialDeviceIds, final MulticastResult multicastResult) {
-        List<Result> results = multicastResult.getResults();
-        for (int i = 0; i < partialDeviceIds.size(); i++) {
-            String regId = partialDeviceIds.get(i);
-            Result result = results.get(i);
+        List<CT> unregisteredTokens = new ArrayList<>();
+        Map<CT, String> changedTokens = new LinkedHashMap<>();
+        // plain successes need no processing, so only the exceptional results are visited
+        for (Map.Entry<Integer, Result> entry : multicastResult.getExceptionalResults().entrySet()) {
+            String regId = partialDeviceIds.get(entry.getKey());
+            Result result = entry.getValue();
             if (result.getMessageId() != null) {
-                checkShouldReplaceDeviceId(regId, result);
+                checkShouldReplaceDeviceId(regId, result, changedTokens);
             } else {
-                checkError(regId, result);
+                checkError(regId, result, unregisteredTokens);
             }
         }
+        feedback.unregisterClientTokens(unregisteredTokens);
+        feedback.changeClientTokens(changedTokens);
     }
 
-    private void checkError(final String regId, final Result result) {
+    private void checkError(final String regId, final Result result, final List<CT> unregisteredTokens) {
         String err = result.getErrorCodeName();
         if (Constants.ERROR_NOT_REGISTERED.equals(err)) {
-            clientTokenService.unregisterClientToken(clientTokenFactory.createClientToken(regId, platform));
+            unregisteredTokens.add(clientTokenFactory.createClientToken(regId, platform));
         }
     }
 
-    private void checkShouldReplaceDeviceId(final String existingId, final Result result) {
+    private void checkShouldReplaceDeviceId(final String existingId, final Result result, final Map<CT, String> changedTokens) {
         String canId = result.getCanonicalRegistrationId();
         if (canId != null) {
-            replaceDeviceId(existingId, canId);
+            changedTokens.put(clientTokenFactory.createClientToken(existingId, platform), canId);
         }
     }
 
-    private void replaceDeviceId(final String oldId, final String newId) {
-        CT clientToken = clientTokenFactory.createClientToken(oldId, platform);
-        clientTokenService.changeClientToken(clientToken, newId);
-    }
-
 
     @Override
     public Set<P> getPlatforms() {
         return ImmutableSet.of(platform);
     }
+
+    /**
+     * Sends the message to each batch of at most {@link #MAX_MULTICAST_SIZE} tokens as soon as the batch is full. Batches are handed to the batch executor, with at most
+     * maxConcurrentBatches of them in flight at once. The first failing batch stops the push. Every batch that was sent is recorded in the journal, and batches that were
+     * completed before are skipped. With an adaptive batch sizer, the batch size and the number of batches in flight are taken from the sizer before every batch.
+     */
+    private final class MessageBatcher extends ClientTokenBatcher<CT, String> {
+        private final Message message;
+        private final String pushId;
+        private final Set<Integer> completedBatches;
+        private int window = currentWindow();
+        private final BatchWindow batchesInFlight = new BatchWindow(window);
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private int nextBatchIndex;
+
+        private MessageBatcher(final Message message, final String pushId, final Set<Integer> completedBatches) {
+            super(MAX_MULTICAST_SIZE);
+            this.message = message;
+            this.pushId = pushId;
+            this.completedBatches = completedBatches;
+        }
+
+        @Override
+        protected void processBatch(final List<String> batch) {
+            final int batchIndex = nextBatchIndex++;
+            if (completedBatches.contains(batchIndex)) {
+                return;
+            }
+            throwIfAnyBatchFailed();
+            resizeWindow();
+            acquireBatchPermit();
+            try {
+                batchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (retryScheduler != null) {
+                            sendBatchAsync(batch, batchIndex);
+                            return;
+                        }
+                        try {
+                            sendMessageBatch(batch, message);
+                            journal.batchCompleted(pushId, batchIndex);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            batchesInFlight.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                batchesInFlight.release();
+                throw new PushFailedException("batch executor rejected batch for message " + message, e);
+            }
+            throwIfAnyBatchFailed();
+        }
+
+        /**
+         * Sends the batch on the retry scheduler, keeping its permit until the batch is processed, but not the thread.
+         */
+        private void sendBatchAsync(final List<String> batch, final int batchIndex) {
+            ListenableFuture<Void> processed;
+            try {
+                processed = sendMessageBatchAsync(batch, message);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+                batchesInFlight.release();
+                return;
+            }
+            Futures.addCallback(processed, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(final Void result) {
+                    try {
+                        journal.batchCompleted(pushId, batchIndex);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        batchesInFlight.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    failure.compareAndSet(null, t instanceof RuntimeException ? (RuntimeException) t : new PushFailedException(t));
+                    batchesInFlight.release();
+                }
+            });
+        }
+
+        @Override
+        protected int getBatchSize() {
+            return batchSizer != null ? batchSizer.getBatchSize() : super.getBatchSize();
+        }
+
+        private int currentWindow() {
+            return batchSizer != null ? Math.min(maxConcurrentBatches, batchSizer.getConcurrentBatches()) : maxConcurrentBatches;
+        }
+
+        /**
+         * Adds or removes permits so the number of batches in flight follows the sizer. Removed permits are taken back as batches in flight finish.
+         */
+        private void resizeWindow() {
+            int target = currentWindow();
+            if (target > window) {
+                batchesInFlight.release(target - window);
+            } else if (target < window) {
+                batchesInFlight.shrink(window - target);
+            }
+            window = target;
+        }
+
+        private void acquireBatchPermit() {
+            try {
+                batchesInFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PushFailedException("interrupted while waiting to send batch for message " + message, e);
+            }
+        }
+
+        private void awaitBatchesInFlight() {
+            batchesInFlight.acquireUninterruptibly(window);
+            batchesInFlight.release(window);
+        }
+
+        private void throwIfAnyBatchFailed() {
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A semaphore whose number of permits can be reduced while they are taken.
+     */
+    private static final class BatchWindow extends Semaphore {
+        private BatchWindow(final int permits) {
+            super(permits);
+        }
+
+        private void shrink(final int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    /**
+     * Builds a {@link GoogleCloudMessagingPusher}. By default batches are sent one by one on the pushing thread.
+     *
+     * @param <CT> The type of ClientTokens the pusher is using
+     * @param <P> The platform identifier type.
+     * @param <G> The type of the group identifier.
+     */
+    public static final class Builder<CT extends ClientToken<String, P>, P, G> {
+        private final GoogleSenderWrapper senderWrapper;
+        private final ClientTokenService<CT, String, P, G> clientTokenService;
+        private final ClientTokenFactory<CT, String, P> clientTokenFactory;
+        private final P platform;
+        private Executor batchExecutor = MoreExecutors.sameThreadExecutor();
+        private int maxConcurrentBatches = 1;
+        private PushMetrics metrics = NoOpPushMetrics.INSTANCE;
+        private PushJournal journal = NoOpPushJournal.INSTANCE;
+        private String journalId;
+        private ClientTokenFeedback<CT, String> feedback;
+        private PushRateLimiter rateLimiter = PushRateLimiter.UNLIMITED;
+        private AdaptiveBatchSizer batchSizer;
+        private ScheduledExecutorService retryScheduler;
+
+        public Builder(final GoogleSenderWrapper senderWrapper, final ClientTokenService<CT, String, P, G> clientTokenService,
+                       final ClientTokenFactory<CT, String, P> clientTokenFactory, final P platform) {
+            this.senderWrapper = senderWrapper;
+            this.clientTokenService = clientTokenService;
+            this.clientTokenFactory = clientTokenFactory;
+            this.platform = platform;
+        }
+
+        /**
+         * The executor on which batches are sent. Its lifecycle is managed by the caller. Only needed when more than one batch may be in flight.
+         */
+        public Builder<CT, P, G> withBatchExecutor(final Executor batchExecutor) {
+            this.batchExecutor = batchExecutor;
+            return this;
+        }
+
+        /**
+         * The maximum number of batches of a single push that are being sent at the same time. Defaults to 1.
+         */
+        public Builder<CT, P, G> withMaxConcurrentBatches(final int maxConcurrentBatches) {
+            this.maxConcurrentBatches = maxConcurrentBatches;
+            return this;
+        }
+
+        /**
+         * The metrics to which tokens, batches and token lookups are reported. Defaults to {@link NoOpPushMetrics}.
+         */
+        public Builder<CT, P, G> withMetrics(final PushMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * The journal recording which batches of a push were sent, so {@link GoogleCloudMessagingPusher#resumeUnfinishedPushes()} can resume pushes interrupted by a crash.
+         * The pusher is identified in the journal by its journal id. Defaults to {@link NoOpPushJournal}.
+         */
+        public Builder<CT, P, G> withJournal(final PushJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+
+        /**
+         * Identifies the pusher in the journal, so it only resumes its own pushes. Give every pusher sharing a journal its own id, such as the name of the app it pushes to. Defaults
+         * to the platform.
+         */
+        public Builder<CT, P, G> withJournalId(final String journalId) {
+            this.journalId = journalId;
+            return this;
+        }
+
+        /**
+         * The feedback to which the tokens reported as not registered or changed by GCM are passed, once per batch. Defaults to a {@link DirectClientTokenFeedback} updating
+         * the client token service on the sending thread. Use an {@link be.appfoundry.promtius.AsyncClientTokenFeedback} to keep the updates off the send path.
+         */
+        public Builder<CT, P, G> withFeedback(final ClientTokenFeedback<CT, String> feedback) {
+            this.feedback = feedback;
+            return this;
+        }
+
+        /**
+         * The rate limiter every batch waits for before it is sent, with its number of tokens as the number of messages. Share it with every pusher using the same API key,
+         * as GCM throttles per key. Retries done by the {@link GoogleSenderWrapper} are not limited. Defaults to {@link PushRateLimiter#UNLIMITED}.
+         */
+        public Builder<CT, P, G> withRateLimiter(final PushRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * The sizer adapting the batch size and the number of batches in flight to the latency and errors of GCM. The max concurrent batches of this builder remain the upper
+         * bound. Batches of varying size can't be resumed, so this can't be combined with a journal. Defaults to batches of {@link #MAX_MULTICAST_SIZE} tokens.
+         */
+        public Builder<CT, P, G> withAdaptiveBatchSizer(final AdaptiveBatchSizer batchSizer) {
+            this.batchSizer = batchSizer;
+            return this;
+        }
+
+        /**
+         * The scheduler on which batches are sent asynchronously. The back-off between retries is then handed to the scheduler, so a batch that is backing off doesn't hold a
+         * thread of the batch executor, only its place in the window of batches in flight. Its lifecycle is managed by the caller. Needs an {@link AsyncGoogleSenderWrapper}.
+         * Defaults to sending batches on the batch executor, blocking while retrying.
+         */
+        public Builder<CT, P, G> withRetryScheduler(final ScheduledExecutorService retryScheduler) {
+            this.retryScheduler = retryScheduler;
+            return this;
+        }
+
+        public GoogleCloudMessagingPusher<CT, P, G> build() {
+            Preconditions.checkState(maxConcurrentBatches > 0, "The number of concurrent batches should be positive");
+            Preconditions.checkState(batchExecutor != null, "A batch executor is needed");
+            Preconditions.checkState(metrics != null, "Metrics are needed, use NoOpPushMetrics to report nothing");
+            Preconditions.checkState(journal != null, "A journal is needed, use NoOpPushJournal to journal nothing");
+            Preconditions.checkState(rateLimiter != null, "A rate limiter is needed, use PushRateLimiter.UNLIMITED to not limit the rate");
+            Preconditions.checkState(batchSizer == null || journal == NoOpPushJournal.INSTANCE, "Pushes with adaptive batch sizes can't be journaled");
+            Preconditions.checkState(retryScheduler == null || senderWrapper instanceof AsyncGoogleSenderWrapper, "Sending on a retry scheduler needs an AsyncGoogleSenderWrapper");
+            return new GoogleCloudMessagingPusher<>(this);
+        }
+    }
 }
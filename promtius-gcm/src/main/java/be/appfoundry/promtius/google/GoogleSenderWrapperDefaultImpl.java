@@ -3,16 +3,18 @@ package be.appfoundry.promtius.google;
 import be.appfoundry.custom.google.android.gcm.server.Message;
 import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
 import be.appfoundry.custom.google.android.gcm.server.Sender;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * @author Mike Seghers
  */
-public class GoogleSenderWrapperDefaultImpl implements GoogleSenderWrapper {
+public class GoogleSenderWrapperDefaultImpl implements AsyncGoogleSenderWrapper {
     private static final Logger LOGGER = LoggerFactory.getLogger(GoogleSenderWrapperDefaultImpl.class);
 
     private Sender sender;
@@ -26,4 +28,10 @@ public class GoogleSenderWrapperDefaultImpl implements GoogleSenderWrapper {
         LOGGER.debug("sending message to {} ids, retrying {} times", deviceRegistrationIds.size(), numberOfRetries);
         return sender.send(message, deviceRegistrationIds, numberOfRetries);
     }
+
+    @Override
+    public ListenableFuture<MulticastResult> sendAsync(Message message, List<String> deviceRegistrationIds, int numberOfRetries, ScheduledExecutorService scheduler) {
+        LOGGER.debug("sending message asynchronously to {} ids, retrying {} times", deviceRegistrationIds.size(), numberOfRetries);
+        return sender.sendAsync(message, deviceRegistrationIds, numberOfRetries, scheduler);
+    }
 }
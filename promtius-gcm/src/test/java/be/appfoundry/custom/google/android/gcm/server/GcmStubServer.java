@@ -0,0 +1,335 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP server mimicking the GCM send endpoint, so a {@link Sender} can be exercised over real sockets.
+ * <p/>
+ * Every request is answered after the configured latency. Multicast requests get one result per registration id, drawn from the
+ * configured error mix, and requests can be refused as a whole with a 5xx or 429 status. The outcome is random, but repeatable for a
+ * given seed.
+ *
+ * @author Mike Seghers
+ */
+public final class GcmStubServer implements Closeable {
+    public static final String SEND_PATH = "/gcm/send";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Builder builder;
+    private final Random random;
+    private final Queue<Integer> scriptedStatuses;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong registrationIds = new AtomicLong();
+    private final AtomicLong refusedRequests = new AtomicLong();
+    private final AtomicLong errorResults = new AtomicLong();
+    private final AtomicLong canonicalIdResults = new AtomicLong();
+    private final AtomicLong messageIds = new AtomicLong();
+
+    private GcmStubServer(final Builder builder) throws IOException {
+        this.builder = builder;
+        random = new Random(builder.seed);
+        scriptedStatuses = new ConcurrentLinkedQueue<>(builder.scriptedStatuses);
+        executor = Executors.newFixedThreadPool(builder.threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gcm-stub-%d").build());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(SEND_PATH, new SendHandler());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Gets the URL of the send endpoint, to pass to {@link Sender#Sender(String, HttpTransport, String)}.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + SEND_PATH;
+    }
+
+    /**
+     * Gets the number of requests received, including the refused ones.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of registration ids received over all accepted requests.
+     */
+    public long getRegistrationIds() {
+        return registrationIds.get();
+    }
+
+    /**
+     * Gets the number of requests refused with a non-200 status.
+     */
+    public long getRefusedRequests() {
+        return refusedRequests.get();
+    }
+
+    /**
+     * Gets the number of results reporting an error.
+     */
+    public long getErrorResults() {
+        return errorResults.get();
+    }
+
+    /**
+     * Gets the number of results reporting a canonical registration id.
+     */
+    public long getCanonicalIdResults() {
+        return canonicalIdResults.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private int nextStatus() {
+        Integer scripted = scriptedStatuses.poll();
+        if (scripted != null) {
+            return scripted;
+        }
+        double draw = nextDouble();
+        if (draw < builder.unavailableStatusRatio) {
+            return 503;
+        }
+        if (draw < builder.unavailableStatusRatio + builder.tooManyRequestsStatusRatio) {
+            return 429;
+        }
+        return 200;
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * Appends a random result.
+     *
+     * @return whether the result reports an error.
+     */
+    private boolean appendResult(final StringBuilder json) {
+        double draw = nextDouble();
+        double threshold = builder.unavailableRatio;
+        if (draw < threshold) {
+            return appendError(json, Constants.ERROR_UNAVAILABLE);
+        }
+        threshold += builder.internalServerErrorRatio;
+        if (draw < threshold) {
+            return appendError(json, Constants.ERROR_INTERNAL_SERVER_ERROR);
+        }
+        threshold += builder.notRegisteredRatio;
+        if (draw < threshold) {
+            return appendError(json, Constants.ERROR_NOT_REGISTERED);
+        }
+        long messageId = messageIds.incrementAndGet();
+        json.append("{\"message_id\":\"0:").append(messageId).append("%stub\"");
+        if (draw < threshold + builder.canonicalIdRatio) {
+            canonicalIdResults.incrementAndGet();
+            json.append(",\"registration_id\":\"canonical-").append(messageId).append('"');
+        }
+        json.append('}');
+        return false;
+    }
+
+    private boolean appendError(final StringBuilder json, final String error) {
+        errorResults.incrementAndGet();
+        json.append("{\"error\":\"").append(error).append("\"}");
+        return true;
+    }
+
+    private final class SendHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                JSONObject request = (JSONObject) JSONValue.parse(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+                sleep(builder.latencyMillis);
+                int status = nextStatus();
+                if (status != 200) {
+                    refusedRequests.incrementAndGet();
+                    if (status == 429) {
+                        exchange.getResponseHeaders().add("Retry-After", "1");
+                    }
+                    respond(exchange, status, "");
+                    return;
+                }
+                respond(exchange, 200, buildResponse(request));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private String buildResponse(final JSONObject request) {
+            List<?> ids = (List<?>) request.get(Constants.JSON_REGISTRATION_IDS);
+            if (ids == null) {
+                ids = Arrays.asList(request.get(Constants.JSON_TO));
+            }
+            registrationIds.addAndGet(ids.size());
+            StringBuilder results = new StringBuilder(ids.size() * 40);
+            int failure = 0;
+            int canonicalIds = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                if (i > 0) {
+                    results.append(',');
+                }
+                int length = results.length();
+                if (appendResult(results)) {
+                    failure++;
+                } else if (results.indexOf("registration_id", length) >= 0) {
+                    canonicalIds++;
+                }
+            }
+            return "{\"multicast_id\":" + requests.get() + ",\"success\":" + (ids.size() - failure) + ",\"failure\":" + failure
+                    + ",\"canonical_ids\":" + canonicalIds + ",\"results\":[" + results + "]}";
+        }
+
+        private void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        }
+
+        private void sleep(final long millis) {
+            if (millis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public static final class Builder {
+        private long latencyMillis;
+        private double unavailableRatio;
+        private double internalServerErrorRatio;
+        private double notRegisteredRatio;
+        private double canonicalIdRatio;
+        private double unavailableStatusRatio;
+        private double tooManyRequestsStatusRatio;
+        private final List<Integer> scriptedStatuses = new ArrayList<>();
+        private int threads = 8;
+        private long seed = 42;
+
+        /**
+         * Sets how long every request takes to be answered.
+         */
+        public Builder withLatencyMillis(final long value) {
+            latencyMillis = value;
+            return this;
+        }
+
+        /**
+         * Sets the ratio of results answered with {@code Unavailable}.
+         */
+        public Builder withUnavailableRatio(final double value) {
+            unavailableRatio = value;
+            return this;
+        }
+
+        /**
+         * Sets the ratio of results answered with {@code InternalServerError}.
+         */
+        public Builder withInternalServerErrorRatio(final double value) {
+            internalServerErrorRatio = value;
+            return this;
+        }
+
+        /**
+         * Sets the ratio of results answered with {@code NotRegistered}.
+         */
+        public Builder withNotRegisteredRatio(final double value) {
+            notRegisteredRatio = value;
+            return this;
+        }
+
+        /**
+         * Sets the ratio of results answered with a canonical registration id.
+         */
+        public Builder withCanonicalIdRatio(final double value) {
+            canonicalIdRatio = value;
+            return this;
+        }
+
+        /**
+         * Sets the ratio of requests refused with a 503 status.
+         */
+        public Builder withUnavailableStatusRatio(final double value) {
+            unavailableStatusRatio = value;
+            return this;
+        }
+
+        /**
+         * Sets the ratio of requests refused with a 429 status and a {@code Retry-After} header.
+         */
+        public Builder withTooManyRequestsStatusRatio(final double value) {
+            tooManyRequestsStatusRatio = value;
+            return this;
+        }
+
+        /**
+         * Answers the first requests with the given statuses, in order, before falling back to the configured ratios. A status of 200
+         * answers the request normally.
+         */
+        public Builder withScriptedStatuses(final Integer... statuses) {
+            scriptedStatuses.addAll(Arrays.asList(statuses));
+            return this;
+        }
+
+        /**
+         * Sets the number of threads answering requests, which bounds the number of requests being answered at the same time.
+         */
+        public Builder withThreads(final int value) {
+            threads = value;
+            return this;
+        }
+
+        /**
+         * Sets the seed of the random outcome of requests and results.
+         */
+        public Builder withSeed(final long value) {
+            seed = value;
+            return this;
+        }
+
+        public GcmStubServer start() throws IOException {
+            if (unavailableRatio + internalServerErrorRatio + notRegisteredRatio + canonicalIdRatio > 1
+                    || unavailableStatusRatio + tooManyRequestsStatusRatio > 1) {
+                throw new IllegalStateException("The ratios of results, and of refused requests, should not add up to more than 1");
+            }
+            return new GcmStubServer(this);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Mike Seghers
+ */
+public class JsonRequestBodyTest {
+
+    @Test
+    public void testEmptyMessageOnlyWritesRecipient() throws Exception {
+        JsonRequestBody body = JsonRequestBody.to(new Message.Builder().build(), "42");
+        assertEquals("{\"to\":\"42\"}", write(body));
+    }
+
+    @Test
+    public void testNullMessageWritesRecipients() throws Exception {
+        JsonRequestBody body = JsonRequestBody.toRegistrationIds(null, Arrays.asList("4", "8"));
+        assertEquals("{\"registration_ids\":[\"4\",\"8\"]}", write(body));
+    }
+
+    @Test
+    public void testWritesAllMessageFields() throws Exception {
+        Message message = new Message.Builder()
+                .collapseKey("key")
+                .timeToLive(108)
+                .delayWhileIdle(true)
+                .dryRun(false)
+                .restrictedPackageName("be.appfoundry")
+                .priority(Message.Priority.HIGH)
+                .addData("k1", "v\"1é")
+                .notification(new Notification.Builder("icon").badge(3).bodyLocArgs(Arrays.asList("a", "b")).build())
+                .build();
+
+        JSONObject json = (JSONObject) new JSONParser().parse(write(JsonRequestBody.toRegistrationIds(message, Arrays.asList("4", "8"))));
+
+        assertEquals("key", json.get("collapse_key"));
+        assertEquals(108L, json.get("time_to_live"));
+        assertEquals(true, json.get("delay_while_idle"));
+        assertEquals(false, json.get("dry_run"));
+        assertEquals("be.appfoundry", json.get("restricted_package_name"));
+        assertEquals("high", json.get("priority"));
+        assertEquals("v\"1é", ((Map<?, ?>) json.get("data")).get("k1"));
+        Map<?, ?> notification = (Map<?, ?>) json.get("notification");
+        assertEquals("icon", notification.get("icon"));
+        assertEquals("3", notification.get("badge"));
+        assertEquals(Arrays.asList("a", "b"), notification.get("body_loc_args"));
+        assertEquals(Arrays.asList("4", "8"), json.get("registration_ids"));
+        assertFalse(json.containsKey("to"));
+    }
+
+    @Test
+    public void testBodyCanBeWrittenAgain() throws Exception {
+        JsonRequestBody body = JsonRequestBody.to(new Message.Builder().addData("k", "v").build(), "42");
+        assertEquals(write(body), write(body));
+        assertEquals(write(body), body.toString());
+    }
+
+    @Test
+    public void testMessageFieldsAreEncodedOnceAndSplicedIntoEveryBatch() throws Exception {
+        Message message = new Message.Builder().collapseKey("key").build();
+        byte[] encodedFields = message.getEncodedFields();
+
+        assertSame(encodedFields, message.getEncodedFields());
+        assertEquals("{\"collapse_key\":\"key\",\"registration_ids\":[\"4\"]}",
+                write(JsonRequestBody.toRegistrationIds(message, Arrays.asList("4"))));
+        assertEquals("{\"collapse_key\":\"key\",\"registration_ids\":[\"8\",\"15\"]}",
+                write(JsonRequestBody.toRegistrationIds(message, Arrays.asList("8", "15"))));
+        assertSame(encodedFields, message.getEncodedFields());
+    }
+
+    private static String write(final JsonRequestBody body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
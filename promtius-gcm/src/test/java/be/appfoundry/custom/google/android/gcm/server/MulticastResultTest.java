@@ -16,14 +16,18 @@
 package be.appfoundry.custom.google.android.gcm.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 @RunWith(MockitoJUnitRunner.class)
 public class MulticastResultTest {
@@ -90,4 +94,53 @@ public class MulticastResultTest {
     MulticastResult result = new MulticastResult.Builder(1, 2, 3, 4).build();
     result.getRetryMulticastIds().clear();
   }
+  @Test
+  public void testOnlyExceptionalResultsAreKeptAsResults() {
+    Result canonical = new Result.Builder().messageId("42").canonicalRegistrationId("108").build();
+    Result error = new Result.Builder().errorCode("NotRegistered").build();
+    MulticastResult multicastResult = new MulticastResult.Builder(3, 1, 1, 16)
+        .addSuccessResult("23")
+        .addResult(canonical)
+        .addResult(new Result.Builder().messageId("4").build())
+        .addResult(error)
+        .build();
+    Map<Integer, Result> exceptionalResults = multicastResult.getExceptionalResults();
+    assertEquals(Arrays.asList(1, 3), new ArrayList<Integer>(exceptionalResults.keySet()));
+    assertSame(canonical, exceptionalResults.get(1));
+    assertSame(error, exceptionalResults.get(3));
+    List<Result> results = multicastResult.getResults();
+    assertEquals(4, results.size());
+    assertEquals("23", results.get(0).getMessageId());
+    assertNull(results.get(0).getErrorCodeName());
+    assertSame(canonical, results.get(1));
+    assertEquals("4", results.get(2).getMessageId());
+    assertSame(error, results.get(3));
+    assertSame(results, multicastResult.getResults());
+  }
+
+  @Test
+  public void testUnavailableCountsUnavailableAndInternalServerErrors() {
+    MulticastResult multicastResult = new MulticastResult.Builder(1, 3, 0, 16)
+        .addSuccessResult("23")
+        .addResult(new Result.Builder().errorCode(Constants.ERROR_UNAVAILABLE).build())
+        .addResult(new Result.Builder().errorCode(Constants.ERROR_INTERNAL_SERVER_ERROR).build())
+        .addResult(new Result.Builder().errorCode(Constants.ERROR_NOT_REGISTERED).build())
+        .build();
+    assertEquals(2, multicastResult.getUnavailable());
+  }
+
+  @Test
+  public void testRecountSummarizesResults() {
+    MulticastResult multicastResult = new MulticastResult.Builder(0, 0, 0, 16)
+        .addSuccessResult("23")
+        .addResult(new Result.Builder().messageId("42").canonicalRegistrationId("108").build())
+        .addResult(new Result.Builder().errorCode("NotRegistered").build())
+        .build()
+        .recount();
+    assertEquals(2, multicastResult.getSuccess());
+    assertEquals(1, multicastResult.getFailure());
+    assertEquals(1, multicastResult.getCanonicalIds());
+    assertEquals(16, multicastResult.getMulticastId());
+    assertEquals(3, multicastResult.getResults().size());
+  }
 }
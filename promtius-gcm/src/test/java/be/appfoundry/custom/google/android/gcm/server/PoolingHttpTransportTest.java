@@ -0,0 +1,135 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Mike Seghers
+ */
+public class PoolingHttpTransportTest {
+    private HttpServer server;
+    private PoolingHttpTransport transport;
+    private String url;
+    private int responseStatus = 200;
+    private String responseBody = "{\"success\":1}";
+    private final List<String> receivedBodies = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> receivedAuthorizations = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Integer> remotePorts = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/send", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                receivedBodies.add(new String(ByteStreams.toByteArray(exchange.getRequestBody()), "UTF-8"));
+                receivedAuthorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                remotePorts.add(exchange.getRemoteAddress().getPort());
+                byte[] bytes = responseBody.getBytes("UTF-8");
+                exchange.sendResponseHeaders(responseStatus, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/send";
+        transport = new PoolingHttpTransport.Builder().maxConnectionsPerRoute(1).maxConnectionsTotal(1).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testPostSendsHeadersAndBodyAndReturnsResponse() throws Exception {
+        HttpTransport.Response response = transport.post(url, headers(), body("{\"to\":\"1\"}"));
+        try {
+            assertThat(response.getStatus(), is(200));
+            assertThat(read(response.getContent()), is(responseBody));
+        } finally {
+            response.close();
+        }
+        assertThat(receivedBodies, is(Collections.singletonList("{\"to\":\"1\"}")));
+        assertThat(receivedAuthorizations, is(Collections.singletonList("key=secret")));
+    }
+
+    @Test
+    public void testPostReturnsErrorBody() throws Exception {
+        responseStatus = 401;
+        responseBody = "unauthorized";
+        HttpTransport.Response response = transport.post(url, headers(), body("{}"));
+        try {
+            assertThat(response.getStatus(), is(401));
+            assertThat(read(response.getContent()), is("unauthorized"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testConnectionIsReusedForSubsequentRequests() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HttpTransport.Response response = transport.post(url, headers(), body("{}"));
+            response.close();
+        }
+        assertThat(remotePorts.size(), is(3));
+        assertThat(remotePorts.get(1), is(remotePorts.get(0)));
+        assertThat(remotePorts.get(2), is(remotePorts.get(0)));
+    }
+
+    @Test
+    public void testSendNoRetryPostsThroughTransport() throws Exception {
+        responseBody = "{\"multicast_id\":1,\"success\":1,\"failure\":0,\"canonical_ids\":0,\"results\":[{\"message_id\":\"id\"}]}";
+        Sender sender = new Sender("secret", transport, url);
+        Result result = sender.sendNoRetry(new Message.Builder().build(), "42");
+        assertThat(result.getMessageId(), is("id"));
+        assertThat(result.getErrorCodeName(), is(nullValue()));
+        assertThat(receivedAuthorizations, is(Collections.singletonList("key=secret")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuildFailsWhenPerRouteExceedsTotal() throws Exception {
+        new PoolingHttpTransport.Builder().maxConnectionsPerRoute(5).maxConnectionsTotal(2).build();
+    }
+
+    private static Map<String, String> headers() {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Authorization", "key=secret");
+        return headers;
+    }
+
+    private static HttpTransport.RequestBody body(final String body) throws Exception {
+        return new ByteArrayRequestBody(body.getBytes("UTF-8"));
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        try {
+            return new String(ByteStreams.toByteArray(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
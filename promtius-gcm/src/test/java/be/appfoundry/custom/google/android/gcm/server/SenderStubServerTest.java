@@ -0,0 +1,104 @@
+package be.appfoundry.custom.google.android.gcm.server;
+
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.longThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Exercises the {@link Sender} over real sockets, against a {@link GcmStubServer}.
+ *
+ * @author Mike Seghers
+ */
+public class SenderStubServerTest {
+    private GcmStubServer server;
+    private PoolingHttpTransport transport = new PoolingHttpTransport();
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMulticastResultsMatchTheErrorMix() throws Exception {
+        server = new GcmStubServer.Builder().withNotRegisteredRatio(0.1).withCanonicalIdRatio(0.1).start();
+        Sender sender = new Sender("key", transport, server.getUrl());
+
+        MulticastResult result = sender.send(new Message.Builder().addData("k", "v").build(), registrationIds(500), 0);
+
+        assertThat(result.getTotal(), is(500));
+        assertThat((long) result.getFailure(), is(server.getErrorResults()));
+        assertThat((long) result.getCanonicalIds(), is(server.getCanonicalIdResults()));
+        assertThat(result.getExceptionalResults().size(), is(result.getFailure() + result.getCanonicalIds()));
+        assertThat(server.getRegistrationIds(), is(500L));
+    }
+
+    @Test
+    public void testRefusedRequestIsRetried() throws Exception {
+        server = new GcmStubServer.Builder().withScriptedStatuses(503).start();
+        Sender sender = new Sender("key", transport, server.getUrl());
+
+        MulticastResult result = sender.send(new Message.Builder().build(), registrationIds(3), 1);
+
+        assertThat(result.getSuccess(), is(3));
+        assertThat(server.getRequests(), is(2L));
+        assertThat(server.getRefusedRequests(), is(1L));
+    }
+
+    @Test
+    public void testRequestsAndRetriesAreReportedToMetrics() throws Exception {
+        server = new GcmStubServer.Builder().withScriptedStatuses(503).start();
+        PushMetrics metrics = mock(PushMetrics.class);
+        Sender sender = new Sender("key", transport, server.getUrl(), metrics);
+
+        sender.send(new Message.Builder().build(), registrationIds(3), 1);
+
+        verify(metrics).recordTime(eq(PushMetricNames.HTTP_LATENCY), anyLong(), eq(TimeUnit.NANOSECONDS), eq(PushMetricNames.TAG_SERVICE),
+                eq(Sender.METRICS_SERVICE), eq(PushMetricNames.TAG_STATUS), eq("503"));
+        verify(metrics).recordTime(eq(PushMetricNames.HTTP_LATENCY), anyLong(), eq(TimeUnit.NANOSECONDS), eq(PushMetricNames.TAG_SERVICE),
+                eq(Sender.METRICS_SERVICE), eq(PushMetricNames.TAG_STATUS), eq("200"));
+        verify(metrics).increment(PushMetricNames.RETRIES, 1, PushMetricNames.TAG_SERVICE, Sender.METRICS_SERVICE);
+        verify(metrics).recordTime(eq(PushMetricNames.RETRY_BACKOFF), longThat(greaterThanOrEqualTo((long) Sender.BACKOFF_INITIAL_DELAY / 2)),
+                eq(TimeUnit.MILLISECONDS), eq(PushMetricNames.TAG_SERVICE), eq(Sender.METRICS_SERVICE));
+    }
+
+    @Test
+    public void testTooManyRequestsIsReportedAsInvalidRequest() throws Exception {
+        server = new GcmStubServer.Builder().withScriptedStatuses(429).start();
+        Sender sender = new Sender("key", transport, server.getUrl());
+
+        try {
+            sender.sendNoRetry(new Message.Builder().build(), registrationIds(1));
+            fail("Should have thrown InvalidRequestException");
+        } catch (InvalidRequestException e) {
+            assertThat(e.getHttpStatusCode(), is(429));
+        }
+        assertThat(sender.sendNoRetry(new Message.Builder().build(), "42").getErrorCodeName(), is(nullValue()));
+    }
+
+    private static List<String> registrationIds(final int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add("registration-" + i);
+        }
+        return ids;
+    }
+}
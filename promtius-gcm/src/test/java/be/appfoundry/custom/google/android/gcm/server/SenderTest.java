@@ -21,7 +21,9 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doNothing;
@@ -41,11 +43,20 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SenderTest {
@@ -83,8 +94,22 @@ public class SenderTest {
             new ByteArrayOutputStream();
     private Result result;
 
+    @Mock
+    private ScheduledExecutorService scheduler;
+    private final List<Long> scheduledDelays = new ArrayList<>();
+
     @Before
     public void setFixtures() {
+        // runs scheduled attempts right away, in the calling thread
+        when(scheduler.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS))).thenAnswer(new Answer<ScheduledFuture<?>>() {
+            @Override
+            public ScheduledFuture<?> answer(InvocationOnMock invocation) throws Throwable {
+                scheduledDelays.add((Long) invocation.getArguments()[1]);
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        });
+
         navigationData = ImmutableMap.of("key1", "value1", "key2", "value2");
         customFields.put("data", navigationData);
 
@@ -484,6 +509,27 @@ public class SenderTest {
         verify(sender, times(3)).sendNoRetry(message, regIds);
     }
 
+    @Test()
+    public void testSend_json_firstAttemptResolvesAll() throws Exception {
+        Result notRegisteredResult =
+                new Result.Builder().errorCode("NotRegistered").build();
+        MulticastResult mockedResult = new MulticastResult.Builder(0, 0, 0, 100)
+                .addSuccessResult("42")
+                .addResult(notRegisteredResult)
+                .build();
+        List<String> regIds = Arrays.asList("4", "8");
+        doReturn(mockedResult).when(sender).sendNoRetry(message, regIds);
+        MulticastResult actualResult = sender.send(message, regIds, 10);
+        assertEquals(2, actualResult.getTotal());
+        assertEquals(1, actualResult.getSuccess());
+        assertEquals(1, actualResult.getFailure());
+        assertEquals(100, actualResult.getMulticastId());
+        assertTrue(actualResult.getRetryMulticastIds().isEmpty());
+        assertEquals(Collections.singleton(1), actualResult.getExceptionalResults().keySet());
+        assertResult(actualResult.getResults().get(0), "42", null, null);
+        verify(sender, times(1)).sendNoRetry(message, regIds);
+    }
+
     @Test()
     public void testSend_json_secondAttemptOk() throws Exception {
         doNothing().when(sender).sleep(anyInt());
@@ -516,6 +562,102 @@ public class SenderTest {
         verify(sender, times(2)).sendNoRetry(message, regIds);
     }
 
+    @Test
+    public void testSendAsync_retryOk() throws Exception {
+        doNotSleep();
+        doReturn(null) // fails 1st time
+                .doReturn(null) // fails 2nd time
+                .doReturn(result) // succeeds 3rd time
+                .when(sender).sendNoRetry(message, regId);
+        Future<Result> future = sender.sendAsync(message, regId, 2, scheduler);
+        assertEquals(result, future.get());
+        verify(sender, times(3)).sendNoRetry(message, regId);
+    }
+
+    @Test
+    public void testSendAsync_retryFails() throws Exception {
+        doNotSleep();
+        doReturn(null).when(sender).sendNoRetry(message, regId);
+        Future<Result> future = sender.sendAsync(message, regId, 2, scheduler);
+        try {
+            future.get();
+            fail("Should have thrown ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage().contains("3"));
+        }
+        verify(sender, times(3)).sendNoRetry(message, regId);
+    }
+
+    @Test
+    public void testSendAsync_retryExponentialBackoff() throws Exception {
+        doNotSleep();
+        doReturn(null).when(sender).sendNoRetry(message, regId);
+        sender.sendAsync(message, regId, retries, scheduler);
+        verify(sender, times(retries + 1)).sendNoRetry(message, regId);
+        // first attempt is scheduled without delay
+        assertEquals(0L, scheduledDelays.remove(0).longValue());
+        assertEquals(retries, scheduledDelays.size());
+        long backoffRange = Sender.BACKOFF_INITIAL_DELAY;
+        for (long value : scheduledDelays) {
+            assertTrue(value >= backoffRange / 2);
+            assertTrue(value <= backoffRange * 3 / 2);
+            if (2 * backoffRange < Sender.MAX_BACKOFF_DELAY) {
+                backoffRange *= 2;
+            }
+        }
+    }
+
+    @Test
+    public void testSendAsync_json_secondAttemptOk() throws Exception {
+        doNotSleep();
+        Result unaivalableResult =
+                new Result.Builder().errorCode("Unavailable").build();
+        Result okResult =
+                new Result.Builder().messageId("42").build();
+        MulticastResult mockedResult1 = new MulticastResult.Builder(0, 0, 0, 100)
+                .addResult(unaivalableResult).build();
+        MulticastResult mockedResult2 = new MulticastResult.Builder(0, 0, 0, 200)
+                .addResult(okResult).build();
+        List<String> regIds = Arrays.asList("108");
+        doReturn(mockedResult1) // fist time it fails
+                .doReturn(mockedResult2) // second time it succeeds
+                .when(sender).sendNoRetry(message, regIds);
+        MulticastResult actualResult = sender.sendAsync(message, regIds, 10, scheduler).get();
+        assertEquals(1, actualResult.getSuccess());
+        assertEquals(100, actualResult.getMulticastId());
+        assertResult(actualResult.getResults().get(0), "42", null, null);
+        assertEquals(200, actualResult.getRetryMulticastIds().get(0).longValue());
+        verify(sender, times(2)).sendNoRetry(message, regIds);
+        assertEquals(2, scheduledDelays.size());
+    }
+
+    @Test
+    public void testSendAsync_json_allPostsFail() throws Exception {
+        doNotSleep();
+        List<String> regIds = Arrays.asList("108");
+        doThrow(new IOException()).when(sender).sendNoRetry(message, regIds);
+        try {
+            sender.sendAsync(message, regIds, 1, scheduler).get();
+            fail("Should have thrown ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        verify(sender, times(2)).sendNoRetry(message, regIds);
+    }
+
+    @Test
+    public void testSendAsync_rejectedBySchedulerFailsFuture() throws Exception {
+        ScheduledExecutorService shutdownScheduler = Executors.newSingleThreadScheduledExecutor();
+        shutdownScheduler.shutdown();
+        try {
+            sender.sendAsync(message, Arrays.asList("108"), 1, shutdownScheduler).get();
+            fail("Should have thrown ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
     @Test()
     public void testSend_json_ok() throws Exception {
         doNothing().when(sender).sleep(anyInt());
@@ -706,6 +848,51 @@ public class SenderTest {
         assertRequestJsonBody("4", "8", "15");
     }
 
+    @Test
+    public void testSendNoRetry_json_resultsBeforeCountersAndUnknownFields() throws Exception {
+        String json = replaceQuotes("\n"
+                + "{"
+                + "  'results': ["
+                + "    {'message_id': '16', 'extra': {'results': [1], 'error': 'x'}}, "
+                + "    {'error': 'DOH!', 'list': [{'message_id': 'nested'}]}"
+                + "  ],"
+                + "  'other': {'success': 'not counted'},"
+                + "  'multicast_id': 108,"
+                + "  'success': 1,"
+                + "  'failure': 1,"
+                + "  'canonical_ids': 0"
+                + "}");
+        setResponseExpectations(200, json);
+        MulticastResult multicastResult = sender.sendNoRetry(message,
+                Arrays.asList("4", "8"));
+        assertEquals(1, multicastResult.getSuccess());
+        assertEquals(1, multicastResult.getFailure());
+        assertEquals(108, multicastResult.getMulticastId());
+        List<Result> results = multicastResult.getResults();
+        assertEquals(2, results.size());
+        assertResult(results.get(0), "16", null, null);
+        assertResult(results.get(1), null, "DOH!", null);
+    }
+
+    @Test(expected = IOException.class)
+    public void testSendNoRetry_json_malformed() throws Exception {
+        setResponseExpectations(200, "{'success': 1, 'results': [".replace('\'', '"'));
+        sender.sendNoRetry(message, Arrays.asList("4"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSendNoRetry_json_counterNotANumber() throws Exception {
+        String json = replaceQuotes("{'multicast_id': 108, 'success': '1', 'failure': 0, 'canonical_ids': 0}");
+        setResponseExpectations(200, json);
+        sender.sendNoRetry(message, Arrays.asList("4"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSendNoRetry_json_emptyBody() throws Exception {
+        setResponseExpectations(200, "");
+        sender.sendNoRetry(message, Arrays.asList("4"));
+    }
+
     @Test
     public void testSend_highPriorityMessage() throws Exception {
         message =
@@ -731,11 +918,9 @@ public class SenderTest {
     }
 
     private void assertHighPriorityRequestJsonBody(String... expectedRegIds) throws Exception {
-        ArgumentCaptor<String> capturedBody = ArgumentCaptor.forClass(String.class);
-        verify(sender).post(eq(Constants.GCM_SEND_ENDPOINT), eq("application/json"),
-                capturedBody.capture());
+        verify(mockedConn).setRequestProperty("Content-Type", "application/json");
         // parse body
-        String body = capturedBody.getValue();
+        String body = new String(outputStream.toByteArray(), "UTF-8");
         JSONObject json = (JSONObject) jsonParser.parse(body);
         assertEquals("high", json.get("priority"));
     }
@@ -753,11 +938,9 @@ public class SenderTest {
     }
 
     private void assertRequestJsonBody(String... expectedRegIds) throws Exception {
-        ArgumentCaptor<String> capturedBody = ArgumentCaptor.forClass(String.class);
-        verify(sender).post(eq(Constants.GCM_SEND_ENDPOINT), eq("application/json"),
-                capturedBody.capture());
+        verify(mockedConn).setRequestProperty("Content-Type", "application/json");
         // parse body
-        String body = capturedBody.getValue();
+        String body = new String(outputStream.toByteArray(), "UTF-8");
         JSONObject json = (JSONObject) jsonParser.parse(body);
         assertEquals(ttl, ((Long) json.get("time_to_live")).intValue());
         assertEquals(collapseKey, json.get("collapse_key"));
@@ -917,6 +1100,15 @@ public class SenderTest {
         assertEquals(200, response.getResponseCode());
     }
 
+    @Test
+    public void testGetConnection_setsTimeouts() throws Exception {
+        HttpURLConnection conn = new Sender(authKey)
+                .getConnection(Constants.GCM_SEND_ENDPOINT);
+
+        assertEquals(Sender.CONNECT_TIMEOUT_MILLIS, conn.getConnectTimeout());
+        assertEquals(Sender.READ_TIMEOUT_MILLIS, conn.getReadTimeout());
+    }
+
     /**
      * Sets the expectations of the HTTP connection.
      */
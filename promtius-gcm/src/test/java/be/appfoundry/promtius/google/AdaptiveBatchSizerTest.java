@@ -0,0 +1,105 @@
+package be.appfoundry.promtius.google;
+
+import be.appfoundry.custom.google.android.gcm.server.Constants;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.custom.google.android.gcm.server.Result;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Mike Seghers
+ */
+public class AdaptiveBatchSizerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+
+    private AdaptiveBatchSizer sizer;
+
+    @Before
+    public void setUp() throws Exception {
+        sizer = new AdaptiveBatchSizer.Builder().withMinBatchSize(200).withMaxConcurrentBatches(8).build();
+    }
+
+    @Test
+    public void test_startsAtTheMaximums() throws Exception {
+        assertThat(sizer.getBatchSize(), is(GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE));
+        assertThat(sizer.getConcurrentBatches(), is(8));
+    }
+
+    @Test
+    public void test_slowBatchesHalveTheSizesDownToTheMinimums() throws Exception {
+        sizer.recordBatch(1000, SLOW, null);
+        assertThat(sizer.getBatchSize(), is(500));
+        assertThat(sizer.getConcurrentBatches(), is(4));
+
+        sizer.recordBatch(500, SLOW, null);
+        sizer.recordBatch(250, SLOW, null);
+        sizer.recordBatch(200, SLOW, null);
+
+        assertThat(sizer.getBatchSize(), is(200));
+        assertThat(sizer.getConcurrentBatches(), is(1));
+    }
+
+    @Test
+    public void test_unavailableTokensAboveTheErrorRateDegradeTheBatch() throws Exception {
+        sizer.recordBatch(1000, FAST, unavailableResult(1000, 100));
+        assertThat(sizer.getBatchSize(), is(1000));
+
+        sizer.recordBatch(1000, FAST, unavailableResult(1000, 101));
+        assertThat(sizer.getBatchSize(), is(500));
+    }
+
+    @Test
+    public void test_failedBatchDegrades() throws Exception {
+        sizer.recordFailedBatch(1000);
+
+        assertThat(sizer.getBatchSize(), is(500));
+        assertThat(sizer.getConcurrentBatches(), is(4));
+    }
+
+    @Test
+    public void test_batchesSentBeforeTheLastDecreaseDoNotDecreaseAgain() throws Exception {
+        sizer.recordBatch(1000, SLOW, null);
+        sizer.recordBatch(1000, SLOW, null);
+
+        assertThat(sizer.getBatchSize(), is(500));
+        assertThat(sizer.getConcurrentBatches(), is(4));
+    }
+
+    @Test
+    public void test_healthyBatchesGrowTheSizesBackAdditively() throws Exception {
+        sizer.recordBatch(1000, SLOW, null);
+
+        sizer.recordBatch(500, FAST, null);
+        assertThat(sizer.getBatchSize(), is(600));
+        assertThat(sizer.getConcurrentBatches(), is(5));
+
+        for (int i = 0; i < 10; i++) {
+            sizer.recordBatch(600, FAST, unavailableResult(600, 0));
+        }
+        assertThat(sizer.getBatchSize(), is(1000));
+        assertThat(sizer.getConcurrentBatches(), is(8));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildAboveTheMulticastCeilingFails() throws Exception {
+        new AdaptiveBatchSizer.Builder().withMaxBatchSize(GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE + 1).build();
+    }
+
+    static MulticastResult unavailableResult(final int size, final int unavailable) {
+        MulticastResult.Builder builder = new MulticastResult.Builder(size - unavailable, unavailable, 0, 1);
+        for (int i = 0; i < size; i++) {
+            if (i < unavailable) {
+                builder.addResult(new Result.Builder().errorCode(Constants.ERROR_UNAVAILABLE).build());
+            } else {
+                builder.addSuccessResult("id" + i);
+            }
+        }
+        return builder.build();
+    }
+}
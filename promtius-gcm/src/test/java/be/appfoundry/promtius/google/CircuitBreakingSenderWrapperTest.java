@@ -0,0 +1,124 @@
+package be.appfoundry.promtius.google;
+
+import be.appfoundry.custom.google.android.gcm.server.Message;
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.promtius.CircuitBreaker;
+import be.appfoundry.promtius.exception.CircuitOpenException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Mike Seghers
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CircuitBreakingSenderWrapperTest {
+    @Mock
+    private GoogleSenderWrapper delegate;
+
+    private final Message message = new Message.Builder().build();
+    private final List<String> ids = Arrays.asList("a", "b");
+    private CircuitBreaker circuitBreaker;
+    private CircuitBreakingSenderWrapper wrapper;
+
+    @Before
+    public void setUp() throws Exception {
+        circuitBreaker = new CircuitBreaker.Builder().withName("GCM").withFailureThreshold(2).build();
+        wrapper = new CircuitBreakingSenderWrapper(delegate, circuitBreaker);
+    }
+
+    @Test
+    public void test_send_passesResultOn() throws Exception {
+        MulticastResult result = AdaptiveBatchSizerTest.unavailableResult(2, 1);
+        when(delegate.send(message, ids, 5)).thenReturn(result);
+
+        assertThat(wrapper.send(message, ids, 5), is(sameInstance(result)));
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void test_send_failsFastWithoutCallingSenderOnceOpen() throws Exception {
+        when(delegate.send(message, ids, 5)).thenThrow(new IOException());
+        sendIgnoringFailure();
+        sendIgnoringFailure();
+
+        try {
+            wrapper.send(message, ids, 5);
+            fail("The circuit should be open");
+        } catch (CircuitOpenException expected) {
+            // the sender is not retried
+        }
+
+        verify(delegate, times(2)).send(any(Message.class), anyListOf(String.class), anyInt());
+    }
+
+    @Test
+    public void test_send_batchWithOnlyUnavailableTokensCountsAsFailure() throws Exception {
+        when(delegate.send(message, ids, 5)).thenReturn(AdaptiveBatchSizerTest.unavailableResult(2, 2));
+
+        wrapper.send(message, ids, 5);
+        wrapper.send(message, ids, 5);
+
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void test_sendAsync_recordsOutcomeOnceFutureCompletes() throws Exception {
+        AsyncGoogleSenderWrapper asyncDelegate = mock(AsyncGoogleSenderWrapper.class);
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SettableFuture<MulticastResult> pending = SettableFuture.create();
+        when(asyncDelegate.sendAsync(message, ids, 5, scheduler)).thenReturn(Futures.<MulticastResult>immediateFailedFuture(new IOException()), pending);
+        wrapper = new CircuitBreakingSenderWrapper(asyncDelegate, circuitBreaker);
+
+        wrapper.sendAsync(message, ids, 5, scheduler);
+        ListenableFuture<MulticastResult> result = wrapper.sendAsync(message, ids, 5, scheduler);
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.CLOSED));
+
+        pending.setException(new IOException());
+
+        assertThat(result.isDone(), is(true));
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+        try {
+            wrapper.sendAsync(message, ids, 5, scheduler);
+            fail("The circuit should be open");
+        } catch (CircuitOpenException expected) {
+            // the sender is not called
+        }
+        verify(asyncDelegate, times(2)).sendAsync(any(Message.class), anyListOf(String.class), anyInt(), any(ScheduledExecutorService.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_sendAsync_needsAsyncDelegate() throws Exception {
+        wrapper.sendAsync(message, ids, 5, mock(ScheduledExecutorService.class));
+    }
+
+    private void sendIgnoringFailure() {
+        try {
+            wrapper.send(message, ids, 5);
+        } catch (IOException expected) {
+            // counted by the circuit
+        }
+    }
+}
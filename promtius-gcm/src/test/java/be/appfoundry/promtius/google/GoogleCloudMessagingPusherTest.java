@@ -4,20 +4,36 @@ import be.appfoundry.custom.google.android.gcm.server.Constants;
 import be.appfoundry.custom.google.android.gcm.server.Message;
 import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
 import be.appfoundry.custom.google.android.gcm.server.Result;
+import be.appfoundry.promtius.CircuitBreaker;
 import be.appfoundry.promtius.ClientToken;
 import be.appfoundry.promtius.ClientTokenFactory;
+import be.appfoundry.promtius.ClientTokenFeedback;
 import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.ClientTokenVisitor;
 import be.appfoundry.promtius.PushPayload;
 import be.appfoundry.promtius.PushPayload.PushPriority;
+import be.appfoundry.promtius.PushRateLimiter;
+import be.appfoundry.promtius.StreamingClientTokenService;
+import be.appfoundry.promtius.exception.CircuitOpenException;
 import be.appfoundry.promtius.exception.PushFailedException;
+import be.appfoundry.promtius.journal.JournaledPush;
+import be.appfoundry.promtius.journal.PushJournal;
+import be.appfoundry.promtius.metrics.PushMetricNames;
+import be.appfoundry.promtius.metrics.PushMetrics;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.IOException;
@@ -29,6 +45,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static be.appfoundry.promtius.PushPayload.PushPriority.HIGH;
 import static be.appfoundry.promtius.PushPayload.PushPriority.NORMAL;
@@ -36,13 +57,18 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -240,6 +266,249 @@ public class GoogleCloudMessagingPusherTest {
         assertThat(values.get(2), hasSize(500));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_multicastSend_streamsTokensFromStreamingService() throws Exception {
+        final StreamingClientTokenService<ClientToken<String, String>, String, String, String> streamingService = Mockito.mock(StreamingClientTokenService.class);
+        pusher = new GoogleCloudMessagingPusher<>(wrapper, streamingService, clientTokenFactory, TEST_PLATFORM);
+        when(tokenA.getToken()).thenReturn("token");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                ClientTokenVisitor<ClientToken<String, String>> visitor = (ClientTokenVisitor<ClientToken<String, String>>) invocation.getArguments()[1];
+                for (int i = 0; i < 1500; i++) {
+                    visitor.visit(tokenA);
+                }
+                // the first batch went out while the audience is still being read
+                verify(wrapper, times(1)).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+                return null;
+            }
+        }).when(streamingService).visitClientTokensForOperatingSystem(eq(TEST_PLATFORM), Mockito.<ClientTokenVisitor<ClientToken<String, String>>>any());
+
+        pusher.sendPush(payload);
+
+        verify(wrapper, times(2)).send(Mockito.any(Message.class), deviceIdCaptor.capture(), anyInt());
+        assertThat(deviceIdCaptor.getAllValues().get(0), hasSize(1000));
+        assertThat(deviceIdCaptor.getAllValues().get(1), hasSize(500));
+        verify(streamingService, never()).findClientTokensForOperatingSystem(TEST_PLATFORM);
+    }
+
+    @Test
+    public void test_multicastSend_concurrentBatchesStayWithinInFlightWindow() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM)
+                .withBatchExecutor(executor).withMaxConcurrentBatches(3).build();
+        List<ClientToken<String, String>> tokens = new ArrayList<>(10000);
+        for (int i = 0; i < 10000; i++) {
+            tokens.add(tokenA);
+        }
+        when(tokenA.getToken()).thenReturn("token");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenAnswer(new Answer<MulticastResult>() {
+            @Override
+            public MulticastResult answer(final InvocationOnMock invocation) throws Throwable {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                Thread.sleep(20);
+                inFlight.decrementAndGet();
+                return null;
+            }
+        });
+
+        pusher.sendPush(payload);
+
+        verify(wrapper, times(10)).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        assertThat(inFlight.get(), is(0));
+        assertThat(maxInFlight.get(), is(lessThanOrEqualTo(3)));
+        executor.shutdown();
+    }
+
+    @Test
+    public void test_multicastSend_sharedRateLimiterCapsBatchesInFlightAcrossPushers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        PushRateLimiter limiter = new PushRateLimiter.Builder().withMaxConcurrentRequests(2).build();
+        final GoogleCloudMessagingPusher<ClientToken<String, String>, String, String> first = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService,
+                clientTokenFactory, TEST_PLATFORM).withBatchExecutor(executor).withMaxConcurrentBatches(3).withRateLimiter(limiter).build();
+        GoogleCloudMessagingPusher<ClientToken<String, String>, String, String> second = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService,
+                clientTokenFactory, TEST_PLATFORM).withBatchExecutor(executor).withMaxConcurrentBatches(3).withRateLimiter(limiter).build();
+        List<ClientToken<String, String>> tokens = new ArrayList<>(5000);
+        for (int i = 0; i < 5000; i++) {
+            tokens.add(tokenA);
+        }
+        when(tokenA.getToken()).thenReturn("token");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenAnswer(new Answer<MulticastResult>() {
+            @Override
+            public MulticastResult answer(final InvocationOnMock invocation) throws Throwable {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                Thread.sleep(20);
+                inFlight.decrementAndGet();
+                return null;
+            }
+        });
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                first.sendPush(payload);
+            }
+        });
+        other.start();
+        second.sendPush(payload);
+        other.join(5000);
+
+        verify(wrapper, times(10)).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        assertThat(maxInFlight.get(), is(lessThanOrEqualTo(2)));
+        executor.shutdown();
+    }
+
+    @Test(expected = PushFailedException.class)
+    public void test_multicastSend_concurrentBatchFailureFailsPush() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM)
+                .withBatchExecutor(executor).withMaxConcurrentBatches(2).build();
+        List<ClientToken<String, String>> tokens = new ArrayList<>(2500);
+        for (int i = 0; i < 2500; i++) {
+            tokens.add(tokenA);
+        }
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenThrow(new IOException());
+
+        try {
+            pusher.sendPush(payload);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test_multicastSend_adaptiveBatchSizerShrinksBatchesAfterUnavailableBatch() throws Exception {
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM)
+                .withAdaptiveBatchSizer(new AdaptiveBatchSizer.Builder().build()).build();
+        List<ClientToken<String, String>> tokens = new ArrayList<>(2000);
+        for (int i = 0; i < 2000; i++) {
+            tokens.add(tokenA);
+        }
+        when(tokenA.getToken()).thenReturn("token");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt()))
+                .thenReturn(AdaptiveBatchSizerTest.unavailableResult(1000, 1000))
+                .thenReturn(AdaptiveBatchSizerTest.unavailableResult(500, 0));
+
+        pusher.sendPush(payload);
+
+        verify(wrapper, times(3)).send(Mockito.any(Message.class), deviceIdCaptor.capture(), anyInt());
+        assertThat(deviceIdCaptor.getAllValues().get(0), hasSize(1000));
+        assertThat(deviceIdCaptor.getAllValues().get(1), hasSize(500));
+        assertThat(deviceIdCaptor.getAllValues().get(2), hasSize(500));
+    }
+
+    @Test(timeout = 10000)
+    public void test_multicastSend_adaptiveBatchSizerShrinksBatchesInFlightWhenSlow() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer.Builder().withMinBatchSize(GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE).withMaxConcurrentBatches(4)
+                .withLatencyThreshold(1, TimeUnit.MILLISECONDS).build();
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM)
+                .withBatchExecutor(executor).withMaxConcurrentBatches(4).withAdaptiveBatchSizer(sizer).build();
+        List<ClientToken<String, String>> tokens = new ArrayList<>(10000);
+        for (int i = 0; i < 10000; i++) {
+            tokens.add(tokenA);
+        }
+        when(tokenA.getToken()).thenReturn("token");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final List<Integer> inFlightPerBatch = Collections.synchronizedList(new ArrayList<Integer>());
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenAnswer(new Answer<MulticastResult>() {
+            @Override
+            public MulticastResult answer(final InvocationOnMock invocation) throws Throwable {
+                inFlightPerBatch.add(inFlight.incrementAndGet());
+                Thread.sleep(20);
+                inFlight.decrementAndGet();
+                return null;
+            }
+        });
+
+        pusher.sendPush(payload);
+
+        verify(wrapper, times(10)).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        assertThat(sizer.getConcurrentBatches(), is(1));
+        assertThat(inFlightPerBatch.get(9), is(1));
+        executor.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildWithAdaptiveBatchSizerAndJournalFails() throws Exception {
+        new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(mock(PushJournal.class))
+                .withAdaptiveBatchSizer(new AdaptiveBatchSizer.Builder().build()).build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildWithoutConcurrentBatchesFails() throws Exception {
+        new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withMaxConcurrentBatches(0).build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_buildWithRetrySchedulerNeedsAsyncSenderWrapper() throws Exception {
+        new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withRetryScheduler(mock(ScheduledExecutorService.class)).build();
+    }
+
+    @Test(timeout = 10000)
+    public void test_multicastSend_retrySchedulerAwaitsAsynchronousBatches() throws Exception {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        AsyncGoogleSenderWrapper asyncWrapper = mock(AsyncGoogleSenderWrapper.class);
+        PushJournal journal = mock(PushJournal.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(asyncWrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(journal)
+                .withRetryScheduler(scheduler).build();
+        when(journal.pushStarted(TEST_PLATFORM, payload, null)).thenReturn("push-1");
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA));
+        final MulticastResult result = getMulticastResultBuilder(1, 0, 0, 1, Collections.<Result>emptyList());
+        when(asyncWrapper.sendAsync(Mockito.any(Message.class), anyListOf(String.class), anyInt(), eq(scheduler))).thenAnswer(new Answer<ListenableFuture<MulticastResult>>() {
+            @Override
+            public ListenableFuture<MulticastResult> answer(final InvocationOnMock invocation) throws Throwable {
+                final SettableFuture<MulticastResult> future = SettableFuture.create();
+                // completes like a send that had to back off before its retry
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        future.set(result);
+                    }
+                }, 100, TimeUnit.MILLISECONDS);
+                return future;
+            }
+        });
+
+        pusher.sendPush(payload);
+
+        InOrder inOrder = Mockito.inOrder(journal);
+        inOrder.verify(journal).batchCompleted("push-1", 0);
+        inOrder.verify(journal).pushFinished("push-1");
+        verify(asyncWrapper, never()).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        scheduler.shutdown();
+    }
+
+    @Test(expected = PushFailedException.class)
+    public void test_multicastSend_retrySchedulerFailedBatchFailsPush() throws Exception {
+        AsyncGoogleSenderWrapper asyncWrapper = mock(AsyncGoogleSenderWrapper.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(asyncWrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM)
+                .withRetryScheduler(mock(ScheduledExecutorService.class)).build();
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA));
+        when(asyncWrapper.sendAsync(Mockito.any(Message.class), anyListOf(String.class), anyInt(), Mockito.any(ScheduledExecutorService.class)))
+                .thenReturn(Futures.<MulticastResult>immediateFailedFuture(new IOException()));
+
+        pusher.sendPush(payload);
+    }
+
     @Test
     public void test_multicastReturnEvaluated_cannonicalReplacement() throws Exception {
         List<ClientToken<String, String>> tokens = Collections.singletonList(tokenA);
@@ -279,6 +548,191 @@ public class GoogleCloudMessagingPusherTest {
         verify(clientTokenService, never()).changeClientToken(Mockito.<ClientToken<String, String>>any(), anyString());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void test_multicastReturnEvaluated_reportsFeedbackOncePerBatch() throws Exception {
+        ClientTokenFeedback<ClientToken<String, String>, String> feedback = mock(ClientTokenFeedback.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withFeedback(feedback).build();
+        ClientToken<String, String> tokenC = mock(ClientToken.class);
+        when(tokenA.getToken()).thenReturn("a");
+        when(tokenB.getToken()).thenReturn("b");
+        when(tokenC.getToken()).thenReturn("c");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, tokenB, tokenC));
+        List<Result> results = Arrays.asList(new Result.Builder().errorCode(Constants.ERROR_NOT_REGISTERED).build(),
+                new Result.Builder().errorCode(Constants.ERROR_NOT_REGISTERED).build(),
+                new Result.Builder().messageId("1").canonicalRegistrationId("newC").build());
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenReturn(getMulticastResultBuilder(1, 2, 1, 1, results));
+        when(clientTokenFactory.createClientToken("a", TEST_PLATFORM)).thenReturn(tokenA);
+        when(clientTokenFactory.createClientToken("b", TEST_PLATFORM)).thenReturn(tokenB);
+        when(clientTokenFactory.createClientToken("c", TEST_PLATFORM)).thenReturn(tokenC);
+
+        pusher.sendPush(payload);
+
+        verify(feedback).unregisterClientTokens(Arrays.asList(tokenA, tokenB));
+        verify(feedback).changeClientTokens(Collections.singletonMap(tokenC, "newC"));
+        verify(clientTokenService, never()).unregisterClientToken(Mockito.<ClientToken<String, String>>any());
+    }
+
+    @Test
+    public void test_sendPush_reportsTokensAndBatchesToMetrics() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withMetrics(metrics).build();
+        when(tokenA.getToken()).thenReturn("a");
+        when(tokenB.getToken()).thenReturn("b");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, tokenB));
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt()))
+                .thenReturn(getMulticastResultBuilder(1, 1, 1, 1, Collections.<Result>emptyList()));
+
+        pusher.sendPush(payload);
+
+        verify(metrics).recordValue(PushMetricNames.BATCH_SIZE, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_ATTEMPTED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_SUCCEEDED, 1, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_FAILED, 1, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_CANONICALISED, 1, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).recordTime(eq(PushMetricNames.TOKEN_LOOKUP), anyLong(), eq(TimeUnit.NANOSECONDS), eq(PushMetricNames.TAG_PLATFORM), eq(TEST_PLATFORM));
+    }
+
+    @Test
+    public void test_sendPush_reportsWholeBatchAsFailedWhenSenderThrows() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withMetrics(metrics).build();
+        when(tokenA.getToken()).thenReturn("a");
+        when(tokenB.getToken()).thenReturn("b");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA, tokenB));
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenThrow(new IOException());
+
+        try {
+            pusher.sendPush(payload);
+        } catch (PushFailedException expected) {
+            // the batch failure is reported before the push fails
+        }
+
+        verify(metrics).increment(PushMetricNames.TOKENS_ATTEMPTED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics).increment(PushMetricNames.TOKENS_FAILED, 2, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+        verify(metrics, never()).increment(eq(PushMetricNames.TOKENS_SUCCEEDED), anyLong(), Mockito.<String>anyVararg());
+    }
+
+    @Test
+    public void test_sendPush_journalsStartCompletedBatchesAndFinish() throws Exception {
+        PushJournal journal = mock(PushJournal.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(journal).build();
+        Collection<String> groups = Arrays.asList("groupA");
+        when(journal.pushStarted(TEST_PLATFORM, payload, groups)).thenReturn("push-1");
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM, groups)).thenReturn(Arrays.asList(tokenA));
+
+        pusher.sendPush(payload, groups);
+
+        InOrder inOrder = Mockito.inOrder(journal, wrapper);
+        inOrder.verify(journal).pushStarted(TEST_PLATFORM, payload, groups);
+        inOrder.verify(wrapper).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        inOrder.verify(journal).batchCompleted("push-1", 0);
+        inOrder.verify(journal).pushFinished("push-1");
+    }
+
+    @Test
+    public void test_sendPush_reportsBatchAsFailedWhenCircuitIsOpen() throws Exception {
+        PushMetrics metrics = mock(PushMetrics.class);
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenThrow(new IOException());
+        GoogleSenderWrapper circuitBreakingWrapper = new CircuitBreakingSenderWrapper(wrapper, new CircuitBreaker.Builder().withFailureThreshold(1).build());
+        pusher = new GoogleCloudMessagingPusher.Builder<>(circuitBreakingWrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withMetrics(metrics).build();
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA));
+        try {
+            pusher.sendPush(payload);
+        } catch (PushFailedException expected) {
+            // opens the circuit
+        }
+
+        try {
+            pusher.sendPush(payload);
+            fail("The push should fail while the circuit is open");
+        } catch (CircuitOpenException expected) {
+            // GCM is not called
+        }
+
+        verify(wrapper, times(1)).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        verify(metrics, times(2)).increment(PushMetricNames.TOKENS_FAILED, 1, PushMetricNames.TAG_PLATFORM, TEST_PLATFORM);
+    }
+
+    @Test
+    public void test_sendPush_failedPushIsLeftUnfinishedInJournal() throws Exception {
+        PushJournal journal = mock(PushJournal.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(journal).build();
+        when(journal.pushStarted(TEST_PLATFORM, payload, null)).thenReturn("push-1");
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA));
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenThrow(new IOException());
+
+        try {
+            pusher.sendPush(payload);
+        } catch (PushFailedException expected) {
+            // the push stays unfinished, so it is resumed later
+        }
+
+        verify(journal, never()).batchCompleted(anyString(), anyInt());
+        verify(journal, never()).pushFinished("push-1");
+    }
+
+    @Test
+    public void test_resumeUnfinishedPushes_skipsCompletedBatches() throws Exception {
+        PushJournal journal = mock(PushJournal.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(journal).build();
+        when(journal.getUnfinishedPushes(TEST_PLATFORM))
+                .thenReturn(Arrays.asList(new JournaledPush("push-1", TEST_PLATFORM, payload, null, Collections.singleton(0))));
+        List<ClientToken<String, String>> tokens = new ArrayList<>(1500);
+        for (int i = 0; i < 1500; i++) {
+            tokens.add(tokenA);
+        }
+        when(tokenA.getToken()).thenReturn("token");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(tokens);
+
+        pusher.resumeUnfinishedPushes();
+
+        verify(wrapper).send(Mockito.any(Message.class), deviceIdCaptor.capture(), anyInt());
+        assertThat(deviceIdCaptor.getValue(), hasSize(500));
+        verify(journal, never()).pushStarted(anyString(), Mockito.any(PushPayload.class), Mockito.<Collection<?>>any());
+        verify(journal).batchCompleted("push-1", 1);
+        verify(journal).pushFinished("push-1");
+    }
+
+    @Test
+    public void test_resumeUnfinishedPushes_onlyResumesPushesOfJournalId() throws Exception {
+        PushJournal journal = mock(PushJournal.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(journal).withJournalId("app-a").build();
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA));
+
+        pusher.sendPush(payload);
+        pusher.resumeUnfinishedPushes();
+
+        verify(journal).pushStarted("app-a", payload, null);
+        verify(journal).getUnfinishedPushes("app-a");
+        verify(journal, never()).getUnfinishedPushes(TEST_PLATFORM);
+    }
+
+    @Test
+    public void test_resumeUnfinishedPushes_failingPushDoesNotStopTheOthers() throws Exception {
+        PushJournal journal = mock(PushJournal.class);
+        pusher = new GoogleCloudMessagingPusher.Builder<>(wrapper, clientTokenService, clientTokenFactory, TEST_PLATFORM).withJournal(journal).build();
+        when(journal.getUnfinishedPushes(TEST_PLATFORM)).thenReturn(Arrays.asList(
+                new JournaledPush("push-1", TEST_PLATFORM, payload, null, Collections.<Integer>emptySet()),
+                new JournaledPush("push-2", TEST_PLATFORM, payload, null, Collections.<Integer>emptySet())));
+        when(tokenA.getToken()).thenReturn("a");
+        when(clientTokenService.findClientTokensForOperatingSystem(TEST_PLATFORM)).thenReturn(Arrays.asList(tokenA));
+        when(wrapper.send(Mockito.any(Message.class), anyListOf(String.class), anyInt())).thenThrow(new IOException())
+                .thenReturn(getMulticastResultBuilder(1, 0, 0, 1, Collections.<Result>emptyList()));
+
+        pusher.resumeUnfinishedPushes();
+
+        verify(wrapper, times(2)).send(Mockito.any(Message.class), anyListOf(String.class), anyInt());
+        verify(journal, never()).batchCompleted("push-1", 0);
+        verify(journal).batchCompleted("push-2", 0);
+        verify(journal, never()).pushFinished("push-1");
+        verify(journal).pushFinished("push-2");
+    }
+
     @Test
     public void test_getPlatform() throws Exception {
         Set<String> singletonSet = ImmutableSet.of(TEST_PLATFORM);
@@ -0,0 +1,64 @@
+package be.appfoundry.promtius.virtualthreads;
+
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ParallelPushAggregator;
+import be.appfoundry.promtius.google.GoogleCloudMessagingPusher;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs pusher tasks and GCM batches on virtual threads, one per task, instead of on a pool of platform threads. Sending is blocking HTTP I/O, during which a virtual thread
+ * releases its carrier thread, so thousands of sends can be in flight at almost no memory cost and without tuning a pool size.
+ * <p/>
+ * The executors created here are owned by the caller: close them once the aggregator or pusher using them is no longer needed. Requires Java 21.
+ * <pre>
+ * ExecutorService executor = VirtualThreadExecution.newExecutor("promtius-push-");
+ * GoogleCloudMessagingPusher&lt;...&gt; gcm = VirtualThreadExecution.withVirtualThreadBatches(new GoogleCloudMessagingPusher.Builder&lt;&gt;(...), executor).build();
+ * ParallelPushAggregator&lt;...&gt; aggregator = VirtualThreadExecution.withVirtualThreads(new ParallelPushAggregator.Builder&lt;&gt;(pushers), executor).build();
+ * </pre>
+ *
+ * @author Mike Seghers
+ */
+public final class VirtualThreadExecution {
+    /**
+     * The default maximum number of batches of a single GCM push in flight at once. Only the GCM service limits the concurrency, not the threads.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 1000;
+
+    private VirtualThreadExecution() {
+        throw new UnsupportedOperationException("You should not call the constructor of this class!");
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for every task, named with the given prefix followed by a counter.
+     */
+    public static ExecutorService newExecutor(final String threadNamePrefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadNamePrefix, 0).factory());
+    }
+
+    /**
+     * Runs every pusher task of the aggregator on its own virtual thread of the given executor, created by {@link #newExecutor(String)}.
+     */
+    public static <P, G> ParallelPushAggregator.Builder<P, G> withVirtualThreads(final ParallelPushAggregator.Builder<P, G> builder, final ExecutorService executor) {
+        return builder.withExecutorService(executor);
+    }
+
+    /**
+     * Sends every batch of the pusher on its own virtual thread of the given executor, with at most {@value #DEFAULT_MAX_CONCURRENT_BATCHES} batches of a push in flight.
+     */
+    public static <CT extends ClientToken<String, P>, P, G> GoogleCloudMessagingPusher.Builder<CT, P, G> withVirtualThreadBatches(
+            final GoogleCloudMessagingPusher.Builder<CT, P, G> builder, final ExecutorService executor) {
+        return withVirtualThreadBatches(builder, executor, DEFAULT_MAX_CONCURRENT_BATCHES);
+    }
+
+    /**
+     * Sends every batch of the pusher on its own virtual thread of the given executor, with at most the given number of batches of a push in flight.
+     */
+    public static <CT extends ClientToken<String, P>, P, G> GoogleCloudMessagingPusher.Builder<CT, P, G> withVirtualThreadBatches(
+            final GoogleCloudMessagingPusher.Builder<CT, P, G> builder, final ExecutorService executor, final int maxConcurrentBatches) {
+        Preconditions.checkArgument(maxConcurrentBatches > 0, "Max concurrent batches should be positive");
+        return builder.withBatchExecutor(executor).withMaxConcurrentBatches(maxConcurrentBatches);
+    }
+}
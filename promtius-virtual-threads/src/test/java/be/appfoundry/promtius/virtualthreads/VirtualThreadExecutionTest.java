@@ -0,0 +1,181 @@
+package be.appfoundry.promtius.virtualthreads;
+
+import be.appfoundry.custom.google.android.gcm.server.MulticastResult;
+import be.appfoundry.promtius.ClientToken;
+import be.appfoundry.promtius.ClientTokenService;
+import be.appfoundry.promtius.ParallelPushAggregator;
+import be.appfoundry.promtius.PushAggregatorResult;
+import be.appfoundry.promtius.PushPayload;
+import be.appfoundry.promtius.Pusher;
+import be.appfoundry.promtius.google.GoogleCloudMessagingPusher;
+import be.appfoundry.promtius.google.GoogleSenderWrapper;
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Mike Seghers
+ */
+public class VirtualThreadExecutionTest {
+    private static final String PLATFORM = "Android";
+
+    private ExecutorService executor;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setUp() throws Exception {
+        executor = VirtualThreadExecution.newExecutor("promtius-test-");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.close();
+    }
+
+    @Test
+    public void test_newExecutor_runsEachTaskOnNamedVirtualThread() throws Exception {
+        executor.submit(this::recordThread).get(5, TimeUnit.SECONDS);
+        executor.submit(this::recordThread).get(5, TimeUnit.SECONDS);
+
+        assertThat(threads.size(), is(2));
+        for (Thread thread : threads) {
+            assertThat(thread.isVirtual(), is(true));
+            assertThat(thread.getName(), startsWith("promtius-test-"));
+        }
+    }
+
+    @Test
+    public void test_withVirtualThreads_runsPushersOnVirtualThreads() throws Exception {
+        Set<Pusher<String, String>> pushers = ImmutableSet.<Pusher<String, String>>of(new RecordingPusher("iOS"), new RecordingPusher(PLATFORM));
+        ParallelPushAggregator<String, String> aggregator = VirtualThreadExecution.withVirtualThreads(new ParallelPushAggregator.Builder<>(pushers), executor).build();
+
+        PushAggregatorResult<String> result = aggregator.sendPushAsync(new PushPayload.Builder().withMessage("message").build()).get(5, TimeUnit.SECONDS);
+
+        assertThat(result.isSuccess(), is(true));
+        assertThat(threads.size(), is(2));
+        assertThat(isVirtual(threads), everyItem(is(true)));
+    }
+
+    @Test
+    public void test_withVirtualThreadBatches_sendsBatchesConcurrentlyOnVirtualThreads() throws Exception {
+        final int batches = 3;
+        final CountDownLatch allBatchesInFlight = new CountDownLatch(batches);
+        GoogleSenderWrapper wrapper = (message, deviceIds, retries) -> {
+            recordThread();
+            allBatchesInFlight.countDown();
+            try {
+                if (!allBatchesInFlight.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Batches were not sent concurrently");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return new MulticastResult.Builder(deviceIds.size(), 0, 0, 1).build();
+        };
+        GoogleCloudMessagingPusher<TestClientToken, String, String> pusher = VirtualThreadExecution.withVirtualThreadBatches(
+                new GoogleCloudMessagingPusher.Builder<>(wrapper, new TestClientTokenService(batches * GoogleCloudMessagingPusher.MAX_MULTICAST_SIZE), null, PLATFORM),
+                executor).build();
+
+        pusher.sendPush(new PushPayload.Builder().withMessage("message").build());
+
+        assertThat(threads.size(), is(batches));
+        assertThat(isVirtual(threads), everyItem(is(true)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_withVirtualThreadBatches_maxConcurrentBatchesShouldBePositive() throws Exception {
+        VirtualThreadExecution.withVirtualThreadBatches(new GoogleCloudMessagingPusher.Builder<>(null, new TestClientTokenService(0), null, PLATFORM), executor, 0);
+    }
+
+    private Void recordThread() {
+        threads.add(Thread.currentThread());
+        return null;
+    }
+
+    private static List<Boolean> isVirtual(final Collection<Thread> threads) {
+        List<Boolean> virtual = new ArrayList<>();
+        for (Thread thread : threads) {
+            virtual.add(thread.isVirtual());
+        }
+        return virtual;
+    }
+
+    private final class RecordingPusher implements Pusher<String, String> {
+        private final String platform;
+
+        private RecordingPusher(final String platform) {
+            this.platform = platform;
+        }
+
+        @Override
+        public void sendPush(final PushPayload payload) {
+            recordThread();
+        }
+
+        @Override
+        public void sendPush(final PushPayload payload, final Collection<String> groups) {
+            recordThread();
+        }
+
+        @Override
+        public Set<String> getPlatforms() {
+            return ImmutableSet.of(platform);
+        }
+    }
+
+    private static final class TestClientTokenService implements ClientTokenService<TestClientToken, String, String, String> {
+        private final List<TestClientToken> tokens = new ArrayList<>();
+
+        private TestClientTokenService(final int count) {
+            for (int i = 0; i < count; i++) {
+                tokens.add(new TestClientToken("token" + i));
+            }
+        }
+
+        @Override
+        public List<TestClientToken> findClientTokensForOperatingSystem(final String platform) {
+            return tokens;
+        }
+
+        @Override
+        public List<TestClientToken> findClientTokensForOperatingSystem(final String platform, final Collection<String> groups) {
+            return tokens;
+        }
+
+        @Override
+        public void unregisterClientToken(final TestClientToken clientToken) {
+        }
+
+        @Override
+        public void changeClientToken(final TestClientToken clientToken, final String newTokenValue) {
+        }
+    }
+
+    private record TestClientToken(String token) implements ClientToken<String, String> {
+        @Override
+        public String getToken() {
+            return token;
+        }
+
+        @Override
+        public String getPlatform() {
+            return PLATFORM;
+        }
+    }
+}